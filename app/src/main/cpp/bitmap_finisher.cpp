@@ -0,0 +1,58 @@
+#include <jni.h>
+#include <math.h>
+#include <stdint.h>
+#include <android/bitmap.h>
+#include <android/log.h>
+
+#define TAG "BITMAP_FINISHER"
+
+/*
+ * Same conversion as saturate_cast<uchar>(x * 255.f) in OpenCV:
+ * round half to even, clamp to [0, 255], NaN to 0.
+ */
+static inline uint8_t toByte(float value) {
+    float scaled = value * 255.f;
+    if (!(scaled > 0.f)) {
+        return 0;
+    }
+    if (scaled >= 255.f) {
+        return 255;
+    }
+    return (uint8_t) lrintf(scaled);
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_it_unipd_dei_esp1617_patova_hdresp_BitmapFinisher_nativeFinish(
+        JNIEnv *env, jclass, jlong address, jint rows, jint cols, jlong step, jobject bitmap) {
+    AndroidBitmapInfo info;
+    if (AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS
+        || info.format != ANDROID_BITMAP_FORMAT_RGBA_8888
+        || info.width != (uint32_t) cols || info.height != (uint32_t) rows) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "Bitmap not compatible with the image");
+        return JNI_FALSE;
+    }
+
+    void *pixels;
+    if (AndroidBitmap_lockPixels(env, bitmap, &pixels) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG, "Unable to lock the pixels");
+        return JNI_FALSE;
+    }
+
+    // Read BGR floats and write RGBA bytes, a single pass on the image
+    const uint8_t *source = reinterpret_cast<const uint8_t *>(address);
+    uint8_t *destination = static_cast<uint8_t *>(pixels);
+    for (jint y = 0; y < rows; y++) {
+        const float *in = reinterpret_cast<const float *>(source + y * step);
+        uint8_t *out = destination + y * info.stride;
+        for (jint x = 0; x < cols; x++, in += 3, out += 4) {
+            out[0] = toByte(in[2]);
+            out[1] = toByte(in[1]);
+            out[2] = toByte(in[0]);
+            out[3] = 255;
+        }
+    }
+
+    AndroidBitmap_unlockPixels(env, bitmap);
+    return JNI_TRUE;
+}
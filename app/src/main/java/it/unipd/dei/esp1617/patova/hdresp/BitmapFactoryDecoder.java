@@ -0,0 +1,94 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import org.opencv.android.Utils;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Decodes the photos with the decoder of the platform instead of OpenCV.
+ * <p>
+ * {@link BitmapFactory} uses the hardware accelerated decoder on some devices;
+ * the photos are decoded into bitmaps that are reused from one photo to the
+ * next, so that no new large buffer is allocated for every photo. Which of the
+ * two decoders is faster is chosen on every device by {@link DecoderBenchmark}.
+ */
+final class BitmapFactoryDecoder implements HdrEngine.Decoder {
+
+    static final BitmapFactoryDecoder INSTANCE = new BitmapFactoryDecoder();
+
+    /**
+     * The bitmaps not in use by a decoding thread.
+     */
+    private static final Deque<Bitmap> sBuffers = new ArrayDeque<>();
+
+    private BitmapFactoryDecoder() {
+    }
+
+    @Override
+    public Mat decode(ByteBuffer image, boolean reduced) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inSampleSize = reduced ? 4 : 1;
+        options.inBitmap = obtainBuffer();
+
+        Bitmap bitmap;
+        byte[] bytes = JpegBufferPool.obtainArray(image);
+        try {
+            bitmap = BitmapFactory.decodeByteArray(bytes, 0, image.remaining(), options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            // The buffer is too small for this photo: decode into a new one
+            options.inBitmap.recycle();
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(bytes, 0, image.remaining(), options);
+        } finally {
+            JpegBufferPool.releaseArray(image, bytes);
+        }
+        if (bitmap == null) {
+            releaseBuffer(options.inBitmap);
+            throw new IllegalArgumentException("Unable to decode the image");
+        }
+
+        Mat rgba = MatPool.obtain(bitmap.getHeight(), bitmap.getWidth(), CvType.CV_8UC4);
+        Mat bgr = MatPool.obtain(bitmap.getHeight(), bitmap.getWidth(), CvType.CV_8UC3);
+        try {
+            Utils.bitmapToMat(bitmap, rgba);
+            Imgproc.cvtColor(rgba, bgr, Imgproc.COLOR_RGBA2BGR);
+        } finally {
+            MatPool.release(rgba);
+            releaseBuffer(bitmap);
+        }
+        return bgr;
+    }
+
+    private static synchronized Bitmap obtainBuffer() {
+        return sBuffers.poll();
+    }
+
+    private static synchronized void releaseBuffer(Bitmap bitmap) {
+        if (bitmap != null && !bitmap.isRecycled()) {
+            sBuffers.push(bitmap);
+        }
+    }
+
+    /**
+     * Free the memory of the reused bitmaps.
+     */
+    static synchronized void clear() {
+        for (Bitmap bitmap : sBuffers) {
+            bitmap.recycle();
+        }
+        sBuffers.clear();
+    }
+}
@@ -0,0 +1,106 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Last stage of the HDR: it converts the tone mapped image into the
+ * {@link Bitmap} that is saved.
+ * <p>
+ * A single pass reads the BGR floats in [0, 1] of the tone mapped image and
+ * writes the scaled and clamped RGBA8888 pixels straight into the bitmap,
+ * with no intermediate {@link Mat}. It gives the same pixels as
+ * {@code cvtColor(BGR2RGB)}, {@code multiply(255)}, {@code convertTo(CV_8UC3)}
+ * and {@code Utils.matToBitmap}. The pass is done in native code; if the
+ * native library is not available, an equivalent (slower) Java loop is used.
+ */
+final class BitmapFinisher {
+
+    private static final String TAG = "BITMAP_FINISHER";
+
+    private static final boolean NATIVE_AVAILABLE;
+
+    static {
+        boolean available;
+        try {
+            System.loadLibrary("hdresp");
+            available = true;
+        } catch (UnsatisfiedLinkError e) {
+            Log.w(TAG, "Native finisher not available: " + e.getMessage());
+            available = false;
+        }
+        NATIVE_AVAILABLE = available;
+    }
+
+    private BitmapFinisher() {
+    }
+
+    /**
+     * Write a tone mapped image into a bitmap.
+     *
+     * @param toneMapped the tone mapped image, {@code CV_32FC3} BGR
+     * @param bitmap     a mutable {@code ARGB_8888} bitmap of the same size of the image
+     */
+    static void finish(Mat toneMapped, Bitmap bitmap) {
+        if (toneMapped.type() != CvType.CV_32FC3) {
+            throw new IllegalArgumentException("Expected a CV_32FC3 image, got " + toneMapped.type());
+        }
+        if (bitmap.getWidth() != toneMapped.cols() || bitmap.getHeight() != toneMapped.rows()) {
+            throw new IllegalArgumentException("The bitmap and the image have different sizes");
+        }
+
+        if (NATIVE_AVAILABLE && nativeFinish(toneMapped.dataAddr(), toneMapped.rows(),
+                toneMapped.cols(), toneMapped.step1(0) * toneMapped.elemSize1(), bitmap)) {
+            return;
+        }
+        finishInJava(toneMapped, bitmap);
+    }
+
+    /**
+     * Java version of the native pass, one row at a time.
+     */
+    private static void finishInJava(Mat toneMapped, Bitmap bitmap) {
+        int cols = toneMapped.cols();
+        float[] row = new float[cols * 3];
+        int[] pixels = new int[cols];
+        for (int y = 0; y < toneMapped.rows(); y++) {
+            toneMapped.get(y, 0, row);
+            for (int x = 0, i = 0; x < cols; x++, i += 3) {
+                pixels[x] = 0xff000000
+                        | toByte(row[i + 2]) << 16
+                        | toByte(row[i + 1]) << 8
+                        | toByte(row[i]);
+            }
+            bitmap.setPixels(pixels, 0, cols, 0, y, cols, 1);
+        }
+    }
+
+    /**
+     * Same conversion as {@code saturate_cast<uchar>(value * 255)} in OpenCV:
+     * round half to even and clamp to [0, 255].
+     */
+    private static int toByte(float value) {
+        float scaled = value * 255f;
+        if (!(scaled > 0f)) {
+            return 0;
+        }
+        if (scaled >= 255f) {
+            return 255;
+        }
+        return (int) Math.rint(scaled);
+    }
+
+    /**
+     * @param address the address of the first pixel of the image
+     * @param rows    the rows of the image
+     * @param cols    the columns of the image
+     * @param step    the bytes between the beginning of two rows
+     * @param bitmap  the bitmap to write
+     * @return {@code false} if the bitmap can not be written
+     */
+    private static native boolean nativeFinish(long address, int rows, int cols, long step,
+                                               Bitmap bitmap);
+}
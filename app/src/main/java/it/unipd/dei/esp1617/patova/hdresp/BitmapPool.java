@@ -0,0 +1,70 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import android.graphics.Bitmap;
+
+/**
+ * Pool of the bitmaps of the final HDR images.
+ * <p>
+ * A full resolution bitmap takes tens of megabytes, so instead of allocating
+ * a new one for every photo, the last one is kept and reused (reconfigured
+ * if the size changes and it is large enough).
+ */
+final class BitmapPool {
+
+    private static Bitmap sFree;
+
+    private BitmapPool() {
+    }
+
+    /**
+     * Get a mutable {@code ARGB_8888} bitmap. Its content is undefined.
+     *
+     * @param width  the width of the bitmap
+     * @param height the height of the bitmap
+     * @return a bitmap from the pool, or a new one if none fits
+     */
+    static synchronized Bitmap obtain(int width, int height) {
+        Bitmap bitmap = sFree;
+        sFree = null;
+        if (bitmap != null && !bitmap.isRecycled()) {
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                return bitmap;
+            }
+            if (bitmap.getAllocationByteCount() >= width * height * 4) {
+                bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+                return bitmap;
+            }
+            bitmap.recycle();
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Give back a bitmap to the pool. The bitmap must not be used anymore.
+     *
+     * @param bitmap the bitmap obtained from {@link #obtain(int, int)}
+     */
+    static synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        if (sFree == null || sFree.getAllocationByteCount() < bitmap.getAllocationByteCount()) {
+            if (sFree != null) {
+                sFree.recycle();
+            }
+            sFree = bitmap;
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Free the memory of the pool.
+     */
+    static synchronized void clear() {
+        if (sFree != null) {
+            sFree.recycle();
+            sFree = null;
+        }
+    }
+}
@@ -27,9 +27,17 @@ import android.util.Log;
 
 import org.opencv.android.OpenCVLoader;
 
+import java.io.IOException;
+
 public class CameraActivity extends Activity implements ChangeFragment {
     private static final String TAG = "CameraActivity";
 
+    /**
+     * Whether the HDR jobs left by a previous process have already been resumed:
+     * only once per process, before any new job is created.
+     */
+    private static boolean sJobsResumed;
+
     static {
         if (OpenCVLoader.initDebug()) {
             Log.d(TAG, "OPENCV LOADED!");
@@ -45,6 +53,22 @@ public class CameraActivity extends Activity implements ChangeFragment {
         PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
         CameraSettings cameraSettings = CameraSettings.getInstance(this);
 
+        // Choose the fastest JPEG decoder of the device, only the first time
+        if (DecoderBenchmark.isNeeded(this)) {
+            PipelineTuner.execute(new DecoderBenchmark(this));
+        }
+
+        // Measure the stages of the pipeline for the profiles, only the first time: after
+        // the decoder, and once the HDR jobs resumed below are completed
+        if (PipelineTuner.isNeeded(this)) {
+            PipelineTuner.start(this, false);
+        }
+
+        if (!sJobsResumed) {
+            sJobsResumed = true;
+            resumePendingJobs();
+        }
+
         setContentView(R.layout.activity_camera);
 
         if (null == savedInstanceState) {
@@ -58,12 +82,53 @@ public class CameraActivity extends Activity implements ChangeFragment {
         }
     }
 
+    /**
+     * Resume the HDR of the sequences that were being processed when the process was
+     * killed, from the last stage they had completed.
+     */
+    private void resumePendingJobs() {
+        for (PersistentJob job : PersistentJob.pending(CameraPreferences.getJobsDir(this))) {
+            try {
+                if (HdrScheduler.submit(this, Hdr.resume(this, job)) == null) {
+                    // The next ones are resumed by the next process
+                    Log.w(TAG, "HDR scheduler full, " + job + " left for later");
+                    break;
+                }
+                Log.i(TAG, "Resumed HDR job " + job);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Unable to resume HDR job " + job, e);
+                job.delete();
+            }
+        }
+    }
+
     // Override necessary to pass the result to the fragment
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // The app is in background or the system is low on memory:
+        // free the bitmaps and the buffers kept for the next HDR photo.
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            BitmapPool.clear();
+            BitmapFactoryDecoder.clear();
+            JpegBufferPool.clear();
+            MatPool.clear();
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            JpegBufferPool.clearArrays();
+            MatPool.clear();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            JpegBufferPool.clearArrays();
+            // Keep the most recent half of the native buffers for the next photo
+            MatPool.trim(MatPool.getPooledBytes() / 2);
+        }
+    }
+
     @Override
     public void changeFragment(Fragment fragment, String tag) {
         FragmentManager fragmentManager = getFragmentManager();
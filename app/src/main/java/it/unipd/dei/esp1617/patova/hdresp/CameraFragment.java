@@ -57,6 +57,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Toast;
 
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -144,10 +145,6 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
      */
     private final static AtomicInteger number = new AtomicInteger(-1);
 
-    /**
-     * List of images that will be sent to the HDR algorithm.
-     */
-    private final static List<byte[]> images = new ArrayList<>();
 
     /**
      * Setup the camera with user preferences and more
@@ -222,7 +219,7 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
         public void onImageAvailable(ImageReader reader) {
             mBackgroundHandler.post(
                     new ImageSaver(getActivity(), reader.acquireNextImage(), mImageFileName, number,
-                            images));
+                            mFrames, mFramePipeline, mJob));
         }
     };
 
@@ -231,6 +228,50 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
      */
     private ImageReader mImageReader;
 
+    /**
+     * An {@link ImageReader} that handles the photos of the HDR sequences in RAW or YUV, if
+     * the user wants them so and the camera supports it; {@code null} to capture them in JPEG.
+     */
+    private ImageReader mSequenceImageReader;
+
+    /**
+     * The characteristics of the camera, if the HDR sequences are captured in RAW.
+     */
+    private CameraCharacteristics mRawCharacteristics;
+
+    /**
+     * The result of the capture that chose the exposure of the current sequence:
+     * its white balance is used to develop the RAW frames.
+     */
+    private CaptureResult mMeteringResult;
+
+    /**
+     * The photos of the current HDR sequence, with the settings reported by the camera.
+     */
+    private volatile List<Frame> mFrames;
+
+    /**
+     * Dims the shutter while the {@link HdrScheduler} is full.
+     */
+    private final HdrScheduler.BackpressureListener mBackpressureListener =
+            new HdrScheduler.BackpressureListener() {
+                @Override
+                public void onBackpressureChanged(boolean saturated) {
+                    updateShutter(saturated);
+                }
+            };
+
+    /**
+     * Prepares the photos of the current HDR sequence while they are captured.
+     */
+    private volatile FramePipeline mFramePipeline;
+
+    /**
+     * Stores the photos of the current HDR sequence, so that its HDR is resumed if the
+     * process is killed; {@code null} if they cannot be stored.
+     */
+    private volatile PersistentJob mJob;
+
     /**
      * {@link CaptureRequest.Builder} for the camera preview
      */
@@ -515,6 +556,10 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
         super.onResume();
         startBackgroundThread();
         reOpenCamera();
+
+        // Do not take new sequences while the HDR images can not keep up
+        HdrScheduler.setBackpressureListener(mBackpressureListener);
+        updateShutter(HdrScheduler.isSaturated());
     }
 
     private void reOpenCamera() {
@@ -537,6 +582,7 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
 
     @Override
     public void onPause() {
+        HdrScheduler.setBackpressureListener(null);
         closeCamera();
         stopBackgroundThread();
         super.onPause();
@@ -579,9 +625,32 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
 
             mImageReader = ImageReader.newInstance(widthRes, heightRes,
                     ImageFormat.JPEG, /*maxImages*/2);
+            JpegBufferPool.setResolution(widthRes, heightRes);
             mImageReader.setOnImageAvailableListener(
                     mOnImageAvailableListener, mBackgroundHandler);
 
+            // The photos of the HDR sequences can be captured in RAW, at the resolution of the
+            // sensor, to be merged with no calibration; or in YUV at the same resolution,
+            // so that they are converted directly, with no JPEG encoding and decoding.
+            mSequenceImageReader = null;
+            mRawCharacteristics = null;
+            if (mCameraPreferences.isRawCapture() && mCameraSettings.isRawSupported(cameraId)) {
+                Size largestRaw = Collections.max(
+                        Arrays.asList(map.getOutputSizes(ImageFormat.RAW_SENSOR)),
+                        new CompareSizesByArea());
+                mSequenceImageReader = ImageReader.newInstance(largestRaw.getWidth(),
+                        largestRaw.getHeight(), ImageFormat.RAW_SENSOR, /*maxImages*/3);
+                mSequenceImageReader.setOnImageAvailableListener(
+                        mOnImageAvailableListener, mBackgroundHandler);
+                mRawCharacteristics = cameraCharacteristics;
+            } else if (mCameraPreferences.isYuvCapture() && Arrays.asList(
+                    map.getOutputSizes(ImageFormat.YUV_420_888)).contains(new Size(widthRes, heightRes))) {
+                mSequenceImageReader = ImageReader.newInstance(widthRes, heightRes,
+                        ImageFormat.YUV_420_888, /*maxImages*/3);
+                mSequenceImageReader.setOnImageAvailableListener(
+                        mOnImageAvailableListener, mBackgroundHandler);
+            }
+
             // Find out if we need to swap dimension to get the preview size relative to sensor
             // coordinate.
             int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
@@ -720,6 +789,10 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
                 mImageReader.close();
                 mImageReader = null;
             }
+            if (null != mSequenceImageReader) {
+                mSequenceImageReader.close();
+                mSequenceImageReader = null;
+            }
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
         } finally {
@@ -770,7 +843,11 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
             mPreviewRequestBuilder.addTarget(surface);
 
             // Here, we create a CameraCaptureSession for camera preview.
-            mCameraDevice.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface()),
+            List<Surface> outputs = new ArrayList<>(Arrays.asList(surface, mImageReader.getSurface()));
+            if (mSequenceImageReader != null) {
+                outputs.add(mSequenceImageReader.getSurface());
+            }
+            mCameraDevice.createCaptureSession(outputs,
                     new CameraCaptureSession.StateCallback() {
 
                         @Override
@@ -804,6 +881,16 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
                         @Override
                         public void onConfigureFailed(
                                 @NonNull CameraCaptureSession cameraCaptureSession) {
+                            // The camera does not support the additional RAW or YUV
+                            // stream: capture the HDR sequences in JPEG
+                            if (mSequenceImageReader != null && mCameraDevice != null) {
+                                Log.w(TAG, "Sequence format not supported, using JPEG");
+                                mSequenceImageReader.close();
+                                mSequenceImageReader = null;
+                                mRawCharacteristics = null;
+                                createCameraPreviewSession();
+                                return;
+                            }
                             showToast("Failed");
                         }
                     }, null
@@ -846,6 +933,28 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
         mTextureView.setTransform(matrix);
     }
 
+    /**
+     * Enable the shutter only if a new HDR sequence can be processed.
+     *
+     * @param saturated {@code true} if the {@link HdrScheduler} is full
+     */
+    private void updateShutter(final boolean saturated) {
+        final Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                View view = getView();
+                if (view != null) {
+                    View shutter = view.findViewById(R.id.picture);
+                    shutter.setAlpha(saturated && mCameraPreferences.isHdrOn() ? 0.4f : 1f);
+                }
+            }
+        });
+    }
+
     /**
      * Initiate a still image capture.
      */
@@ -934,6 +1043,7 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
                                 mBestExposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
                                 mBestISO = result.get(CaptureResult.SENSOR_SENSITIVITY);
                                 mBestExposure += Math.log10((mBestISO / 100d)) / Math.log10(2d) * mBestExposure;
+                                mMeteringResult = result;
 
                                 // Then begin the capture of the sequence
                                 captureSequenceStillPicture(mBestExposure);
@@ -978,11 +1088,23 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
             final int captureRequestSize = mCameraPreferences.getNumHdrPhotos();
             final CaptureRequest[] captureRequest = new CaptureRequest[captureRequestSize];
             long[] exposure = getExposureTimes(bestExposure, captureRequestSize);
+            ImageReader imageReader = mSequenceImageReader != null ? mSequenceImageReader : mImageReader;
             for (int i = 0; i < captureRequestSize; i++) {
-                captureRequest[i] = setHdrCaptureRequest(mCameraDevice, mImageReader, rotation,
+                captureRequest[i] = setHdrCaptureRequest(mCameraDevice, imageReader, rotation,
                         true, exposure[i]);
             }
 
+            // The photos of the sequence, with the settings reported by their capture results
+            int iso = mCameraSettings.getIsoRange(mCameraSettings.getBackCamera()).getLower();
+            final List<Frame> frames = new ArrayList<>(captureRequestSize);
+            for (long exposureTime : exposure) {
+                frames.add(new Frame(exposureTime, iso));
+            }
+            mFrames = frames;
+
+            // Prepare the photos for the HDR as soon as they arrive
+            startFramePipeline(exposure.length);
+
             // Define the capture callback
             CameraCaptureSession.CaptureCallback CaptureCallback
                     = new CameraCaptureSession.CaptureCallback() {
@@ -995,6 +1117,15 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
                     if (request.getTag() != null) {
                         int photoNumber = (Integer) request.getTag();
 
+                        Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+                        Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+                        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+                        if (photoNumber > 0 && photoNumber <= frames.size()
+                                && exposureTime != null && sensitivity != null) {
+                            frames.get(photoNumber - 1).setCaptureResult(exposureTime,
+                                    sensitivity, timestamp != null ? timestamp : 0);
+                        }
+
                         if (photoNumber == captureRequestSize) {
                             // At the last photo captured inform the user that the procedure
                             // has ended and reset the counter for the next request
@@ -1015,6 +1146,37 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
         }
     }
 
+    /**
+     * Create the {@link FramePipeline} and the {@link PersistentJob} of a new HDR sequence,
+     * dropping the ones of the previous sequence if it has not been completed.
+     *
+     * @param size the number of photos of the sequence
+     */
+    private void startFramePipeline(int size) {
+        FramePipeline previous = mFramePipeline;
+        if (previous != null && !previous.isComplete()) {
+            previous.release();
+            if (mJob != null) {
+                StorageWriter.delete(mJob);
+            }
+        }
+        try {
+            mJob = PersistentJob.create(CameraPreferences.getJobsDir(getActivity()));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to store the HDR sequence, it will not be resumed", e);
+            mJob = null;
+        }
+
+        // The RAW frames are aligned by the HDR, on their color filter array
+        boolean raw = mRawCharacteristics != null;
+        FramePipeline framePipeline = new FramePipeline(size,
+                mCameraPreferences.getPhotoAlignment() && !raw, mCameraPreferences.getDecoder());
+        if (raw) {
+            framePipeline.setSensor(RawConverter.sensor(mRawCharacteristics, mMeteringResult));
+        }
+        mFramePipeline = framePipeline;
+    }
+
     /**
      * Compute exposures that will be used to shoot different
      * photos in order to create an HDR photo.
@@ -1178,6 +1340,10 @@ public class CameraFragment extends Fragment implements View.OnClickListener {
                 break;
             }
             case R.id.picture: {
+                if (mCameraPreferences.isHdrOn() && HdrScheduler.isSaturated()) {
+                    showToast(getString(R.string.hdr_busy));
+                    break;
+                }
                 takePicture();
                 break;
             }
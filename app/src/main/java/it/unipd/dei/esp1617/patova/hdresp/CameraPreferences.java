@@ -23,16 +23,36 @@ final class CameraPreferences {
      */
     private static final SparseArray<Double> EXPOSURE_VALUES = new SparseArray<>();
     private static final String APP_DIR = "HDRESP";
+
+    /**
+     * The JPEG decoders: chosen by {@link DecoderBenchmark}, OpenCV or {@link BitmapFactoryDecoder}
+     */
+    static final int DECODER_AUTO = 0;
+    static final int DECODER_OPENCV = 1;
+    static final int DECODER_BITMAP_FACTORY = 2;
+
     private static String mActualCameraResolution;
     private static int mHdrOn;
     private static int mNumHdrPhotos;
     private static int mHdrAlgorithm;
     private static int mToneMappingAlgorithm;
+    private static int mCalibrationLevel;
+    private static int mMergeTileRows;
+    private static int mMergeThreads;
+    private static int mFusionLevels;
+    private static int mDecoder;
     private static Double mExposureStepUp;
     private static Double mExposureStepDown;
     private static boolean mSaveIntermediatePhotos;
     private static boolean mPhotoAlignment;
+    private static boolean mProgressive;
+    private static boolean mYuvCapture;
+    private static boolean mRawCapture;
+    private static boolean mFastToneMapping;
+    private static int mToneMappingBudget;
+    private static int mHdrJobs;
     private static SharedPreferences mSharedPreferences;
+    private static ToneMapBudget.Costs sToneMapCosts;
 
     static {
         EXPOSURE_VALUES.append(1, 2d); // +1 stop
@@ -56,6 +76,17 @@ final class CameraPreferences {
         setHdrAlgorithm();
         setToneMappingAlgorithm();
         setPhotoAlignment();
+        setCalibrationLevel();
+        setMergeTileRows();
+        setMergeThreads();
+        setFusionLevels();
+        setProgressive();
+        setDecoder();
+        setYuvCapture();
+        setRawCapture();
+        setHdrJobs();
+        setFastToneMapping();
+        setToneMappingBudget();
         return INSTANCE;
     }
 
@@ -93,6 +124,113 @@ final class CameraPreferences {
         );
     }
 
+    /**
+     * Set in the {@link SharedPreferences} the choice of the user on the resolution used
+     * to calibrate the camera response.
+     */
+    static void setCalibrationLevel() {
+        mCalibrationLevel = Integer.valueOf(
+                mSharedPreferences.getString(SettingsFragment.HDR_CALIBRATION_LEVEL, "2")
+        );
+    }
+
+    /**
+     * Set in the {@link SharedPreferences} the choice of the user on the height of the bands
+     * merged in parallel.
+     */
+    static void setMergeTileRows() {
+        mMergeTileRows = Integer.valueOf(
+                mSharedPreferences.getString(SettingsFragment.MERGE_TILE_ROWS, "256")
+        );
+    }
+
+    /**
+     * Set in the {@link SharedPreferences} the choice of the user on the number of threads
+     * of the merge.
+     */
+    static void setMergeThreads() {
+        mMergeThreads = Integer.valueOf(
+                mSharedPreferences.getString(SettingsFragment.MERGE_THREADS, "0")
+        );
+    }
+
+    /**
+     * Set in the {@link SharedPreferences} the choice of the user on the levels of the pyramid
+     * of the exposure fusion.
+     */
+    static void setFusionLevels() {
+        mFusionLevels = Integer.valueOf(
+                mSharedPreferences.getString(SettingsFragment.HDR_FUSION_LEVELS, "0")
+        );
+    }
+
+    /**
+     * Set in the {@link SharedPreferences} the choice of the user on showing a low resolution
+     * preview of the HDR image before the full resolution one.
+     */
+    static void setProgressive() {
+        mProgressive = mSharedPreferences.getBoolean(SettingsFragment.HDR_PROGRESSIVE, true);
+    }
+
+    /**
+     * Set in the {@link SharedPreferences} the choice of the user on the JPEG decoder;
+     * the automatic choice is the fastest decoder found by {@link DecoderBenchmark}.
+     */
+    static void setDecoder() {
+        mDecoder = Integer.valueOf(
+                mSharedPreferences.getString(SettingsFragment.JPEG_DECODER, "0")
+        );
+        if (mDecoder == DECODER_AUTO) {
+            mDecoder = mSharedPreferences.getInt(SettingsFragment.JPEG_DECODER_BENCHMARK,
+                    DECODER_OPENCV);
+        }
+    }
+
+    /**
+     * Set in the {@link SharedPreferences} the choice of the user on capturing the photos
+     * of the HDR sequences in YUV.
+     */
+    static void setYuvCapture() {
+        mYuvCapture = mSharedPreferences.getBoolean(SettingsFragment.HDR_YUV_CAPTURE, false);
+    }
+
+    /**
+     * Set in the {@link SharedPreferences} the choice of the user on capturing the photos
+     * of the HDR sequences in RAW.
+     */
+    static void setRawCapture() {
+        mRawCapture = mSharedPreferences.getBoolean(SettingsFragment.HDR_RAW_CAPTURE, false);
+    }
+
+    /**
+     * Set in the {@link SharedPreferences} the choice of the user on the fast versions of
+     * the tone mapping algorithms.
+     */
+    static void setFastToneMapping() {
+        mFastToneMapping =
+                mSharedPreferences.getBoolean(SettingsFragment.HDR_FAST_TONE_MAPPING, true);
+    }
+
+    /**
+     * Set in the {@link SharedPreferences} the choice of the user on the time budget of the
+     * tone mapping.
+     */
+    static void setToneMappingBudget() {
+        mToneMappingBudget = Integer.valueOf(
+                mSharedPreferences.getString(SettingsFragment.HDR_TONE_MAPPING_BUDGET, "0")
+        );
+    }
+
+    /**
+     * Set in the {@link SharedPreferences} the choice of the user on the number of
+     * HDR images computed at the same time.
+     */
+    static void setHdrJobs() {
+        mHdrJobs = Integer.valueOf(
+                mSharedPreferences.getString(SettingsFragment.HDR_JOBS, "1")
+        );
+    }
+
     /**
      * Set in the {@link SharedPreferences} if the HDR is ON or OFF.
      */
@@ -137,6 +275,52 @@ final class CameraPreferences {
                 Environment.DIRECTORY_PICTURES + File.separator + APP_DIR);
     }
 
+    /**
+     * Retrieve the directory where the camera response curves are cached.
+     *
+     * @param context the context of the application
+     * @return the {@link File} that represents the directory
+     */
+    static File getResponseCacheDir(Context context) {
+        return new File(context.getFilesDir(), ResponseCache.DIR_NAME);
+    }
+
+    /**
+     * Retrieve the directory of the cache of the merged radiances, see {@link RadianceCache}.
+     * It is in the cache directory of the app: the system can clear it when low on storage.
+     *
+     * @param context the context of the application
+     * @return the {@link File} that represents the directory
+     */
+    static File getRadianceCacheDir(Context context) {
+        return new File(context.getCacheDir(), RadianceCache.DIR_NAME);
+    }
+
+    /**
+     * Retrieve the measured costs of the tone mapping algorithms, shared by all the HDR
+     * jobs of the process so that none of them overwrites the measures of the others.
+     *
+     * @param context the context of the application
+     * @return the costs, read from their file the first time
+     */
+    static synchronized ToneMapBudget.Costs getToneMapCosts(Context context) {
+        if (sToneMapCosts == null) {
+            sToneMapCosts = new ToneMapBudget.Costs(
+                    new File(context.getFilesDir(), ToneMapBudget.FILE_NAME));
+        }
+        return sToneMapCosts;
+    }
+
+    /**
+     * Retrieve the directory where the HDR jobs are stored until completed.
+     *
+     * @param context the context of the application
+     * @return the {@link File} that represents the directory
+     */
+    static File getJobsDir(Context context) {
+        return new File(context.getFilesDir(), PersistentJob.DIR_NAME);
+    }
+
     /**
      * Retrieve the user settings on the alignment.
      *
@@ -201,6 +385,106 @@ final class CameraPreferences {
         return mToneMappingAlgorithm;
     }
 
+    /**
+     * Retrieve the level of the image pyramid used to calibrate the camera response.
+     *
+     * @return the calibration level: 0 for the full resolution, 1 for half of it and so on.
+     */
+    int getCalibrationLevel() {
+        return mCalibrationLevel;
+    }
+
+    /**
+     * Retrieve the height of the bands merged in parallel.
+     *
+     * @return the number of rows of a band, 0 to merge the whole photo at once.
+     */
+    int getMergeTileRows() {
+        return mMergeTileRows;
+    }
+
+    /**
+     * Retrieve the number of threads of the merge.
+     *
+     * @return the number of threads, 0 for one per core.
+     */
+    int getMergeThreads() {
+        return mMergeThreads;
+    }
+
+    /**
+     * Retrieve the number of HDR images computed at the same time.
+     *
+     * @return the number of jobs run by {@link HdrScheduler} at the same time.
+     */
+    int getHdrJobs() {
+        return mHdrJobs;
+    }
+
+    /**
+     * Retrieve the levels of the pyramid of the exposure fusion.
+     *
+     * @return the levels of the pyramid, 0 for as many as possible.
+     */
+    int getFusionLevels() {
+        return mFusionLevels;
+    }
+
+    /**
+     * Retrieve whether the user wants a low resolution preview of the HDR image.
+     *
+     * @return {@code true} to show a preview before the full resolution image.
+     */
+    boolean isProgressive() {
+        return mProgressive;
+    }
+
+    /**
+     * Retrieve whether the user wants the photos of the HDR sequences in YUV.
+     *
+     * @return {@code true} to capture the sequences in YUV, {@code false} in JPEG.
+     */
+    boolean isYuvCapture() {
+        return mYuvCapture;
+    }
+
+    /**
+     * Retrieve whether the user wants the photos of the HDR sequences in RAW.
+     *
+     * @return {@code true} to capture the sequences in RAW, before the YUV and the JPEG.
+     */
+    boolean isRawCapture() {
+        return mRawCapture;
+    }
+
+    /**
+     * Retrieve whether the user wants the fast versions of the tone mapping algorithms.
+     *
+     * @return {@code true} to tone map with {@link HdrEngine#fastToneMap}.
+     */
+    boolean isFastToneMapping() {
+        return mFastToneMapping;
+    }
+
+    /**
+     * Retrieve the time budget of the tone mapping.
+     *
+     * @return the budget in milliseconds, {@link ToneMapBudget#NO_BUDGET} for no limit.
+     */
+    int getToneMappingBudget() {
+        return mToneMappingBudget;
+    }
+
+    /**
+     * Retrieve the JPEG decoder to use.
+     *
+     * @return the decoder chosen by the user or by {@link DecoderBenchmark}.
+     */
+    HdrEngine.Decoder getDecoder() {
+        return mDecoder == DECODER_BITMAP_FACTORY
+                ? BitmapFactoryDecoder.INSTANCE : HdrEngine.OPENCV_DECODER;
+    }
+
     /**
      * Retrieve the step-up of the exposure set by the user.
      *
@@ -1,6 +1,5 @@
 package it.unipd.dei.esp1617.patova.hdresp;
 
-import android.app.Activity;
 import android.content.Context;
 import android.graphics.ImageFormat;
 import android.hardware.camera2.CameraAccessException;
@@ -41,8 +40,8 @@ final class CameraSettings {
     private CameraSettings() {
     }
 
-    static CameraSettings getInstance(Activity activity) {
-        sCameraManager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
+    static CameraSettings getInstance(Context context) {
+        sCameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
         return INSTANCE;
     }
 
@@ -161,6 +160,33 @@ final class CameraSettings {
         return false;
     }
 
+    /**
+     * Check if the camera can capture RAW frames, straight from the sensor.
+     *
+     * @param cameraId ID of the camera
+     * @return {@code true} if the camera supports RAW capture, {@code false} otherwise
+     */
+    boolean isRawSupported(String cameraId) {
+        try {
+            CameraCharacteristics cameraCharacteristics =
+                    sCameraManager.getCameraCharacteristics(cameraId);
+
+            int[] capabilities = cameraCharacteristics.get(
+                    CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+            if (capabilities != null) {
+                for (int capability : capabilities) {
+                    if (capability == CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_RAW) {
+                        return true;
+                    }
+                }
+            }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+
+        return false;
+    }
+
     /**
      * Check if the flash is available for the camera.
      *
@@ -0,0 +1,116 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Process;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Small benchmark that picks the fastest JPEG decoder of the device.
+ * <p>
+ * It runs once, the first time the app starts, in background on the thread of the
+ * {@link PipelineTuner} and before the tuning: a synthetic photo is decoded a few
+ * times with OpenCV and with {@link BitmapFactoryDecoder}, and the fastest decoder is
+ * stored in the {@link SharedPreferences}, where the automatic choice of
+ * {@link CameraPreferences#getDecoder()} finds it.
+ */
+class DecoderBenchmark implements Runnable {
+
+    private static final String TAG = "DECODER_BENCHMARK";
+
+    /**
+     * Resolution of the synthetic photo: large enough to be dominated by the decoding,
+     * small enough to take well under a second.
+     */
+    private static final Size RESOLUTION = new Size(2048, 1536);
+
+    private static final int RUNS = 3;
+
+    private final Context mContext;
+
+    DecoderBenchmark(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Tell whether the benchmark has still to run on this device.
+     *
+     * @param context the context of the application
+     * @return {@code true} if no decoder has been chosen yet
+     */
+    static boolean isNeeded(Context context) {
+        return !PreferenceManager.getDefaultSharedPreferences(context)
+                .contains(SettingsFragment.JPEG_DECODER_BENCHMARK);
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        ByteBuffer jpeg = ByteBuffer.wrap(syntheticJpeg());
+        long openCv = time(HdrEngine.OPENCV_DECODER, jpeg);
+        long bitmapFactory;
+        try {
+            bitmapFactory = time(BitmapFactoryDecoder.INSTANCE, jpeg);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "BitmapFactory decoder not usable", e);
+            bitmapFactory = Long.MAX_VALUE;
+        } finally {
+            BitmapFactoryDecoder.clear();
+        }
+
+        int fastest = bitmapFactory < openCv
+                ? CameraPreferences.DECODER_BITMAP_FACTORY : CameraPreferences.DECODER_OPENCV;
+        Log.i(TAG, "OpenCV: " + openCv / 1000 + "us, BitmapFactory: " + bitmapFactory / 1000
+                + "us, chosen: " + fastest);
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putInt(SettingsFragment.JPEG_DECODER_BENCHMARK, fastest)
+                .apply();
+    }
+
+    /**
+     * Best time of a few decodes of the photo, after a warm up one.
+     *
+     * @return the time in nanoseconds
+     */
+    private static long time(HdrEngine.Decoder decoder, ByteBuffer jpeg) {
+        decoder.decode(jpeg, false).release();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            Mat image = decoder.decode(jpeg, false);
+            best = Math.min(best, System.nanoTime() - start);
+            image.release();
+        }
+        return best;
+    }
+
+    /**
+     * Encode a synthetic photo, with the same quality of the photos of the camera.
+     */
+    private static byte[] syntheticJpeg() {
+        List<Mat> photos = HdrBenchmark.Fixture.renderBracket(RESOLUTION, new float[]{1 / 60f});
+        MatOfByte jpeg = new MatOfByte();
+        MatOfInt params = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, 95);
+        try {
+            Imgcodecs.imencode(".jpg", photos.get(0), jpeg, params);
+            return jpeg.toArray();
+        } finally {
+            jpeg.release();
+            params.release();
+            for (Mat photo : photos) {
+                photo.release();
+            }
+        }
+    }
+}
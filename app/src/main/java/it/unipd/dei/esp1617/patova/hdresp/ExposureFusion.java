@@ -0,0 +1,199 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.photo.MergeMertens;
+import org.opencv.photo.Photo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exposure fusion (Mertens, Kautz and Van Reeth).
+ * <p>
+ * The photos are blended directly into a displayable image, weighting every
+ * pixel by its contrast, saturation and well-exposedness, in a Laplacian
+ * pyramid to avoid seams. It needs neither the exposure times nor the
+ * camera response, and no tone mapping.
+ * <p>
+ * OpenCV's {@link MergeMertens} always builds the deepest pyramid possible;
+ * this class does the same computation with a limited number of levels,
+ * which is faster and uses less memory.
+ * <p>
+ * It does not depend on Android.
+ */
+final class ExposureFusion {
+
+    /**
+     * Sigma of the well-exposedness gaussian, the same used by OpenCV.
+     */
+    private static final double SIGMA = 0.2;
+
+    private ExposureFusion() {
+    }
+
+    /**
+     * Fuse the photos of a sequence.
+     *
+     * @param images the photos, 8 bit BGR
+     * @param levels the levels of the pyramid, 0 to use {@link MergeMertens}
+     * @return the fused image, BGR with float values in [0, 1]
+     */
+    static Mat fuse(List<Mat> images, int levels) {
+        Mat output = new Mat();
+        if (levels <= 0) {
+            MergeMertens mergeMertens = Photo.createMergeMertens();
+            mergeMertens.process(images, output);
+            return output;
+        }
+
+        Mat first = images.get(0);
+        int maxLevel = (int) (Math.log(Math.min(first.rows(), first.cols())) / Math.log(2));
+        int top = Math.min(levels, maxLevel + 1) - 1;
+
+        // Weights of every pixel of every photo, normalized to sum to 1
+        List<Mat> weights = new ArrayList<>(images.size());
+        Mat weightSum = Mat.zeros(first.size(), CvType.CV_32F);
+        for (Mat image : images) {
+            Mat weight = weight(image);
+            Core.add(weightSum, weight, weightSum);
+            weights.add(weight);
+        }
+
+        List<Mat> result = new ArrayList<>(top + 1);
+        for (int i = 0; i < images.size(); i++) {
+            Mat weight = weights.get(i);
+            Core.divide(weight, weightSum, weight);
+
+            Mat image = new Mat();
+            images.get(i).convertTo(image, CvType.CV_32F, 1.0 / 255);
+            List<Mat> imagePyramid = laplacianPyramid(image, top);
+            List<Mat> weightPyramid = gaussianPyramid(weight, top);
+
+            Mat weight3 = new Mat();
+            for (int level = 0; level <= top; level++) {
+                Mat band = imagePyramid.get(level);
+                Imgproc.cvtColor(weightPyramid.get(level), weight3, Imgproc.COLOR_GRAY2BGR);
+                Core.multiply(band, weight3, band);
+                if (i == 0) {
+                    result.add(band);
+                } else {
+                    Core.add(result.get(level), band, result.get(level));
+                    band.release();
+                }
+            }
+            weight3.release();
+            release(weightPyramid);
+            weight.release();
+        }
+        weightSum.release();
+
+        // Collapse the blended pyramid
+        Mat up = new Mat();
+        for (int level = top; level > 0; level--) {
+            Mat lower = result.get(level - 1);
+            Imgproc.pyrUp(result.get(level), up, lower.size());
+            Core.add(lower, up, lower);
+            result.get(level).release();
+        }
+        up.release();
+        return result.get(0);
+    }
+
+    /**
+     * Weight of the pixels of a photo: contrast times saturation times well-exposedness.
+     *
+     * @param image the photo, 8 bit BGR
+     * @return the weights, {@code CV_32F}
+     */
+    private static Mat weight(Mat image) {
+        Mat img = new Mat();
+        image.convertTo(img, CvType.CV_32F, 1.0 / 255);
+
+        // Contrast: absolute value of the Laplacian of the gray image
+        Mat contrast = new Mat();
+        Imgproc.cvtColor(img, contrast, Imgproc.COLOR_BGR2GRAY);
+        Imgproc.Laplacian(contrast, contrast, CvType.CV_32F);
+        Core.absdiff(contrast, Scalar.all(0), contrast);
+
+        List<Mat> channels = new ArrayList<>(3);
+        Core.split(img, channels);
+        img.release();
+
+        // Saturation: standard deviation of the channels
+        Mat mean = Mat.zeros(image.size(), CvType.CV_32F);
+        for (Mat channel : channels) {
+            Core.add(mean, channel, mean);
+        }
+        Core.multiply(mean, Scalar.all(1.0 / channels.size()), mean);
+
+        // Well-exposedness: product of the gaussians of the channels, i.e. exp of the sum
+        Mat saturation = Mat.zeros(image.size(), CvType.CV_32F);
+        Mat exposure = Mat.zeros(image.size(), CvType.CV_32F);
+        Mat deviation = new Mat();
+        for (Mat channel : channels) {
+            Core.subtract(channel, mean, deviation);
+            Core.multiply(deviation, deviation, deviation);
+            Core.add(saturation, deviation, saturation);
+
+            Core.subtract(channel, Scalar.all(0.5), deviation);
+            Core.multiply(deviation, deviation, deviation);
+            Core.add(exposure, deviation, exposure);
+            channel.release();
+        }
+        deviation.release();
+        mean.release();
+        Core.multiply(saturation, Scalar.all(1.0 / channels.size()), saturation);
+        Core.sqrt(saturation, saturation);
+        Core.multiply(exposure, Scalar.all(-1 / (2 * SIGMA * SIGMA)), exposure);
+        Core.exp(exposure, exposure);
+
+        Core.multiply(contrast, saturation, contrast);
+        Core.multiply(contrast, exposure, contrast);
+        Core.add(contrast, Scalar.all(1e-12), contrast);
+        saturation.release();
+        exposure.release();
+        return contrast;
+    }
+
+    /**
+     * Build the Gaussian pyramid of an image, the image itself being the level 0.
+     */
+    private static List<Mat> gaussianPyramid(Mat image, int top) {
+        List<Mat> pyramid = new ArrayList<>(top + 1);
+        pyramid.add(image);
+        for (int level = 1; level <= top; level++) {
+            Mat down = new Mat();
+            Imgproc.pyrDown(pyramid.get(level - 1), down);
+            pyramid.add(down);
+        }
+        return pyramid;
+    }
+
+    /**
+     * Build the Laplacian pyramid of an image, reusing the image for the level 0.
+     */
+    private static List<Mat> laplacianPyramid(Mat image, int top) {
+        List<Mat> pyramid = gaussianPyramid(image, top);
+        Mat up = new Mat();
+        for (int level = 0; level < top; level++) {
+            Mat current = pyramid.get(level);
+            Imgproc.pyrUp(pyramid.get(level + 1), up, current.size());
+            Core.subtract(current, up, current);
+        }
+        up.release();
+        return pyramid;
+    }
+
+    /**
+     * Release the levels of a pyramid except the level 0, owned by the caller.
+     */
+    private static void release(List<Mat> pyramid) {
+        for (int level = 1; level < pyramid.size(); level++) {
+            pyramid.get(level).release();
+        }
+    }
+}
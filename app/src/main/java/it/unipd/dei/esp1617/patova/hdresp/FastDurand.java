@@ -0,0 +1,474 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Fast version of the tone mapping of Durand of {@link HdrEngine#toneMap}, with the same
+ * parameters.
+ * <p>
+ * The operator splits the log luminance in a base layer, smoothed with a bilateral
+ * filter, and a detail layer, then compresses only the contrast of the base. OpenCV
+ * computes the base with a bilateral filter at full resolution, that tests a window of
+ * 7x7 pixels for every pixel, and maps the image with about ten more passes on the whole
+ * float image. Here the base is computed with the piecewise-linear bilateral filter of
+ * Durand and Dorsey, at half the resolution: the log luminance is sampled at a few
+ * levels, and for every level the pixels are weighted by how close they are to it and
+ * blurred. Every block of 2x2 pixels is downscaled to its darkest and its brightest
+ * pixel, not to their mean, so that a highlight of a few pixels keeps its range: the
+ * range of the base sets the contrast of the whole image. The base of every pixel is
+ * interpolated, at full resolution, between the two levels around its own log luminance,
+ * in the same single pass that maps the image, in row bands on several threads, with
+ * the logarithms, the powers and the exponentials tabulated as in {@link GlobalToneMap}.
+ * <p>
+ * The pixels next to a sharp edge are the ones that differ the most from the operator of
+ * OpenCV; {@link HdrBenchmark} measures the largest difference. The pixels that OpenCV
+ * maps to NaN (black in every channel) are black here.
+ * <p>
+ * It does not depend on Android.
+ */
+final class FastDurand {
+
+    /**
+     * The parameters of {@link HdrEngine#toneMap}; the saturation is 1, so it does not
+     * change the colors.
+     */
+    private static final double GAMMA = 1.3;
+    private static final double CONTRAST = 4;
+    private static final double SIGMA_SPACE = 2;
+    private static final double SIGMA_COLOR = 2;
+
+    /**
+     * Levels of the bilateral filter per range sigma.
+     */
+    private static final int LEVELS_PER_SIGMA = 2;
+
+    /**
+     * Downscale of the levels of the bilateral filter: blocks of 2x2 pixels.
+     */
+    private static final int DOWNSAMPLE = 2;
+
+    /**
+     * Side of the blur of the levels, in downscaled pixels: the window of OpenCV has a
+     * radius of 1.5 sigma.
+     */
+    private static final int BLUR_SIZE = 2 * (int) Math.ceil(1.5 * SIGMA_SPACE / DOWNSAMPLE) + 1;
+
+    /**
+     * The luminances below it are clamped before the logarithm, as in OpenCV.
+     */
+    private static final float MIN_LUMINANCE = 1e-4f;
+
+    /**
+     * Entries of the table of the compression of the base, over its range.
+     */
+    private static final int GAIN_STEPS = 1024;
+
+    private FastDurand() {
+    }
+
+    /**
+     * Apply in place the tone mapping of Durand to an HDR image. The images that are not
+     * continuous 32 bit float with three channels are tone mapped by
+     * {@link HdrEngine#toneMap}.
+     *
+     * @param image   the HDR image
+     * @param threads the number of threads that map the bands of the image, 0 for one per
+     *                core
+     */
+    static void apply(Mat image, int threads) {
+        if (image.type() != CvType.CV_32FC3 || !image.isContinuous()) {
+            HdrEngine.toneMap(2, image);
+            return;
+        }
+        threads = threads <= 0 ? Runtime.getRuntime().availableProcessors() : threads;
+
+        // The linear tone mapping to [0, 1], as in OpenCV, applied to the downscaled
+        // luminance now and to the channels in the last pass
+        Mat values = image.reshape(1);
+        Core.MinMaxLocResult range = Core.minMaxLoc(values);
+        values.release();
+        float offset = 0;
+        float scale = 1;
+        // DBL_EPSILON, as in OpenCV
+        if (range.maxVal - range.minVal > Math.ulp(1.0)) {
+            offset = (float) range.minVal;
+            scale = (float) (1 / (range.maxVal - range.minVal));
+        }
+
+        Mat darkest = new Mat();
+        Mat brightest = new Mat();
+        Mat[] levels = null;
+        try {
+            downscale(image, offset, scale, darkest, brightest);
+            // The extremes of the blocks are the extremes of the full resolution image
+            double min = Core.minMaxLoc(darkest).minVal;
+            double max = Core.minMaxLoc(brightest).maxVal;
+            int count = Math.max(2,
+                    (int) Math.ceil((max - min) * LEVELS_PER_SIGMA / SIGMA_COLOR) + 1);
+            double step = Math.max(max - min, Math.ulp(1.0)) / (count - 1);
+            levels = levels(darkest, brightest, min, step, count);
+
+            // Compress the contrast of the base only: the new luminance is
+            // exp(base * (contrast - 1) + log)
+            float[] baseRange = baseRange(darkest, brightest, levels, (float) min,
+                    (float) (1 / step), threads);
+            darkest.release();
+            brightest.release();
+            double contrast = baseRange[1] > baseRange[0]
+                    ? CONTRAST / (baseRange[1] - baseRange[0]) : 1;
+            map(image, levels, offset, scale, (float) min, (float) (1 / step), baseRange,
+                    contrast, threads);
+        } finally {
+            darkest.release();
+            brightest.release();
+            if (levels != null) {
+                for (Mat level : levels) {
+                    level.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Downscale the log luminance of an image to half its size, every block of 2x2
+     * pixels to its darkest and to its brightest pixel.
+     *
+     * @param image     the image
+     * @param offset    the offset of the linear tone mapping
+     * @param scale     the scale of the linear tone mapping
+     * @param darkest   the log luminance of the darkest pixels
+     * @param brightest the log luminance of the brightest pixels
+     */
+    private static void downscale(Mat image, float offset, float scale, Mat darkest,
+                                  Mat brightest) {
+        Mat gray = new Mat();
+        Mat pooled = new Mat();
+        Mat block = Mat.ones(DOWNSAMPLE, DOWNSAMPLE, CvType.CV_8UC1);
+        try {
+            // The weights of the luminance add up to 1, so it is mapped as the channels
+            Imgproc.cvtColor(image, gray, Imgproc.COLOR_RGB2GRAY);
+            // Anchored at the top left, so that the nearest pixel of the downscale, the
+            // top left one of every block, holds the extreme of the block
+            Point anchor = new Point(0, 0);
+            Imgproc.erode(gray, pooled, block, anchor, 1, Core.BORDER_REPLICATE,
+                    new Scalar(0));
+            Imgproc.resize(pooled, darkest, new Size(), 1.0 / DOWNSAMPLE, 1.0 / DOWNSAMPLE,
+                    Imgproc.INTER_NEAREST);
+            Imgproc.dilate(gray, pooled, block, anchor, 1, Core.BORDER_REPLICATE,
+                    new Scalar(0));
+            Imgproc.resize(pooled, brightest, new Size(), 1.0 / DOWNSAMPLE, 1.0 / DOWNSAMPLE,
+                    Imgproc.INTER_NEAREST);
+        } finally {
+            gray.release();
+            pooled.release();
+            block.release();
+        }
+
+        for (Mat extreme : new Mat[]{darkest, brightest}) {
+            extreme.convertTo(extreme, -1, scale, -offset * scale);
+            Core.max(extreme, new Scalar(MIN_LUMINANCE), extreme);
+            Core.log(extreme, extreme);
+        }
+    }
+
+    /**
+     * Compute the levels of the piecewise-linear bilateral filter: the weighted mean of
+     * the neighbors of a pixel with the value of the level.
+     *
+     * @param darkest   the downscaled log luminance of the darkest pixels
+     * @param brightest the downscaled log luminance of the brightest pixels
+     * @param min       the value of the first level
+     * @param step      the step between two levels
+     * @param count     the number of levels
+     * @return the levels, downscaled
+     */
+    private static Mat[] levels(Mat darkest, Mat brightest, double min, double step,
+                                int count) {
+        Mat[] levels = new Mat[count];
+        Mat distance = new Mat();
+        Mat weight = new Mat();
+        Mat weights = new Mat();
+        Mat weighted = new Mat();
+        Size blur = new Size(BLUR_SIZE, BLUR_SIZE);
+        double sigma = SIGMA_SPACE / DOWNSAMPLE;
+        double exponent = -0.5 / (SIGMA_COLOR * SIGMA_COLOR);
+        try {
+            for (int i = 0; i < count; i++) {
+                Scalar value = new Scalar(min + i * step);
+                // The range weights of the two pixels of every block
+                Core.subtract(darkest, value, distance);
+                Core.multiply(distance, distance, weights, exponent);
+                Core.exp(weights, weights);
+                Core.multiply(weights, darkest, weighted);
+                Core.subtract(brightest, value, distance);
+                Core.multiply(distance, distance, weight, exponent);
+                Core.exp(weight, weight);
+                Core.add(weights, weight, weights);
+                Core.multiply(weight, brightest, weight);
+                Core.add(weighted, weight, weighted);
+
+                Imgproc.GaussianBlur(weights, weights, blur, sigma);
+                Imgproc.GaussianBlur(weighted, weighted, blur, sigma);
+                levels[i] = new Mat();
+                Core.divide(weighted, weights, levels[i]);
+            }
+        } catch (RuntimeException | Error e) {
+            for (Mat level : levels) {
+                if (level != null) {
+                    level.release();
+                }
+            }
+            throw e;
+        } finally {
+            distance.release();
+            weight.release();
+            weights.release();
+            weighted.release();
+        }
+        return levels;
+    }
+
+    /**
+     * Compute the range of the base, on the darkest and the brightest pixels of every
+     * block.
+     *
+     * @return the minimum and the maximum of the base
+     */
+    private static float[] baseRange(final Mat darkest, final Mat brightest,
+                                     final Mat[] levels, final float min,
+                                     final float invStep, int threads) {
+        int rows = darkest.rows();
+        final float[] rowMin = new float[rows];
+        final float[] rowMax = new float[rows];
+        GlobalToneMap.inBands(rows, threads, new GlobalToneMap.Band() {
+            @Override
+            public float process(int start, int end) {
+                int cols = darkest.cols();
+                float[] dark = new float[cols];
+                float[] bright = new float[cols];
+                float[][] levelRows = new float[levels.length][cols];
+                for (int r = start; r < end; r++) {
+                    darkest.get(r, 0, dark);
+                    brightest.get(r, 0, bright);
+                    for (int k = 0; k < levels.length; k++) {
+                        levels[k].get(r, 0, levelRows[k]);
+                    }
+                    float low = Float.MAX_VALUE;
+                    float high = -Float.MAX_VALUE;
+                    for (int c = 0; c < cols; c++) {
+                        low = Math.min(low, base(levelRows, c, (dark[c] - min) * invStep));
+                        high = Math.max(high,
+                                base(levelRows, c, (bright[c] - min) * invStep));
+                    }
+                    rowMin[r] = low;
+                    rowMax[r] = high;
+                }
+                return 0;
+            }
+        });
+
+        float[] range = {Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int r = 0; r < rows; r++) {
+            range[0] = Math.min(range[0], rowMin[r]);
+            range[1] = Math.max(range[1], rowMax[r]);
+        }
+        return range;
+    }
+
+    /**
+     * The base of a downscaled pixel, between the two levels around its value.
+     *
+     * @param levels the rows of the levels
+     * @param col    the column of the pixel
+     * @param t      the value of the pixel, in steps from the first level
+     */
+    private static float base(float[][] levels, int col, float t) {
+        int k = Math.max(0, Math.min(levels.length - 2, (int) t));
+        float weight = Math.max(0, Math.min(1, t - k));
+        return levels[k][col] + (levels[k + 1][col] - levels[k][col]) * weight;
+    }
+
+    /**
+     * Map the channels of the image in row bands: every channel times the new luminance
+     * over the old one, raised to the gamma.
+     */
+    private static void map(final Mat image, final Mat[] levels, float offset, float scale,
+                            float min, float invStep, float[] baseRange, double contrast,
+                            int threads) {
+        final Mapping mapping = new Mapping(image.cols(), levels[0].cols(), offset, scale,
+                min, invStep, baseRange, contrast);
+        GlobalToneMap.inBands(image.rows(), threads, new GlobalToneMap.Band() {
+            @Override
+            public float process(int start, int end) {
+                mapping.mapRows(image, levels, start, end);
+                return 0;
+            }
+        });
+    }
+
+    /**
+     * The tables of the mapping of the channels, shared by the bands.
+     */
+    private static final class Mapping {
+
+        private final float mOffset;
+        private final float mScale;
+        private final float mMin;
+        private final float mInvStep;
+
+        /**
+         * The downscaled columns around every column, and the weight of the right one.
+         */
+        private final int[] mLeft;
+        private final int[] mRight;
+        private final float[] mWeights;
+
+        /**
+         * The gain exp(base * (contrast - 1)), raised to the gamma, over the range of the
+         * base.
+         */
+        private final float[] mGains = new float[GAIN_STEPS + 2];
+        private final float mBaseMin;
+        private final float mInvBaseStep;
+
+        private final GlobalToneMap.Table mGammaTable = GlobalToneMap.power(1 / GAMMA);
+        private final GlobalToneMap.Table mLogTable = new GlobalToneMap.Table(
+                new GlobalToneMap.Function() {
+                    @Override
+                    public double apply(double x) {
+                        return Math.log(x);
+                    }
+                }, Math.log(MIN_LUMINANCE));
+
+        /**
+         * @param cols      the columns of the image
+         * @param smallCols the columns of the levels
+         * @param offset    the offset of the linear tone mapping
+         * @param scale     the scale of the linear tone mapping
+         * @param min       the value of the first level
+         * @param invStep   the inverse of the step between two levels
+         * @param baseRange the minimum and the maximum of the base
+         * @param contrast  the scale of the base
+         */
+        Mapping(int cols, int smallCols, float offset, float scale, float min,
+                float invStep, float[] baseRange, double contrast) {
+            mOffset = offset;
+            mScale = scale;
+            mMin = min;
+            mInvStep = invStep;
+
+            mLeft = new int[cols];
+            mRight = new int[cols];
+            mWeights = new float[cols];
+            for (int c = 0; c < cols; c++) {
+                float x = (c + 0.5f) / DOWNSAMPLE - 0.5f;
+                int x0 = (int) Math.floor(x);
+                mWeights[c] = x - x0;
+                mLeft[c] = Math.max(0, Math.min(smallCols - 1, x0));
+                mRight[c] = Math.max(0, Math.min(smallCols - 1, x0 + 1));
+            }
+
+            mBaseMin = baseRange[0];
+            double baseStep = Math.max(baseRange[1] - baseRange[0], Math.ulp(1.0))
+                    / GAIN_STEPS;
+            mInvBaseStep = (float) (1 / baseStep);
+            for (int i = 0; i < mGains.length; i++) {
+                mGains[i] = (float) Math.exp((mBaseMin + i * baseStep) * (contrast - 1)
+                        / GAMMA);
+            }
+        }
+
+        void mapRows(Mat image, Mat[] levels, int start, int end) {
+            int cols = image.cols();
+            int smallCols = levels[0].cols();
+            int smallRows = levels[0].rows();
+            int last = levels.length - 2;
+            float offset = mOffset;
+            float scale = mScale;
+            float min = mMin;
+            float invStep = mInvStep;
+            int[] left = mLeft;
+            int[] right = mRight;
+            float[] weights = mWeights;
+            float[] gains = mGains;
+            float baseMin = mBaseMin;
+            float invBaseStep = mInvBaseStep;
+            GlobalToneMap.Table gammaTable = mGammaTable;
+            GlobalToneMap.Table logTable = mLogTable;
+
+            float[] row = new float[cols * 3];
+            float[][] top = new float[levels.length][smallCols];
+            float[][] bottom = new float[levels.length][smallCols];
+            int loaded = Integer.MIN_VALUE;
+            for (int r = start; r < end; r++) {
+                float y = (r + 0.5f) / DOWNSAMPLE - 0.5f;
+                int y0 = (int) Math.floor(y);
+                float wy = y - y0;
+                if (y0 != loaded) {
+                    for (int k = 0; k < levels.length; k++) {
+                        levels[k].get(Math.max(0, y0), 0, top[k]);
+                        levels[k].get(Math.min(smallRows - 1, y0 + 1), 0, bottom[k]);
+                    }
+                    loaded = y0;
+                }
+
+                image.get(r, 0, row);
+                for (int c = 0, i = 0; c < cols; c++, i += 3) {
+                    float c0 = (row[i] - offset) * scale;
+                    float c1 = (row[i + 1] - offset) * scale;
+                    float c2 = (row[i + 2] - offset) * scale;
+                    float luminance = GlobalToneMap.luminance(c0, c1, c2);
+                    if (luminance <= 0) {
+                        row[i] = 0;
+                        row[i + 1] = 0;
+                        row[i + 2] = 0;
+                        continue;
+                    }
+                    if (luminance < MIN_LUMINANCE) {
+                        // The log luminance was clamped
+                        float clamp = MIN_LUMINANCE / luminance;
+                        c0 *= clamp;
+                        c1 *= clamp;
+                        c2 *= clamp;
+                        luminance = MIN_LUMINANCE;
+                    }
+
+                    // The base, between the two levels around the log luminance
+                    float t = (logTable.get(luminance) - min) * invStep;
+                    int k = Math.max(0, Math.min(last, (int) t));
+                    float wk = Math.max(0, Math.min(1, t - k));
+                    int x0 = left[c];
+                    int x1 = right[c];
+                    float wx = weights[c];
+                    float base0 = sample(top[k], bottom[k], x0, x1, wx, wy);
+                    float base1 = sample(top[k + 1], bottom[k + 1], x0, x1, wx, wy);
+                    float base = base0 + (base1 - base0) * wk;
+
+                    float g = Math.max(0, Math.min(GAIN_STEPS, (base - baseMin) * invBaseStep));
+                    int index = (int) g;
+                    float gain = gains[index] + (gains[index + 1] - gains[index]) * (g - index);
+                    row[i] = gammaTable.get(c0) * gain;
+                    row[i + 1] = gammaTable.get(c1) * gain;
+                    row[i + 2] = gammaTable.get(c2) * gain;
+                }
+                image.put(r, 0, row);
+            }
+        }
+
+        /**
+         * The bilinear interpolation of a level between two of its rows.
+         */
+        private static float sample(float[] top, float[] bottom, int left, int right,
+                                    float wx, float wy) {
+            float upper = top[left] + (top[right] - top[left]) * wx;
+            float lower = bottom[left] + (bottom[right] - bottom[left]) * wx;
+            return upper + (lower - upper) * wy;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A photo of an HDR sequence, with the settings it has actually been captured with.
+ * <p>
+ * The photo is set by the {@link ImageSaver} and the settings by the capture result
+ * of the camera, in any order: until the result arrives, the frame has the settings
+ * that have been requested. This way the HDR knows the exact exposure times without
+ * reading them back from the EXIF of the photos.
+ */
+final class Frame {
+
+    private final CountDownLatch mCaptureResult = new CountDownLatch(1);
+    private volatile ByteBuffer mJpeg;
+    private volatile long mImageTimestamp;
+    private volatile int mWidth;
+    private volatile int mHeight;
+    private volatile long mExposureTime;
+    private volatile int mIso;
+    private volatile long mTimestamp;
+
+    /**
+     * @param exposureTime the requested exposure time, in nanoseconds
+     * @param iso          the requested sensitivity of the sensor
+     */
+    Frame(long exposureTime, int iso) {
+        mExposureTime = exposureTime;
+        mIso = iso;
+    }
+
+    /**
+     * Set the photo.
+     *
+     * @param jpeg      the encoded photo, in a buffer of the {@link JpegBufferPool};
+     *                  {@code null} if it has been captured in YUV or RAW and goes straight
+     *                  to the {@link FramePipeline}
+     * @param timestamp the timestamp of the image, the start of its exposure
+     * @param width     the width of the image
+     * @param height    the height of the image
+     */
+    void setImage(ByteBuffer jpeg, long timestamp, int width, int height) {
+        mJpeg = jpeg;
+        mImageTimestamp = timestamp;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Set the settings reported by the capture result of the photo.
+     *
+     * @param exposureTime the exposure time, in nanoseconds
+     * @param iso          the sensitivity of the sensor
+     * @param timestamp    the start of the exposure, the same clock of the image timestamp
+     */
+    void setCaptureResult(long exposureTime, int iso, long timestamp) {
+        mExposureTime = exposureTime;
+        mIso = iso;
+        mTimestamp = timestamp;
+        mCaptureResult.countDown();
+    }
+
+    /**
+     * Wait for the capture result of the photo.
+     *
+     * @param timeoutMillis the maximum time to wait
+     * @return {@code true} if the settings are the ones reported by the capture result,
+     * {@code false} if they are still the requested ones
+     */
+    boolean awaitCaptureResult(long timeoutMillis) {
+        try {
+            return mCaptureResult.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return the encoded photo, {@code null} if not available
+     */
+    ByteBuffer getJpeg() {
+        return mJpeg;
+    }
+
+    /**
+     * Drop the encoded photo, when it is not needed anymore. Its buffer is given back to
+     * the pool by whoever decoded it.
+     */
+    void releaseJpeg() {
+        mJpeg = null;
+    }
+
+    /**
+     * @return the exposure time in seconds
+     */
+    float getExposureTime() {
+        return mExposureTime / 1e9f;
+    }
+
+    int getIso() {
+        return mIso;
+    }
+
+    /**
+     * @return the width of the image, 0 if it has not arrived yet
+     */
+    int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return the height of the image, 0 if it has not arrived yet
+     */
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return {@code true} if the image and the capture result belong to the same capture
+     */
+    boolean isConsistent() {
+        return mImageTimestamp == 0 || mTimestamp == 0 || mImageTimestamp == mTimestamp;
+    }
+}
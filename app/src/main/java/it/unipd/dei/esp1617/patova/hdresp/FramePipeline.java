@@ -0,0 +1,243 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.photo.AlignMTB;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prepares the photos of a sequence for the HDR while the following ones are
+ * still being captured.
+ * <p>
+ * Every photo is decoded on a background thread as soon as it is added (the
+ * photos captured in YUV are added already converted). When
+ * the alignment is enabled, its MTB pyramid is built too and, once the
+ * reference photo (the middle one, as in {@link AlignMTB}) is available, its
+ * shift with respect to the reference, see {@link MtbAligner}: building the
+ * pyramids is most of the work of the alignment. When the last photo arrives,
+ * only its decoding and shift are left; {@link #await()} then just crops the
+ * photos to their common area, with the same result of {@link AlignMTB#process},
+ * see {@link HdrEngine#shiftImages}.
+ * <p>
+ * The frames captured in RAW are only collected, with the parameters of the
+ * sensor: they are aligned and merged by {@link RawMerge}.
+ * <p>
+ * It does not depend on Android.
+ */
+final class FramePipeline {
+
+    private final int mSize;
+    private final boolean mAlign;
+    private final int mPivot;
+    private final Mat[] mImages;
+    private final MtbAligner.Pyramid[] mPyramids;
+    private final Point[] mShifts;
+    private final HdrEngine.Decoder mDecoder;
+    private final ExecutorService mExecutor;
+    private final List<Future<?>> mTasks = new ArrayList<>();
+    private RawMerge.Sensor mSensor;
+
+    /**
+     * @param size    the number of photos of the sequence
+     * @param align   whether the photos must be aligned with the MTB algorithm
+     * @param decoder the decoder of the photos
+     */
+    FramePipeline(int size, boolean align, HdrEngine.Decoder decoder) {
+        mSize = size;
+        mDecoder = decoder;
+        mAlign = align;
+        mPivot = size / 2;
+        mImages = new Mat[size];
+        mPyramids = new MtbAligner.Pyramid[size];
+        mShifts = new Point[size];
+
+        // A single thread: the tasks run in order and never compete with each other
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "FramePipeline");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Set the parameters of the sensor, for a sequence captured in RAW.
+     *
+     * @param sensor the parameters of the sensor that captures the frames
+     */
+    void setSensor(RawMerge.Sensor sensor) {
+        mSensor = sensor;
+    }
+
+    /**
+     * @return the parameters of the sensor if the sequence is captured in RAW,
+     * {@code null} otherwise
+     */
+    RawMerge.Sensor getSensor() {
+        return mSensor;
+    }
+
+    /**
+     * @return {@code true} if all the photos of the sequence have been added
+     */
+    synchronized boolean isComplete() {
+        return mTasks.size() >= mSize;
+    }
+
+    /**
+     * Add a photo of the sequence and start preparing it.
+     *
+     * @param index the position of the photo in the sequence, starting from 0
+     * @param jpeg  the encoded photo; it is only read, and must not be released before
+     *              the pipeline has completed or has been released
+     */
+    synchronized void add(final int index, final ByteBuffer jpeg) {
+        mTasks.add(mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                prepare(index, mDecoder.decode(jpeg, false));
+            }
+        }));
+    }
+
+    /**
+     * Add a photo of the sequence already decoded and start preparing it.
+     *
+     * @param index the position of the photo in the sequence, starting from 0
+     * @param image the photo, 8 bit BGR, or the RAW frame if the pipeline has a
+     *              {@link #getSensor() sensor}; it belongs to the pipeline from now on
+     */
+    synchronized void add(final int index, final Mat image) {
+        mTasks.add(mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                prepare(index, image);
+            }
+        }));
+    }
+
+    /**
+     * Store a photo and, if the photos are aligned, compute the shifts that are
+     * now possible. It always runs on the thread of the pipeline.
+     */
+    private void prepare(int index, Mat image) {
+        mImages[index] = image;
+        if (!mAlign) {
+            return;
+        }
+
+        mPyramids[index] = MtbAligner.build(mImages[index], Imgproc.COLOR_RGB2GRAY);
+        if (index == mPivot) {
+            mShifts[index] = new Point(0, 0);
+            for (int i = 0; i < mSize; i++) {
+                if (mPyramids[i] != null && mShifts[i] == null) {
+                    computeShift(i);
+                }
+            }
+        } else if (mShifts[mPivot] != null) {
+            computeShift(index);
+        }
+    }
+
+    private void computeShift(int index) {
+        mShifts[index] = MtbAligner.calculateShift(mPyramids[mPivot], mPyramids[index]);
+        mPyramids[index].release();
+        mPyramids[index] = null;
+    }
+
+    /**
+     * Wait until all the photos are prepared, then align them if requested.
+     * It must be called once, after all the photos have been added.
+     *
+     * @return the decoded (and aligned) photos; they are owned by the caller
+     * @throws IllegalStateException if a photo is missing or can not be prepared
+     */
+    List<Mat> await() {
+        List<Future<?>> tasks;
+        synchronized (this) {
+            tasks = new ArrayList<>(mTasks);
+        }
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (ExecutionException e) {
+            release();
+            throw new IllegalStateException("Unable to prepare the photos", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            release();
+            throw new IllegalStateException("Interrupted while preparing the photos", e);
+        }
+        mExecutor.shutdown();
+
+        List<Mat> images = new ArrayList<>(mSize);
+        for (int i = 0; i < mSize; i++) {
+            if (mImages[i] == null || mImages[i].empty() || (mAlign && mShifts[i] == null)) {
+                release();
+                throw new IllegalStateException("Photo " + i + " of the sequence is missing");
+            }
+            images.add(mImages[i]);
+        }
+        // From now on the photos belong to the caller
+        for (int i = 0; i < mSize; i++) {
+            mImages[i] = null;
+        }
+        if (!mAlign) {
+            return images;
+        }
+
+        mPyramids[mPivot].release();
+        mPyramids[mPivot] = null;
+        HdrEngine.shiftImages(images, mShifts);
+        return images;
+    }
+
+    /**
+     * @return the shifts of the photos, computed by {@link #await()}; {@code null} if
+     * the photos are not aligned
+     */
+    Point[] getShifts() {
+        return mAlign ? mShifts.clone() : null;
+    }
+
+    /**
+     * Stop the pipeline and release the photos prepared so far. The photos
+     * returned by {@link #await()} are not released.
+     */
+    void release() {
+        mExecutor.shutdownNow();
+        try {
+            // Do not release a photo while it is being prepared
+            mExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (int i = 0; i < mSize; i++) {
+            if (mImages[i] != null) {
+                mImages[i].release();
+                mImages[i] = null;
+            }
+            if (mPyramids[i] != null) {
+                mPyramids[i].release();
+                mPyramids[i] = null;
+            }
+        }
+    }
+}
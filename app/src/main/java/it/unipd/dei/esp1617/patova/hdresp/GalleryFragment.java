@@ -11,8 +11,6 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.support.annotation.NonNull;
 import android.support.v13.app.ActivityCompat;
 import android.support.v13.app.FragmentCompat;
@@ -25,6 +23,7 @@ import android.widget.Toast;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -63,12 +62,15 @@ public class GalleryFragment extends Fragment implements View.OnClickListener {
 
     private final static int PICK_IMAGE_REQUEST = 1;
 
+    private static List<ByteBuffer> mByteImages;
+
     /**
-     * A {@link Handler} for running tasks in the background.
+     * The HDR jobs of the photos of the gallery that may not be completed yet. They outlive
+     * the fragment, e.g. when the screen rotates or the camera is opened, and are cancelled
+     * only when the user leaves the app: unlike the sequences of the camera, the photos
+     * can be picked again.
      */
-    private Handler mBackgroundHandler;
-
-    private static List<byte[]> mByteImages;
+    private static final List<HdrScheduler.Job> mHdrJobs = new ArrayList<>();
 
     public static GalleryFragment newInstance() {
         return new GalleryFragment();
@@ -133,12 +135,6 @@ public class GalleryFragment extends Fragment implements View.OnClickListener {
         }
     }
 
-    @Override
-    public void onResume() {
-        super.onResume();
-        startBackgroundThread();
-    }
-
     /**
      * Start an intent that gives the user the ability to choose the images
      * that will be then processed.
@@ -155,15 +151,6 @@ public class GalleryFragment extends Fragment implements View.OnClickListener {
                 PICK_IMAGE_REQUEST);
     }
 
-    /**
-     * Starts a background thread and its {@link Handler}.
-     */
-    private void startBackgroundThread() {
-        HandlerThread backgroundThread = new HandlerThread("GalleryBackground");
-        backgroundThread.start();
-        mBackgroundHandler = new Handler(backgroundThread.getLooper());
-    }
-
     /*
         Selezione le immagini, le converte in array di byte e lancia l'Hdr()
     */
@@ -208,12 +195,12 @@ public class GalleryFragment extends Fragment implements View.OnClickListener {
                                     // Copia ogni singola immagine in un byteArray
                                     InputStream iStream = getActivity().getContentResolver().openInputStream(uri);
                                     byte[] byteArray = getBytes(iStream);
-                                    mByteImages.add(byteArray);
+                                    mByteImages.add(ByteBuffer.wrap(byteArray));
                                 }
 
                                 /*Check permissions and make Hdr*/
                                 if (checkStoragePermissions()) {
-                                    mBackgroundHandler.post(new Hdr(getActivity(), mByteImages));
+                                    startHdr();
                                 }
                             }
                         }
@@ -230,6 +217,23 @@ public class GalleryFragment extends Fragment implements View.OnClickListener {
 
     }
 
+    /**
+     * Submit the HDR of the selected images to the {@link HdrScheduler}.
+     */
+    private void startHdr() {
+        HdrScheduler.Job job = HdrScheduler.submit(getActivity(), new Hdr(getActivity(), mByteImages));
+        if (job == null) {
+            Toast.makeText(getActivity(), getString(R.string.hdr_busy), Toast.LENGTH_LONG).show();
+            return;
+        }
+        for (int i = mHdrJobs.size() - 1; i >= 0; i--) {
+            if (mHdrJobs.get(i).isDone()) {
+                mHdrJobs.remove(i);
+            }
+        }
+        mHdrJobs.add(job);
+    }
+
     /*
     Legge immagini e le salva byte per byte in un byteArray
      */
@@ -255,6 +259,20 @@ public class GalleryFragment extends Fragment implements View.OnClickListener {
         }
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        Activity activity = getActivity();
+        if (activity != null && activity.isFinishing()) {
+            // Nobody waits for the images anymore: the jobs release their resources and
+            // are not resumed
+            for (HdrScheduler.Job job : mHdrJobs) {
+                job.cancel();
+            }
+            mHdrJobs.clear();
+        }
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
@@ -268,7 +286,7 @@ public class GalleryFragment extends Fragment implements View.OnClickListener {
             case REQUEST_STORAGE_PERMISSION: {
                 if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
                     Log.i(TAG, "Storage permission granted.");
-                    mBackgroundHandler.post(new Hdr(getActivity(), mByteImages));
+                    startHdr();
                 } else {
                     Log.i(TAG, "Storage permission NOT granted.");
                     showMissingPermissionError(getString(R.string.storage_permission_not_granted_error));
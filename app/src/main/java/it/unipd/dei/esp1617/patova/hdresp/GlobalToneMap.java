@@ -0,0 +1,408 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fast versions of the global tone mapping operators of {@link HdrEngine#toneMap}: Drago
+ * and Reinhard, with the same parameters.
+ * <p>
+ * Once a few statistics of the image are known, both operators map every pixel with a
+ * function of its luminance (and, for Reinhard, of the channel itself), but OpenCV
+ * computes them with about a dozen passes on the whole float image, with a logarithm or
+ * a power per pixel. Here the statistics of the luminance are computed on a subsample of
+ * about {@value #SAMPLES} pixels, the functions are tabulated, and the image is mapped in
+ * a single pass, in row bands on several threads; a last vectorized pass scales it to
+ * [0, 1]. The range of the radiance is still computed exactly, because a few highlights
+ * missed by the subsample would change the whole image.
+ * <p>
+ * The tables are indexed by the bits of the floats, that is on a logarithmic scale, with
+ * a relative step of 1/1024: they are accurate to 0.1%. The statistics of the subsample
+ * move no pixel by more than {@link #TOLERANCE} with respect to the operators of OpenCV,
+ * as measured by {@link #largestDifference}, except the pixels that OpenCV maps to NaN
+ * (black in every channel), which are black here.
+ * <p>
+ * It does not depend on Android.
+ */
+final class GlobalToneMap {
+
+    /**
+     * Largest difference of a channel of a pixel from the operators of OpenCV, on the
+     * [0, 1] output: two levels of the 8 bit image.
+     */
+    static final double TOLERANCE = 2 / 255.0;
+
+    /**
+     * Pixels on which the statistics are computed.
+     */
+    private static final int SAMPLES = 1 << 18;
+
+    /**
+     * Rows of a band, mapped by a thread.
+     */
+    static final int BAND_ROWS = 64;
+
+    /**
+     * Weights of {@link org.opencv.imgproc.Imgproc#COLOR_RGB2GRAY}, used by OpenCV for the
+     * luminance.
+     */
+    private static final float WEIGHT_0 = 0.299f;
+    private static final float WEIGHT_1 = 0.587f;
+    private static final float WEIGHT_2 = 0.114f;
+
+    /**
+     * The luminances below it are clamped in the logarithmic statistics, as in OpenCV.
+     */
+    private static final double MIN_LOG_LUMINANCE = 1e-4;
+
+    /**
+     * The parameters of {@link HdrEngine#toneMap}.
+     */
+    private static final double DRAGO_GAMMA = 1.3;
+    private static final double DRAGO_BIAS = 0.85;
+    private static final double REINHARD_GAMMA = 0.8;
+
+    /**
+     * A function of a positive float, tabulated on a logarithmic scale.
+     */
+    static final class Table {
+
+        private static final int MANTISSA_BITS = 10;
+        private static final int SHIFT = 23 - MANTISSA_BITS;
+        private static final int OCTAVES = 24;
+
+        /**
+         * The bits of 2^-{@value #OCTAVES}, the smallest tabulated value: below it the
+         * function is its value in 0.
+         */
+        private static final int MIN_BITS = (127 - OCTAVES) << 23;
+
+        private final float[] mValues = new float[(OCTAVES << MANTISSA_BITS) + 1];
+        private final float mZero;
+
+        /**
+         * @param function the function, on (0, 1]
+         * @param zero     the value of the function in 0
+         */
+        Table(Function function, double zero) {
+            for (int i = 0; i < mValues.length; i++) {
+                // The middle of the floats that share the entry
+                float x = Float.intBitsToFloat(MIN_BITS + (i << SHIFT) + (1 << (SHIFT - 1)));
+                mValues[i] = (float) function.apply(x);
+            }
+            mZero = (float) zero;
+        }
+
+        float get(float x) {
+            // Negative for the negative floats and for the ones below the table
+            int index = (Float.floatToRawIntBits(x) - MIN_BITS) >> SHIFT;
+            if (index < 0) {
+                return mZero;
+            }
+            return mValues[Math.min(index, mValues.length - 1)];
+        }
+    }
+
+    interface Function {
+        double apply(double x);
+    }
+
+    /**
+     * Some rows of an image, processed by a thread of {@link #inBands}.
+     */
+    interface Band {
+        /**
+         * @param start the first row
+         * @param end   the row after the last one
+         * @return the largest value of the rows
+         */
+        float process(int start, int end);
+    }
+
+    private GlobalToneMap() {
+    }
+
+    /**
+     * The largest absolute difference between a tone mapped image and the one of OpenCV,
+     * over the channels of the pixels that OpenCV does not map to NaN.
+     *
+     * @param image     the tone mapped image
+     * @param reference the image tone mapped by OpenCV, of the same size and type
+     * @return the difference
+     */
+    static double largestDifference(Mat image, Mat reference) {
+        Mat values = reference.reshape(1);
+        Mat difference = new Mat();
+        Mat defined = new Mat();
+        try {
+            Core.absdiff(image.reshape(1), values, difference);
+            // NaN is the only value that is not equal to itself
+            Core.compare(values, values, defined, Core.CMP_EQ);
+            if (Core.countNonZero(defined) == 0) {
+                return 0;
+            }
+            return Core.minMaxLoc(difference, defined).maxVal;
+        } finally {
+            values.release();
+            difference.release();
+            defined.release();
+        }
+    }
+
+    /**
+     * @param toneAlg the tone mapping algorithm, see {@link HdrEngine#toneMap}
+     * @return {@code true} if the algorithm has a fast version
+     */
+    static boolean supports(int toneAlg) {
+        return toneAlg == 1 || toneAlg == 4;
+    }
+
+    /**
+     * Apply in place a tone mapping algorithm to an HDR image. The images that are not
+     * continuous 32 bit float with three channels, and the algorithms with no fast version,
+     * are tone mapped by {@link HdrEngine#toneMap}.
+     *
+     * @param toneAlg the tone mapping algorithm: 1 Drago, 4 Reinhard
+     * @param image   the HDR image
+     * @param threads the number of threads that map the bands of the image, 0 for one
+     *                per core
+     */
+    static void apply(int toneAlg, Mat image, int threads) {
+        if (!supports(toneAlg) || image.type() != CvType.CV_32FC3 || !image.isContinuous()) {
+            HdrEngine.toneMap(toneAlg, image);
+            return;
+        }
+
+        // The linear tone mapping that both operators start with
+        Mat values = image.reshape(1);
+        Core.MinMaxLocResult range = Core.minMaxLoc(values);
+        values.release();
+        float offset = 0;
+        float scale = 1;
+        // DBL_EPSILON, as in OpenCV
+        if (range.maxVal - range.minVal > Math.ulp(1.0)) {
+            offset = (float) range.minVal;
+            scale = (float) (1 / (range.maxVal - range.minVal));
+        }
+
+        float[] luminances = sample(image, offset, scale);
+        final Table luminanceTable;
+        final Table gammaTable;
+        if (toneAlg == 1) {
+            luminanceTable = drago(luminances);
+            gammaTable = power(1 / DRAGO_GAMMA);
+        } else {
+            luminanceTable = reinhard(luminances);
+            gammaTable = power(1 / REINHARD_GAMMA);
+        }
+
+        float max = map(toneAlg == 1, image, offset, scale, luminanceTable, gammaTable,
+                threads <= 0 ? Runtime.getRuntime().availableProcessors() : threads);
+
+        // The linear tone mapping that both operators end with: the minimum is 0, at
+        // the pixels that are 0 in one channel at least
+        if (max > 0) {
+            image.convertTo(image, -1, 1 / max);
+        }
+    }
+
+    /**
+     * The luminances of a subsample of the image, normalized to [0, 1].
+     */
+    private static float[] sample(Mat image, float offset, float scale) {
+        int rows = image.rows();
+        int cols = image.cols();
+        int step = Math.max(1, (int) Math.sqrt((double) rows * cols / SAMPLES));
+        float[] row = new float[cols * 3];
+        float[] luminances = new float[((rows + step - 1) / step) * ((cols + step - 1) / step)];
+        int count = 0;
+        for (int r = 0; r < rows; r += step) {
+            image.get(r, 0, row);
+            for (int c = 0; c < cols; c += step) {
+                int i = c * 3;
+                luminances[count++] = luminance((row[i] - offset) * scale,
+                        (row[i + 1] - offset) * scale, (row[i + 2] - offset) * scale);
+            }
+        }
+        return luminances;
+    }
+
+    /**
+     * The table of Drago: the scale of the channels of a pixel, raised to the final gamma,
+     * as a function of its luminance.
+     */
+    private static Table drago(float[] luminances) {
+        double logSum = 0;
+        double maxLuminance = 0;
+        for (float luminance : luminances) {
+            logSum += Math.log(Math.max(luminance, MIN_LOG_LUMINANCE));
+            maxLuminance = Math.max(maxLuminance, luminance);
+        }
+        final double mean = Math.exp(logSum / luminances.length);
+        final double max = maxLuminance / mean;
+        final double exponent = Math.log(DRAGO_BIAS) / Math.log(0.5);
+        return new Table(new Function() {
+            @Override
+            public double apply(double x) {
+                double l = x / mean;
+                double mapped = Math.log(l + 1) / Math.log(2 + 8 * Math.pow(l / max, exponent));
+                return Math.pow(mapped / l, 1 / DRAGO_GAMMA);
+            }
+        }, Math.pow(1 / Math.log(2), 1 / DRAGO_GAMMA));
+    }
+
+    /**
+     * The table of Reinhard: the adaptation of a pixel, as a function of its luminance.
+     */
+    private static Table reinhard(float[] luminances) {
+        double logSum = 0;
+        double logMin = Double.MAX_VALUE;
+        double logMax = -Double.MAX_VALUE;
+        for (float luminance : luminances) {
+            double log = Math.log(Math.max(luminance, MIN_LOG_LUMINANCE));
+            logSum += log;
+            logMin = Math.min(logMin, log);
+            logMax = Math.max(logMax, log);
+        }
+        double logMean = logSum / luminances.length;
+        double key = logMax > logMin ? (logMax - logMean) / (logMax - logMin) : 0;
+        final double mapKey = 0.3 + 0.7 * Math.pow(key, 1.4);
+        return new Table(new Function() {
+            @Override
+            public double apply(double x) {
+                return Math.pow(x, mapKey);
+            }
+        }, 0);
+    }
+
+    static Table power(final double exponent) {
+        return new Table(new Function() {
+            @Override
+            public double apply(double x) {
+                return Math.pow(x, exponent);
+            }
+        }, 0);
+    }
+
+    /**
+     * Map the image in row bands, in parallel.
+     *
+     * @return the largest mapped value, that the image has to be divided by
+     */
+    private static float map(final boolean drago, final Mat image, final float offset,
+                             final float scale, final Table luminanceTable,
+                             final Table gammaTable, int threads) {
+        return inBands(image.rows(), threads, new Band() {
+            @Override
+            public float process(int start, int end) {
+                return mapRows(drago, image, start, end, offset, scale, luminanceTable,
+                        gammaTable);
+            }
+        });
+    }
+
+    /**
+     * Process the rows of an image in bands of {@link #BAND_ROWS}, in parallel.
+     *
+     * @param rows    the rows of the image
+     * @param threads the number of threads
+     * @param band    the processing of a band
+     * @return the largest of the values returned by the bands
+     */
+    static float inBands(int rows, int threads, final Band band) {
+        if (threads == 1 || rows <= BAND_ROWS) {
+            return band.process(0, rows);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Float>> bands = new ArrayList<>();
+        try {
+            for (int start = 0; start < rows; start += BAND_ROWS) {
+                final int bandStart = start;
+                final int bandEnd = Math.min(rows, start + BAND_ROWS);
+                bands.add(executor.submit(new Callable<Float>() {
+                    @Override
+                    public Float call() {
+                        return band.process(bandStart, bandEnd);
+                    }
+                }));
+            }
+
+            float max = -Float.MAX_VALUE;
+            for (Future<Float> result : bands) {
+                max = Math.max(max, result.get());
+            }
+            return max;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Tone mapping interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Map some rows of the image in place, before the final scale.
+     *
+     * @return the largest mapped value of the rows
+     */
+    private static float mapRows(boolean drago, Mat image, int start, int end, float offset,
+                                 float scale, Table luminanceTable, Table gammaTable) {
+        float[] row = new float[image.cols() * 3];
+        float max = 0;
+        for (int r = start; r < end; r++) {
+            image.get(r, 0, row);
+            for (int i = 0; i < row.length; i += 3) {
+                float c0 = (row[i] - offset) * scale;
+                float c1 = (row[i + 1] - offset) * scale;
+                float c2 = (row[i + 2] - offset) * scale;
+                float luminance = luminance(c0, c1, c2);
+                if (drago) {
+                    // Every channel times the same scale, all raised to the gamma
+                    float factor = luminanceTable.get(luminance);
+                    c0 = gammaTable.get(c0) * factor;
+                    c1 = gammaTable.get(c1) * factor;
+                    c2 = gammaTable.get(c2) * factor;
+                } else {
+                    float adaptation = luminanceTable.get(luminance);
+                    c0 = gammaTable.get(reinhard(c0, adaptation));
+                    c1 = gammaTable.get(reinhard(c1, adaptation));
+                    c2 = gammaTable.get(reinhard(c2, adaptation));
+                }
+                row[i] = c0;
+                row[i + 1] = c1;
+                row[i + 2] = c2;
+                max = Math.max(max, Math.max(c0, Math.max(c1, c2)));
+            }
+            image.put(r, 0, row);
+        }
+        return max;
+    }
+
+    private static float reinhard(float channel, float adaptation) {
+        float sum = adaptation + channel;
+        return sum > 0 ? channel / sum : 0;
+    }
+
+    static float luminance(float c0, float c1, float c2) {
+        return WEIGHT_0 * c0 + WEIGHT_1 * c1 + WEIGHT_2 * c2;
+    }
+}
@@ -1,189 +1,347 @@
 package it.unipd.dei.esp1617.patova.hdresp;
 
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.FragmentManager;
 import android.app.FragmentTransaction;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.Build;
 import android.support.media.ExifInterface;
 import android.support.v4.content.FileProvider;
 import android.util.Log;
 import android.widget.Toast;
 
-import org.opencv.android.Utils;
-import org.opencv.core.Core;
-import org.opencv.core.CvException;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfByte;
 import org.opencv.core.MatOfFloat;
-import org.opencv.core.Scalar;
-import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
-import org.opencv.photo.AlignMTB;
-import org.opencv.photo.CalibrateDebevec;
-import org.opencv.photo.CalibrateRobertson;
-import org.opencv.photo.MergeDebevec;
-import org.opencv.photo.MergeRobertson;
-import org.opencv.photo.Photo;
-import org.opencv.photo.TonemapDrago;
-import org.opencv.photo.TonemapDurand;
-import org.opencv.photo.TonemapMantiuk;
-import org.opencv.photo.TonemapReinhard;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 class Hdr implements Runnable {
 
     private static final String TAG = "HDR";
+
+    /**
+     * Number of the latest sequence of photos: the refinement of a sequence is
+     * skipped if a newer one has already been taken.
+     */
+    private static final AtomicInteger sLatestSequence = new AtomicInteger();
+
+    /**
+     * The sequence whose full resolution image is being computed in the background,
+     * if any. It is cancelled as soon as a new sequence starts.
+     */
+    private static Hdr sRefining;
+
+    /**
+     * How long to wait for the capture result of a photo, that usually arrives before
+     * the photo itself.
+     */
+    private static final long CAPTURE_RESULT_TIMEOUT_MS = 1000;
+
+    /**
+     * How many times a {@link PersistentJob} is started before giving up on it: a job
+     * that keeps killing the process must not be resumed forever.
+     */
+    private static final int MAX_ATTEMPTS = 2;
+
+    /**
+     * The keys of the parameters of a {@link PersistentJob}.
+     */
+    private static final String KEY_ALIGN = "align";
+    private static final String KEY_HDR_ALGORITHM = "hdrAlgorithm";
+    private static final String KEY_TONE_MAPPING_ALGORITHM = "toneMappingAlgorithm";
+    private static final String KEY_CALIBRATION_LEVEL = "calibrationLevel";
+    private static final String KEY_MERGE_TILE_ROWS = "mergeTileRows";
+    private static final String KEY_MERGE_THREADS = "mergeThreads";
+    private static final String KEY_FUSION_LEVELS = "fusionLevels";
+    private static final String KEY_FAST_TONE_MAPPING = "fastToneMapping";
+    private static final String KEY_TONE_MAPPING_BUDGET = "toneMappingBudget";
+    private static final String KEY_CAMERA_ID = "cameraId";
+    private static final String KEY_DESTINATION = "destination";
+    private static final String KEY_FRAMES = "frames";
+    private static final String KEY_EXPOSURE_TIMES = "exposureTimes";
+    private static final String KEY_ISO = "iso";
+    private static final String KEY_ATTEMPTS = "attempts";
+    private static final String KEY_SCALE = "scale";
+    private static final String PREFIX_SENSOR = "sensor.";
+
+    /**
+     * The key of the response curve of the photos of the gallery, calibrated for a
+     * single job and kept in its directory.
+     */
+    private static final String RESPONSE_KEY = "response";
+
+    /**
+     * Scale of the photos of the preview.
+     */
+    private static final double REDUCED_SCALE = 0.25;
+
     private final boolean align;
     private Mat matTime;
-    private final List<byte[]> imagesByte;
-    private List<Mat> imagesMat;
+    private final List<ByteBuffer> imagesByte;
+    private final List<Frame> mFrames;
+    private float[] mExposureTimes;
+    private List<Mat> imagesMat = new ArrayList<>();
+    private String mFormat;
+    private int mCaptureWidth;
+    private int mCaptureHeight;
     private final int hdrAlg;
     private final int toneAlg;
-    private final Mat resp;
-    private final Mat output;
+    private Mat output;
     private final Context mContext;
+    private final HdrEngine mEngine;
+    private final String mCameraId;
+    private FramePipeline mFramePipeline;
+    private final RawMerge.Sensor mRawSensor;
+    private List<Mat> mPipelineImages;
+    private boolean mPipelineAligned;
+    private boolean mImagesAligned;
+    private final boolean mProgressive;
+    private final int mSequence;
+    private int mIso;
+    private final Properties mParameters;
+    private final File mDestination;
+    private PersistentJob mJob;
+    private final boolean mResumed;
+    private Point[] mShifts;
+    private MemoryPlanner.Plan mPlan;
+    private boolean mEncodedSpilled;
+    private RadianceCache mRadianceCache;
+    private String mRadianceKey;
+    private Mat mCachedRadiance;
+    private final ToneMapBudget mToneMapBudget;
+
+    /**
+     * @param context         the context of the activity that started the HDR
+     * @param imagesArrayByte the encoded photos, whose exposure times are read from their EXIF
+     */
+    Hdr(Context context, List<ByteBuffer> imagesArrayByte) {
+        this(context, imagesArrayByte, null, null, null, null, null);
+    }
+
+    /**
+     * @param context       the context of the activity that started the HDR
+     * @param frames        the photos of the sequence, with their capture settings
+     * @param cameraId      the id of the camera that took the photos, used to reuse the
+     *                      cached response curve
+     * @param framePipeline the pipeline that has been decoding the photos while they were
+     *                      captured, {@code null} to decode them here
+     * @param job           the job where the {@link ImageSaver} has stored the photos,
+     *                      {@code null} if the sequence is not persisted
+     */
+    Hdr(Context context, List<Frame> frames, String cameraId, FramePipeline framePipeline,
+        PersistentJob job) {
+        this(context, jpegs(frames), frames, cameraId, framePipeline, job, null);
+    }
+
+    /**
+     * Resume a job left by a previous process, with the settings it has been started with.
+     *
+     * @param context the context of the activity that resumes the job
+     * @param job     the job
+     * @return the HDR of the job
+     * @throws IOException if the parameters of the job cannot be read
+     */
+    static Hdr resume(Context context, PersistentJob job) throws IOException {
+        Properties parameters = job.getParameters();
+        return new Hdr(context, new ArrayList<ByteBuffer>(), null,
+                parameters.getProperty(KEY_CAMERA_ID), null, job, parameters);
+    }
 
-    Hdr(Context context, List<byte[]> imagesArrayByte) {
+    private Hdr(Context context, List<ByteBuffer> imagesArrayByte, List<Frame> frames,
+                String cameraId, FramePipeline framePipeline, PersistentJob job,
+                Properties parameters) {
 
         CameraPreferences cameraPreferences = CameraPreferences.getInstance(context);
 
         mContext = context;
         imagesByte = imagesArrayByte;
+        mFrames = frames;
+        // Decided now: decoding the photos releases their JPEGs. Only the photos captured
+        // in YUV (or RAW) have none; a resumed job finds out once its photos are read
+        mFormat = imagesArrayByte.isEmpty() ? ResponseCache.FORMAT_YUV
+                : ResponseCache.FORMAT_JPEG;
+        mSequence = sLatestSequence.incrementAndGet();
+        mJob = job;
+        mResumed = parameters != null;
+
+        // Retrieve user preferences, or the ones the job has been started with
+        if (parameters == null) {
+            parameters = newParameters(cameraPreferences, cameraId, framePipeline);
+        }
+        mParameters = parameters;
+        align = Boolean.parseBoolean(parameters.getProperty(KEY_ALIGN));
+        hdrAlg = Integer.parseInt(parameters.getProperty(KEY_HDR_ALGORITHM));
+        toneAlg = Integer.parseInt(parameters.getProperty(KEY_TONE_MAPPING_ALGORITHM));
+        // A resumed job is already late: no preview
+        mProgressive = !mResumed && cameraPreferences.isProgressive();
+        mDestination = new File(parameters.getProperty(KEY_DESTINATION));
+
+        mCameraId = cameraId;
+        mFramePipeline = framePipeline;
+        mRawSensor = RawMerge.Sensor.load(parameters, PREFIX_SENSOR);
+        mEngine = new HdrEngine(align, hdrAlg, toneAlg);
+        mEngine.setCalibrationLevel(
+                Integer.parseInt(parameters.getProperty(KEY_CALIBRATION_LEVEL)));
+        mEngine.setMergeTiling(Integer.parseInt(parameters.getProperty(KEY_MERGE_TILE_ROWS)),
+                Integer.parseInt(parameters.getProperty(KEY_MERGE_THREADS)));
+        mEngine.setFusionLevels(Integer.parseInt(parameters.getProperty(KEY_FUSION_LEVELS)));
+        // Not the merge threads: the fast operators need no memory per thread, so they use
+        // every core, as the HdrBenchmark measures them, shared among the jobs that can
+        // run at the same time
+        int cores = Runtime.getRuntime().availableProcessors();
+        int jobs = Math.max(1, cameraPreferences.getHdrJobs());
+        mEngine.setFastToneMap(
+                Boolean.parseBoolean(parameters.getProperty(KEY_FAST_TONE_MAPPING)),
+                jobs == 1 ? 0 : Math.max(1, cores / jobs));
+        // The jobs started before the budget existed have none
+        mToneMapBudget = new ToneMapBudget(CameraPreferences.getToneMapCosts(context),
+                Long.parseLong(parameters.getProperty(KEY_TONE_MAPPING_BUDGET,
+                        Long.toString(ToneMapBudget.NO_BUDGET))));
+        mEngine.setToneMapBudget(mToneMapBudget);
+        mEngine.setDecoder(cameraPreferences.getDecoder(), 0);
+        mEngine.setStageListener(new HdrEngine.StageListener() {
+            @Override
+            public void onStageCompleted(String stage, long millis) {
+                Log.d(TAG, stage + " finito in : " + (int) millis + "ms");
+            }
+        });
 
-        // Retrieve user preferences
-        align = cameraPreferences.getPhotoAlignment();
-        hdrAlg = cameraPreferences.getHdrAlgorithm();
-        toneAlg = cameraPreferences.getToneMappingAlgorithm();
+        if (frames != null && mJob != null) {
+            // The photos are being stored in the job: it is complete with its parameters,
+            // with the requested exposure times until the capture results are read.
+            // They are committed by startJob, once the photos have been written
+            float[] times = new float[frames.size()];
+            for (int i = 0; i < frames.size(); i++) {
+                times[i] = frames.get(i).getExposureTime();
+            }
+            mParameters.setProperty(KEY_FRAMES, Integer.toString(frames.size()));
+            mParameters.setProperty(KEY_EXPOSURE_TIMES, PersistentJob.join(times));
+        }
+    }
 
-        resp = new Mat();
-        output = new Mat();
+    /**
+     * The parameters of a new job: the current settings, the destination of the image
+     * and, for a sequence captured in RAW, the parameters of the sensor.
+     */
+    private static Properties newParameters(CameraPreferences cameraPreferences,
+                                            String cameraId, FramePipeline framePipeline) {
+        Properties parameters = new Properties();
+        parameters.setProperty(KEY_ALIGN, Boolean.toString(cameraPreferences.getPhotoAlignment()));
+        parameters.setProperty(KEY_HDR_ALGORITHM,
+                Integer.toString(cameraPreferences.getHdrAlgorithm()));
+        parameters.setProperty(KEY_TONE_MAPPING_ALGORITHM,
+                Integer.toString(cameraPreferences.getToneMappingAlgorithm()));
+        parameters.setProperty(KEY_CALIBRATION_LEVEL,
+                Integer.toString(cameraPreferences.getCalibrationLevel()));
+        parameters.setProperty(KEY_MERGE_TILE_ROWS,
+                Integer.toString(cameraPreferences.getMergeTileRows()));
+        parameters.setProperty(KEY_MERGE_THREADS,
+                Integer.toString(cameraPreferences.getMergeThreads()));
+        parameters.setProperty(KEY_FUSION_LEVELS,
+                Integer.toString(cameraPreferences.getFusionLevels()));
+        parameters.setProperty(KEY_FAST_TONE_MAPPING,
+                Boolean.toString(cameraPreferences.isFastToneMapping()));
+        parameters.setProperty(KEY_TONE_MAPPING_BUDGET,
+                Integer.toString(cameraPreferences.getToneMappingBudget()));
+        if (cameraId != null) {
+            parameters.setProperty(KEY_CAMERA_ID, cameraId);
+        }
+        if (framePipeline != null && framePipeline.getSensor() != null) {
+            framePipeline.getSensor().store(parameters, PREFIX_SENSOR);
+        }
+
+        String filename = "HDR_"
+                + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date())
+                + ".jpg";
+        parameters.setProperty(KEY_DESTINATION,
+                new File(CameraPreferences.getAppDir(), filename).getPath());
+        return parameters;
     }
 
     public void run() {
-        AlignMTB aligner;
-        CalibrateDebevec cD;
-        CalibrateRobertson cR;
-        MergeDebevec mD;
-        MergeRobertson mR;
-        TonemapDurand tDu;
-        TonemapDrago tDr;
-        TonemapMantiuk tM;
-        TonemapReinhard tR;
-
         // Start a progress bar
         startProgressBar();
 
-        // Convert the images to the appropriate Mat for OpenCV
-        fromArrayToMat(imagesByte);
+        File destination = mDestination;
 
         // Start the actual HDR algorithm
-        Bitmap bmp;
-        long totalTime;
         try {
-            long start = System.currentTimeMillis();
-            Log.d(TAG, "Allineamento...");
-            if (align) {
-                aligner = Photo.createAlignMTB();
-                aligner.process(imagesMat, imagesMat);
+            // A job cancelled while waiting still gets here, to release its resources
+            checkCancelled("start");
+            if (!startJob()) {
+                return;
             }
-            long stopA = System.currentTimeMillis();
-            Log.d(TAG, "Allineamento finito in : " + (int) (stopA - start) + "ms");
+            planMemory();
+            lookUpRadiance();
+            checkCancelled("merge");
+
+            long start = System.currentTimeMillis();
             Log.d(TAG, "Algoritmo HDR " + hdrAlg);
-            Log.d(TAG, "Calibrazione...");
-            if (hdrAlg == 1) {
-                cD = Photo.createCalibrateDebevec(70,100f,false);
-                cD.process(imagesMat, resp, matTime);
-            } else {
-                cR = Photo.createCalibrateRobertson(5,0.5f);
-                cR.process(imagesMat, resp, matTime);
-            }
-            long stopC = System.currentTimeMillis();
-            Log.d(TAG, "Calibrazione finita in : " + (int) (stopC - stopA) + "ms");
-            Log.d(TAG, "Merge...");
-            if (hdrAlg == 1) {
-                mD = Photo.createMergeDebevec();
-                mD.process(imagesMat, output, matTime, resp);
-            } else {
-                mR = Photo.createMergeRobertson();
-                mR.process(imagesMat, output, matTime, resp);
-            }
-            long stopM = System.currentTimeMillis();
-            Log.d(TAG, "Merge finito in : " + (int) (stopM - stopC) + "ms");
             Log.d(TAG, "Algoritmo Tonemap " + toneAlg);
-            Log.d(TAG, "Tonemap...");
-            switch (toneAlg) {
-                case 1:
-                    tDr = Photo.createTonemapDrago(1.3f,1.0f,0.85f);
-                    tDr.process(output, output);
-                    break;
-                case 2:
-                    tDu = Photo.createTonemapDurand(1.3f,4f,1.0f,2f,2f);
-                    tDu.process(output, output);
-                    break;
-                case 3:
-                    tM = Photo.createTonemapMantiuk(0.9f,0.75f,0.9f);
-                    tM.process(output, output);
-                    break;
-                case 4:
-                    tR = Photo.createTonemapReinhard(0.8f,0.0f,1f,0f);
-                    tR.process(output, output);
-                    break;
-            }
-            long stopT = System.currentTimeMillis();
-            Log.d(TAG, "Tonemap finito in : " + (int) (stopT - stopM) + "ms");
-            Imgproc.cvtColor(output, output, Imgproc.COLOR_BGR2RGB);
-            long stopCC = System.currentTimeMillis();
-            Log.d(TAG, "BGR2RGB in : " + (int) (stopCC - stopT) + "ms");
-            Core.multiply(output, new Scalar(255.0, 255.0, 255.0), output);
-            long stopMM = System.currentTimeMillis();
-            Log.d(TAG, "Multiply in : " + (int) (stopMM - stopCC) + "ms");
-            output.convertTo(output, CvType.CV_8UC3);
-            long stopCCC = System.currentTimeMillis();
-            Log.d(TAG, "Conversion in : " + (int) (stopCCC - stopMM) + "ms");
-
-            totalTime = stopCCC - start;
-
-            bmp = null;
-            start = System.currentTimeMillis();
-            try {
-                bmp = Bitmap.createBitmap(output.cols(), output.rows(), Bitmap.Config.ARGB_8888);
-                Utils.matToBitmap(output, bmp);
-            } catch (CvException e) {
-                Log.d(TAG, e.getMessage());
-            }
-            long s1 = System.currentTimeMillis();
-            Log.d(TAG, "MatToBitMap in : " + (int) (s1 - start) + "ms");
 
-            totalTime += s1 - start;
+            if (mProgressive && mRawSensor == null && mCachedRadiance == null) {
+                // Show right away an image computed on the photos decoded at a quarter
+                // of their size, then replace it with the full resolution one.
+                // The RAW frames can not be downscaled before the merge, so they have
+                // no preview
+                if (!renderAndSave(true, destination, false)) {
+                    return;
+                }
+                dismissProgressBar();
+                Log.i(TAG, "Anteprima in: " + (int) (System.currentTimeMillis() - start) + "ms");
 
-            // Save the output in a file
-            Log.d(TAG, "Start saving... ");
-            long startSave = System.currentTimeMillis();
-            saveBitmapToFile(bmp);
-            long stopSave = System.currentTimeMillis();
-            Log.d(TAG, "Salvata in : " + (int) (stopSave - startSave) + "ms");
+                if (!startRefinement(this)) {
+                    Log.i(TAG, "Full resolution skipped: a new sequence has been taken");
+                    return;
+                }
+                renderAndSave(false, destination, true);
+            } else {
+                // A resumed job may have saved its preview already
+                renderAndSave(false, destination, mResumed);
+            }
 
             // Compute total execution time
-            totalTime += stopSave - startSave;
-            Log.i(TAG, "Tempo totale: " + (int) totalTime + "ms");
+            Log.i(TAG, "Tempo totale: " + (int) (System.currentTimeMillis() - start) + "ms");
+        } catch (CancellationException e) {
+            // The preview, if already saved, stays as the final image
+            Log.i(TAG, "HDR cancelled");
         } catch (Exception e) {
             showToast(mContext.getString(R.string.hdr_error_generic_message_error));
         } finally {
+            stopRefinement(this);
+            saveToneMapCosts();
+
+            // Completed, cancelled or failed: only a job whose process has been killed
+            // is left to be resumed
+            if (mJob != null) {
+                // Only once the image has been written
+                StorageWriter.delete(mJob);
+                mJob = null;
+            }
+
             // Close progress bar
             dismissProgressBar();
 
@@ -192,33 +350,177 @@ class Hdr implements Runnable {
         }
     }
 
+    /**
+     * Compute the HDR image and save it.
+     *
+     * @param reduced     whether to work on the photos decoded at a quarter of their size
+     * @param destination the file of the HDR image
+     * @param replace     {@code true} if the file already contains the preview of the image,
+     *                    {@code false} to show the image to the user once saved
+     * @return {@code true} if the image has been saved
+     */
+    private boolean renderAndSave(boolean reduced, File destination, boolean replace) {
+        // Only the full resolution image is checkpointed
+        mEngine.setCheckpoint(reduced || (mJob == null && mRadianceKey == null) ? null
+                : newCheckpoint(mJob, mParameters, mRadianceCache, mRadianceKey));
+        Mat radiance = null;
+        if (!reduced && mCachedRadiance != null) {
+            Log.i(TAG, "Tone mapping the radiance from the cache");
+            radiance = mCachedRadiance;
+            mCachedRadiance = null;
+        } else if (!reduced && mJob != null) {
+            radiance = mJob.getRadiance();
+            if (radiance != null) {
+                Log.i(TAG, "Resuming " + mJob + " from the merged radiance");
+            }
+        }
+        if (radiance != null) {
+            output = mEngine.resume(radiance);
+        } else {
+            // Convert the images to the appropriate Mat for OpenCV
+            fromArrayToMat(imagesByte, reduced);
+
+            if (mRawSensor != null) {
+                // Linear values: merged by exposure time with no calibration
+                output = mEngine.renderRaw(imagesMat, mExposureTimes, mRawSensor,
+                        align && !mImagesAligned);
+            } else {
+                if (HdrEngine.needsExposureTimes(hdrAlg)) {
+                    if (mCameraId != null) {
+                        // The size of the photos as decoded, before the alignment crops
+                        // them by the shifts of every shot
+                        double scale = reduced ? REDUCED_SCALE
+                                : mPlan == null ? 1 : mPlan.getScale();
+                        int width = (int) (mCaptureWidth * scale);
+                        int height = (int) (mCaptureHeight * scale);
+                        if (width <= 0 || height <= 0) {
+                            width = imagesMat.get(0).cols();
+                            height = imagesMat.get(0).rows();
+                        }
+                        mEngine.setResponseCache(
+                                new ResponseCache(CameraPreferences.getResponseCacheDir(mContext)),
+                                ResponseCache.key(mCameraId, mFormat, width, height, mIso,
+                                        hdrAlg));
+                    } else if (mJob != null) {
+                        // The curve of the photos of the gallery is kept only for the job
+                        mEngine.setResponseCache(new ResponseCache(mJob.getDirectory()),
+                                RESPONSE_KEY);
+                    }
+                }
+                output = mEngine.render(imagesMat, matTime, align && !mImagesAligned);
+            }
+        }
+
+        reportToneMapPath(reduced);
+
+        // Write the tone mapped image straight into a pooled bitmap
+        long start = System.currentTimeMillis();
+        Bitmap bmp = BitmapPool.obtain(output.cols(), output.rows());
+        try {
+            BitmapFinisher.finish(output, bmp);
+            long s1 = System.currentTimeMillis();
+            Log.d(TAG, "Finish in : " + (int) (s1 - start) + "ms");
+
+            // The images are not needed anymore, free them before saving
+            releaseImages();
+
+            // Save the output in a file
+            Log.d(TAG, "Start saving... ");
+            boolean saved = saveBitmapToFile(bmp, destination, replace);
+            Log.d(TAG, "Salvata in : " + (int) (System.currentTimeMillis() - s1) + "ms");
+            return saved;
+        } finally {
+            BitmapPool.release(bmp);
+        }
+    }
+
+    /**
+     * Log how the image has been tone mapped and, if the full resolution image has been
+     * degraded to stay within the time budget, tell the user.
+     *
+     * @param reduced whether the image is the preview
+     */
+    private void reportToneMapPath(boolean reduced) {
+        ToneMapBudget.Path path = mEngine.getToneMapPath();
+        if (path == null) {
+            return;
+        }
+        Log.i(TAG, "Tone mapping: " + path);
+        if (reduced) {
+            return;
+        }
+        if (path.isFallback()) {
+            showToast(mContext.getString(R.string.hdr_tone_mapping_fallback,
+                    ToneMapBudget.name(path.getToneAlg()), ToneMapBudget.name(toneAlg)));
+        } else if (path.isReduced()) {
+            showToast(mContext.getString(R.string.hdr_tone_mapping_reduced));
+        }
+    }
+
+    /**
+     * Store the costs of the tone mapping measured on this sequence, for the next ones.
+     */
+    private void saveToneMapCosts() {
+        try {
+            mToneMapBudget.save();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save the costs of the tone mapping", e);
+        }
+    }
+
     /**
      * Convert the input images into a list of Mat images.
-     * Also retrieve the exposure times and convert the into a Mat file.
+     * Also retrieve the exposure times, only the first time, and convert them into a Mat file.
      *
-     * @param images the input images as a {@link List} of {@code byte[]}
+     * @param images  the input images as a {@link List} of {@link ByteBuffer}; empty if the
+     *                photos have been captured in YUV or RAW and are only in the
+     *                {@link FramePipeline}
+     * @param reduced whether to decode the images at a quarter of their size
      */
-    private void fromArrayToMat(List<byte[]> images) {
+    private void fromArrayToMat(List<ByteBuffer> images, boolean reduced) {
         imagesMat = new ArrayList<>();
-        float[] timesList = new float[images.size()];
+        mImagesAligned = false;
 
         // Convert images and retrieve exposure times
         try {
-            for (int i = 0; i < images.size(); i++) {
-                byte[] imageByte = images.get(i);
-                Mat image = Imgcodecs.imdecode(new MatOfByte(imageByte), Imgcodecs.CV_LOAD_IMAGE_UNCHANGED);
-                imagesMat.add(i, image);
+            if (reduced && !images.isEmpty()) {
+                imagesMat.addAll(mEngine.decodeReduced(images));
+            } else if (awaitFramePipeline()) {
+                if (reduced) {
+                    // There is no JPEG to decode at a reduced size: downscale the photos
+                    imagesMat.addAll(reduce(mPipelineImages, REDUCED_SCALE));
+                } else if (mPlan != null && mPlan.getScale() < 1) {
+                    imagesMat.addAll(reduce(mPipelineImages, mPlan.getScale()));
+                    releasePipelineImages();
+                } else {
+                    imagesMat.addAll(mPipelineImages);
+                    mPipelineImages = null;
+                }
+                mImagesAligned = mPipelineAligned;
+            } else {
+                reloadEncoded();
+                imagesMat.addAll(mEngine.decode(images));
+            }
+            if (!reduced && !mImagesAligned && mShifts != null) {
+                // Aligned before the process was killed: only the shifts are left to apply
+                HdrEngine.shiftImages(imagesMat, mShifts);
+                mImagesAligned = true;
+            }
 
-                try {
-                    String exp;
-                    ExifInterface ex = new ExifInterface(new ByteArrayInputStream(imageByte));
-                    exp = ex.getAttribute(ExifInterface.TAG_EXPOSURE_TIME);
-                    Log.d(TAG, exp);
-                    timesList[i] = Float.valueOf(exp);
-                } catch (IOException e) {
-                    e.printStackTrace();
+            // The exposure fusion does not need the exposure times
+            if (matTime == null
+                    && (mRawSensor != null || HdrEngine.needsExposureTimes(hdrAlg))) {
+                readExposureTimes(images);
+                if (mJob != null) {
+                    mParameters.setProperty(KEY_EXPOSURE_TIMES,
+                            PersistentJob.join(mExposureTimes));
+                    mParameters.setProperty(KEY_ISO, Integer.toString(mIso));
+                    commitJob();
                 }
             }
+            releaseEncoded(reduced);
+        } catch (CancellationException e) {
+            throw e;
         } catch (Exception e) {
             showToast(mContext.getString(R.string.hdr_error_prepare_images_error));
 
@@ -226,58 +528,596 @@ class Hdr implements Runnable {
             dismissProgressBar();
         }
 
+        if (matTime == null) {
+            matTime = new MatOfFloat(new float[imagesMat.size()]);
+        }
+    }
+
+    /**
+     * Retrieve the exposure times and the ISO of the photos, from the capture results
+     * of the camera or, for the photos loaded from the gallery, from their EXIF.
+     *
+     * @param images the input images as a {@link List} of {@link ByteBuffer}
+     */
+    private void readExposureTimes(List<ByteBuffer> images) {
+        if (mFrames != null) {
+            readCaptureResults();
+            return;
+        }
+
+        float[] timesList = new float[images.size()];
+        for (int i = 0; i < images.size(); i++) {
+            ByteBuffer image = images.get(i);
+            byte[] imageByte = JpegBufferPool.obtainArray(image);
+
+            try {
+                String exp;
+                ExifInterface ex = new ExifInterface(
+                        new ByteArrayInputStream(imageByte, 0, image.remaining()));
+                exp = ex.getAttribute(ExifInterface.TAG_EXPOSURE_TIME);
+                Log.d(TAG, exp);
+                timesList[i] = Float.valueOf(exp);
+                if (i == 0) {
+                    mIso = ex.getAttributeInt(ExifInterface.TAG_ISO_SPEED_RATINGS, 0);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                JpegBufferPool.releaseArray(image, imageByte);
+            }
+        }
+
         // Convert exposure times into a Mat file
+        mExposureTimes = timesList;
         matTime = new MatOfFloat(timesList);
     }
 
     /**
-     * Save a {@link Bitmap} to a file in the internal memory of the device.
+     * Retrieve the exposure times and the ISO of the photos from their capture results,
+     * or the requested ones if a result does not arrive.
+     */
+    private void readCaptureResults() {
+        float[] timesList = new float[mFrames.size()];
+        for (int i = 0; i < mFrames.size(); i++) {
+            Frame frame = mFrames.get(i);
+            if (!frame.awaitCaptureResult(CAPTURE_RESULT_TIMEOUT_MS)) {
+                Log.w(TAG, "No capture result for photo " + i + ", using the requested exposure");
+            } else if (!frame.isConsistent()) {
+                Log.w(TAG, "Photo " + i + " does not match its capture result");
+            }
+            timesList[i] = frame.getExposureTime();
+        }
+        mIso = mFrames.isEmpty() ? 0 : mFrames.get(0).getIso();
+
+        mExposureTimes = timesList;
+        matTime = new MatOfFloat(timesList);
+    }
+
+    /**
+     * The encoded photos of a sequence: none if they have been captured in YUV or RAW.
+     */
+    private static List<ByteBuffer> jpegs(List<Frame> frames) {
+        List<ByteBuffer> jpegs = new ArrayList<>(frames.size());
+        for (Frame frame : frames) {
+            if (frame.getJpeg() != null) {
+                jpegs.add(frame.getJpeg());
+            }
+        }
+        return jpegs;
+    }
+
+    /**
+     * Take the photos already decoded, and aligned if requested, by the {@link FramePipeline}.
+     * They are kept in {@link #mPipelineImages} until used at full resolution.
      *
-     * @param bitmap the bitmap to save as a file.
+     * @return {@code false} if there is no pipeline or it failed, so the photos must be decoded
      */
-    private void saveBitmapToFile(Bitmap bitmap) {
+    private boolean awaitFramePipeline() {
+        if (mPipelineImages != null) {
+            return true;
+        }
+        if (mFramePipeline == null) {
+            return false;
+        }
+        FramePipeline framePipeline = mFramePipeline;
+        mFramePipeline = null;
+        long start = System.currentTimeMillis();
+        try {
+            mPipelineImages = framePipeline.await();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Frame pipeline failed, decoding again", e);
+            return false;
+        }
+        Point[] shifts = framePipeline.getShifts();
+        mPipelineAligned = shifts != null;
+        // The checkpoint is at the scale of the images the engine works on
+        if (shifts != null && mJob != null && (mPlan == null || mPlan.getScale() == 1)) {
+            try {
+                mJob.putShifts(mParameters, shifts);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to checkpoint the alignment of " + mJob, e);
+            }
+        }
+        Log.d(TAG, "Attesa frame in : " + (int) (System.currentTimeMillis() - start) + "ms");
+        return true;
+    }
 
-        FileOutputStream outputStream = null;
-        String filename = "HDR_"
-                + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date())
-                + ".jpg";
-        File storageDirectory = CameraPreferences.getAppDir();
-        final File destination = new File(storageDirectory, filename);
+    /**
+     * Store the job of the photos of the gallery, or read back the one that is resumed,
+     * counting one more attempt.
+     *
+     * @return {@code false} if the job has already been attempted too many times
+     * @throws IOException if the photos of a resumed job cannot be read
+     */
+    private boolean startJob() throws IOException {
+        if (mJob == null && mFrames == null && !mResumed) {
+            persistGalleryJob();
+        }
+        if (mJob == null) {
+            return true;
+        }
+
+        int attempts = Integer.parseInt(mParameters.getProperty(KEY_ATTEMPTS, "0")) + 1;
+        mParameters.setProperty(KEY_ATTEMPTS, Integer.toString(attempts));
+        if (mFrames != null) {
+            commitJobAfterPhotos();
+        } else {
+            commitJob();
+        }
+        if (mJob == null) {
+            // Dropped: a resumed job has nothing left to compute the HDR on
+            return !mResumed;
+        }
+        if (attempts > MAX_ATTEMPTS) {
+            Log.w(TAG, "Giving up " + mJob + " after " + (attempts - 1) + " attempts");
+            showToast(mContext.getString(R.string.hdr_error_generic_message_error));
+            return false;
+        }
+        if (mResumed) {
+            loadJob();
+        }
+        return true;
+    }
+
+    /**
+     * Store the photos of the gallery and the parameters in a new job.
+     */
+    private void persistGalleryJob() {
+        try {
+            mJob = PersistentJob.create(CameraPreferences.getJobsDir(mContext));
+            for (int i = 0; i < imagesByte.size(); i++) {
+                mJob.putJpeg(i, imagesByte.get(i));
+            }
+            mParameters.setProperty(KEY_FRAMES, Integer.toString(imagesByte.size()));
+            commitJob();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to store the HDR job", e);
+            if (mJob != null) {
+                mJob.delete();
+                mJob = null;
+            }
+        }
+    }
+
+    /**
+     * Read the photos of a resumed job, with their exposure times and the shifts of
+     * the alignment if it had been completed.
+     */
+    private void loadJob() throws IOException {
+        int frames = Integer.parseInt(mParameters.getProperty(KEY_FRAMES));
+        List<Mat> decoded = new ArrayList<>();
+        try {
+            for (int i = 0; i < frames; i++) {
+                ByteBuffer jpeg = mJob.getJpeg(i);
+                if (jpeg != null) {
+                    imagesByte.add(jpeg);
+                } else {
+                    decoded.add(mJob.getFrame(i));
+                }
+            }
+        } catch (IOException e) {
+            for (Mat image : decoded) {
+                image.release();
+            }
+            throw e;
+        }
+        if (!decoded.isEmpty()) {
+            // YUV or RAW frames: taken as if they came from the pipeline, not aligned
+            mPipelineImages = decoded;
+            mPipelineAligned = false;
+            mFormat = ResponseCache.FORMAT_YUV;
+        } else {
+            mFormat = ResponseCache.FORMAT_JPEG;
+        }
+
+        float[] times = PersistentJob.split(mParameters.getProperty(KEY_EXPOSURE_TIMES));
+        if (times != null) {
+            mExposureTimes = times;
+            matTime = new MatOfFloat(times);
+            mIso = Integer.parseInt(mParameters.getProperty(KEY_ISO, "0"));
+        }
+        mShifts = PersistentJob.getShifts(mParameters);
+        Log.i(TAG, "Resuming " + mJob + (mShifts != null ? ", already aligned" : ""));
+    }
+
+    /**
+     * Store the parameters of the job; if they cannot be written, the job is dropped.
+     */
+    private void commitJob() {
+        try {
+            mJob.commit(mParameters);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to store " + mJob + ", it will not be resumed", e);
+            mJob.delete();
+            mJob = null;
+        }
+    }
+
+    /**
+     * Store the parameters of a job of the camera, whose photos may still be queued on the
+     * {@link StorageWriter}: they are written on it, after the photos, so that a job with
+     * its parameters always has all its photos. The HDR waits for them, so that the
+     * checkpoints it stores later come after them too.
+     */
+    private void commitJobAfterPhotos() {
+        final PersistentJob job = mJob;
+        final Properties parameters = mParameters;
+        Future<Void> commit = StorageWriter.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                job.commit(parameters);
+                return null;
+            }
+        });
+        try {
+            commit.get();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Unable to store " + mJob + ", it will not be resumed", e.getCause());
+            mJob.delete();
+            mJob = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while storing " + mJob);
+        }
+    }
 
+    /**
+     * Look for the radiance of the photos in the {@link RadianceCache}, so that choosing
+     * another tone mapping for the same photos of the gallery does not merge them again.
+     * The sequences of the camera are always new, so they are not cached.
+     */
+    private void lookUpRadiance() {
+        if (mFrames != null || mRawSensor != null || imagesByte.isEmpty()
+                || !HdrEngine.needsExposureTimes(hdrAlg)) {
+            return;
+        }
+        mRadianceCache = new RadianceCache(CameraPreferences.getRadianceCacheDir(mContext),
+                RadianceCache.DEFAULT_CAPACITY);
+        // Everything the radiance depends on, but the tone mapping; there is no plan if
+        // the size of the photos could not be read
+        double scale = mPlan == null ? 1 : mPlan.getScale();
+        mRadianceKey = RadianceCache.key(imagesByte, String.format(Locale.US,
+                "align=%b hdr=%d calibration=%s scale=%s", align, hdrAlg,
+                mParameters.getProperty(KEY_CALIBRATION_LEVEL), scale));
+        long start = System.currentTimeMillis();
+        mCachedRadiance = mRadianceCache.get(mRadianceKey);
+        if (mCachedRadiance != null) {
+            Log.d(TAG, "Radiance read in: " + (int) (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Receiver of the outputs of the engine, stored in the job and in the radiance cache.
+     *
+     * @param job        the job, {@code null} if none
+     * @param parameters the parameters of the job, that the shifts are added to
+     * @param cache      the radiance cache, {@code null} if the radiance is not cached
+     * @param key        the key of the radiance in the cache
+     */
+    private static HdrEngine.Checkpoint newCheckpoint(final PersistentJob job,
+                                                      final Properties parameters,
+                                                      final RadianceCache cache,
+                                                      final String key) {
+        return new HdrEngine.Checkpoint() {
+            @Override
+            public void onAligned(Point[] shifts) {
+                if (job == null) {
+                    return;
+                }
+                try {
+                    job.putShifts(parameters, shifts);
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to checkpoint the alignment of " + job, e);
+                }
+            }
+
+            @Override
+            public void onMerged(Mat radiance) {
+                long start = System.currentTimeMillis();
+                // The radiance is about to be tone mapped in place: only its compact copy
+                // is written, by the writer thread, so that the HDR does not wait for
+                // the storage. The job is deleted after it, on the same thread
+                final RadianceCache.Compact compact = RadianceCache.compact(radiance);
+                StorageWriter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (job != null) {
+                                try {
+                                    job.putRadiance(compact);
+                                } catch (IOException e) {
+                                    Log.w(TAG, "Unable to checkpoint the radiance of " + job, e);
+                                }
+                            }
+                            if (cache != null) {
+                                try {
+                                    cache.put(key, compact);
+                                } catch (IOException e) {
+                                    Log.w(TAG, "Unable to cache the radiance", e);
+                                }
+                            }
+                        } finally {
+                            compact.release();
+                        }
+                    }
+                });
+                Log.d(TAG, "Checkpoint in : " + (int) (System.currentTimeMillis() - start) + "ms");
+            }
+        };
+    }
+
+    /**
+     * Downscale the photos.
+     *
+     * @param images the photos to downscale
+     * @param scale  the scale of the new photos
+     * @return new downscaled photos
+     */
+    private static List<Mat> reduce(List<Mat> images, double scale) {
+        List<Mat> reduced = new ArrayList<>(images.size());
+        for (Mat image : images) {
+            Mat small = new Mat();
+            Imgproc.resize(image, small, new Size(), scale, scale, Imgproc.INTER_AREA);
+            reduced.add(small);
+        }
+        return reduced;
+    }
+
+    /**
+     * Estimate the memory needed by the sequence and adapt the processing to the memory
+     * available, see {@link MemoryPlanner}. A resumed job keeps the scale it has been
+     * started with, that its checkpoints depend on. The size of the photos is kept for
+     * the key of their response curve.
+     */
+    private void planMemory() {
+        int frames;
+        int width;
+        int height;
+        long encodedBytes = 0;
+        boolean decoded = imagesByte.isEmpty();
+        if (mFrames != null && !mFrames.isEmpty()) {
+            frames = mFrames.size();
+            width = mFrames.get(0).getWidth();
+            height = mFrames.get(0).getHeight();
+        } else if (mPipelineImages != null && !mPipelineImages.isEmpty()) {
+            frames = mPipelineImages.size();
+            width = mPipelineImages.get(0).cols();
+            height = mPipelineImages.get(0).rows();
+        } else if (!imagesByte.isEmpty()) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            ByteBuffer first = imagesByte.get(0);
+            byte[] bytes = JpegBufferPool.obtainArray(first);
+            BitmapFactory.decodeByteArray(bytes, 0, first.remaining(), options);
+            JpegBufferPool.releaseArray(first, bytes);
+            frames = imagesByte.size();
+            width = options.outWidth;
+            height = options.outHeight;
+        } else {
+            return;
+        }
+        mCaptureWidth = width;
+        mCaptureHeight = height;
+        for (ByteBuffer image : imagesByte) {
+            // The photos of the camera are in direct buffers, out of the Java heap
+            if (!image.isDirect()) {
+                encodedBytes += image.remaining();
+            }
+        }
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+
+        CameraPreferences cameraPreferences = CameraPreferences.getInstance(mContext);
+        int mergeTileRows = Integer.parseInt(mParameters.getProperty(KEY_MERGE_TILE_ROWS));
+        int mergeThreads = Integer.parseInt(mParameters.getProperty(KEY_MERGE_THREADS));
+        MemoryPlanner planner = new MemoryPlanner(frames, width, height, mRawSensor != null);
+        planner.setAlgorithms(align, hdrAlg, toneAlg);
+        planner.setEncodedBytes(encodedBytes);
+        planner.setMergeTiling(mergeTileRows, mergeThreads);
+        planner.setBitmapOnJavaHeap(Build.VERSION.SDK_INT < Build.VERSION_CODES.O);
+        // The radiance is checkpointed in the job; it is cached only for the photos of
+        // the gallery, that have a job too unless it could not be stored
+        planner.setCheckpointed(mJob != null);
+        String scale = mParameters.getProperty(KEY_SCALE);
+        if (scale != null) {
+            planner.setFixedScale(Double.parseDouble(scale));
+        }
+
+        // The memory already taken by the photos of this sequence is part of its budget;
+        // the rest of the free memory is shared with the other jobs that may be running
+        ActivityManager activityManager =
+                (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        int jobs = Math.max(1, cameraPreferences.getHdrJobs());
+        long nativeBudget = Math.max(0, memoryInfo.availMem - memoryInfo.threshold) / jobs
+                + MatPool.getPooledBytes();
+        if (decoded) {
+            nativeBudget += (long) frames * width * height * (mRawSensor != null ? 2 : 3);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long javaBudget = (runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory())
+                / jobs + encodedBytes;
+
+        mPlan = planner.plan(nativeBudget, javaBudget);
+        Log.i(TAG, "Memory plan: " + mPlan + " (budget native " + (nativeBudget >> 20)
+                + " MB, java " + (javaBudget >> 20) + " MB); " + MatPool.stats());
+
+        // The pool keeps, for the next sequence, at most what this one needs
+        MatPool.setCapacity(Math.min(mPlan.getNativePeak(), nativeBudget));
+
+        mEngine.setReleaseImages(mPlan.releasesImages());
+        mEngine.setMergeTiling(mPlan.getMergeTileRows(), mergeThreads);
+        if (mPlan.getScale() < 1) {
+            mEngine.setDecoder(MemoryPlanner.downscaling(cameraPreferences.getDecoder(),
+                    mPlan.getScale()), 0);
+        }
+        if (mJob != null && scale == null) {
+            mParameters.setProperty(KEY_SCALE, Double.toString(mPlan.getScale()));
+            commitJob();
+        }
+    }
+
+    /**
+     * Release the encoded photos once decoded at full resolution, so that their buffers
+     * go back to the {@link JpegBufferPool} for the next sequence. After the preview they
+     * are still needed for the full resolution image: they are released only if the
+     * {@link MemoryPlanner} asks so and they can be read back from the job.
+     *
+     * @param reduced whether the photos have been decoded for the preview
+     */
+    private void releaseEncoded(boolean reduced) {
+        if (imagesByte.isEmpty()) {
+            return;
+        }
+        if (reduced) {
+            if (mPlan == null || !mPlan.releasesEncoded() || mJob == null) {
+                return;
+            }
+            mEncodedSpilled = true;
+            if (mFramePipeline != null) {
+                // The pipeline may still be decoding them: not reused, only dropped
+                imagesByte.clear();
+                releaseFrameJpegs();
+                return;
+            }
+        }
+        recycleEncoded();
+    }
+
+    /**
+     * Give the buffers of the encoded photos back to the {@link JpegBufferPool}.
+     * Nothing must be decoding them anymore.
+     */
+    private void recycleEncoded() {
+        for (ByteBuffer image : imagesByte) {
+            // Only once the photos of the camera have been written
+            StorageWriter.recycle(image);
+        }
+        imagesByte.clear();
+        releaseFrameJpegs();
+    }
+
+    private void releaseFrameJpegs() {
+        if (mFrames != null) {
+            for (Frame frame : mFrames) {
+                frame.releaseJpeg();
+            }
+        }
+    }
+
+    /**
+     * Read back from the job the encoded photos released after the preview.
+     */
+    private void reloadEncoded() throws IOException {
+        if (!mEncodedSpilled) {
+            return;
+        }
+        if (mJob == null) {
+            throw new IOException("The encoded photos are not available anymore");
+        }
+        // The photos of the camera are stored by the writer: long done by now
+        StorageWriter.await();
+        int frames = Integer.parseInt(mParameters.getProperty(KEY_FRAMES));
+        for (int i = 0; i < frames; i++) {
+            imagesByte.add(mJob.getJpeg(i));
+        }
+        mEncodedSpilled = false;
+    }
+
+    /**
+     * Save a {@link Bitmap} to a file in the internal memory of the device.
+     * The bitmap is encoded here, then written by the {@link StorageWriter}, so that the
+     * HDR does not wait for the storage; the user is notified once it is written.
+     *
+     * @param bitmap      the bitmap to save as a file.
+     * @param destination the file where to save the bitmap
+     * @param replace     {@code true} if the destination already contains the preview
+     *                    of the image, {@code false} to show the image to the user
+     * @return {@code true} if the image has been submitted to the writer
+     */
+    private boolean saveBitmapToFile(Bitmap bitmap, File destination, final boolean replace) {
+        File storageDirectory = destination.getParentFile();
         if (!storageDirectory.exists()) {
             if (!storageDirectory.mkdirs()) {
                 Log.e(TAG, "Failed to create directory");
                 showToast(mContext.getString(R.string.hdr_error_saving_final_image));
-                dismissProgressBar();
-                clearResources();
-                return;
+                return false;
             }
         }
 
-        try {
-            outputStream = new FileOutputStream(destination);
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
+        // A JPEG of a photo is well below a byte per pixel
+        StorageWriter.Buffer buffer =
+                new StorageWriter.Buffer(bitmap.getWidth() * bitmap.getHeight() / 2);
+        if (!bitmap.compress(Bitmap.CompressFormat.JPEG, 100, buffer)) {
+            showToast(mContext.getString(R.string.hdr_error_saving_final_image));
+            return false;
+        }
 
-            // Update Android Media Provider
-            triggerMediaScanner(destination.toString());
+        final boolean resumed = mResumed;
+        StorageWriter.write(mContext, destination, buffer.toByteBuffer(), false,
+                new StorageWriter.Callback() {
+                    @Override
+                    public void onWritten(File file, boolean success) {
+                        if (!success) {
+                            showToast(mContext.getString(
+                                    R.string.hdr_error_saving_final_image));
+                        } else if (replace) {
+                            showToast(mContext.getString(resumed ? R.string.hdr_resumed_ready
+                                    : R.string.hdr_full_resolution_ready, file.toString()));
+                        } else {
+                            // Show to the user the image
+                            showImage(file);
 
-            // Show to the user the image
-            showImage(destination);
+                            // Show where the image is saved
+                            showToast(mContext.getString(R.string.path_hdr_image,
+                                    file.toString()));
+                        }
+                    }
+                });
+        return true;
+    }
 
-            // Show where the image is saved
-            showToast(mContext.getString(R.string.path_hdr_image, destination.toString()));
-        } catch (FileNotFoundException e) {
-            showToast(mContext.getString(R.string.hdr_error_saving_final_image));
-            Log.e(TAG, e.getMessage());
-        } finally {
-            try {
-                if (outputStream != null) {
-                    outputStream.close();
-                    Log.d(TAG, "OK!");
-                }
-            } catch (IOException e) {
-                Log.e(TAG, e.getMessage());
+    /**
+     * Release the decoded images and the HDR image, to the {@link MatPool} for the next
+     * sequence.
+     */
+    private void releaseImages() {
+        MatPool.release(output);
+        output = null;
+        for (int i = 0; i < imagesMat.size(); i++) {
+            MatPool.release(imagesMat.get(i));
+        }
+        imagesMat.clear();
+    }
+
+    private void releasePipelineImages() {
+        if (mPipelineImages != null) {
+            for (Mat image : mPipelineImages) {
+                MatPool.release(image);
             }
+            mPipelineImages = null;
         }
     }
 
@@ -285,27 +1125,69 @@ class Hdr implements Runnable {
      * Clear and release all the resources used.
      */
     private void clearResources() {
-        output.release();
-        resp.release();
-        for (int i = 0; i < imagesMat.size(); i++) {
-            imagesMat.get(i).release();
+        releaseImages();
+        if (mFramePipeline != null) {
+            mFramePipeline.release();
+            mFramePipeline = null;
+        }
+        releasePipelineImages();
+        if (matTime != null) {
+            matTime.release();
+        }
+        recycleEncoded();
+        if (mCachedRadiance != null) {
+            mCachedRadiance.release();
+            mCachedRadiance = null;
+        }
+    }
+
+    /**
+     * Stop the computation at the end of the current stage, or as soon as it starts if it
+     * is still waiting. The resources of the HDR are released all the same.
+     */
+    void cancel() {
+        mEngine.cancel();
+    }
+
+    /**
+     * @param stage the stage about to start
+     * @throws CancellationException if the HDR has been cancelled
+     */
+    private void checkCancelled(String stage) {
+        if (mEngine.isCancelled()) {
+            throw new CancellationException("Cancelled before the " + stage + " stage");
+        }
+    }
+
+    /**
+     * Cancel the computation of the full resolution image of the previous sequence, if any,
+     * so that the new photos come first. Its preview remains as the final image.
+     */
+    static synchronized void preemptRefinement() {
+        if (sRefining != null) {
+            sRefining.mEngine.cancel();
+            sRefining = null;
         }
-        imagesMat.clear();
-        imagesByte.clear();
     }
 
     /**
-     * Trigger the Android Media Scanner to scan the new file created.
-     * It, hopefully, ensures that other apps are notified about
-     * the new file.
+     * Register a sequence as the one computing its full resolution image.
      *
-     * @param path path of the new file created
+     * @param hdr the sequence
+     * @return {@code false} if a newer sequence has been taken in the meantime
      */
-    private void triggerMediaScanner(String path) {
-        File file = new File(path);
-        Uri uri = Uri.fromFile(file);
-        Intent scanFileIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, uri);
-        mContext.sendBroadcast(scanFileIntent);
+    private static synchronized boolean startRefinement(Hdr hdr) {
+        if (sLatestSequence.get() != hdr.mSequence) {
+            return false;
+        }
+        sRefining = hdr;
+        return true;
+    }
+
+    private static synchronized void stopRefinement(Hdr hdr) {
+        if (sRefining == hdr) {
+            sRefining = null;
+        }
     }
 
     /**
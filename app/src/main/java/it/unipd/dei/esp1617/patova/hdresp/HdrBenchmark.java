@@ -0,0 +1,1116 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Debug;
+import android.util.Log;
+import android.widget.Toast;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Core;
+import org.opencv.core.CvException;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Benchmark of the single stages of the HDR pipeline.
+ * <p>
+ * Each stage of {@link Hdr#run()} is run in isolation on a fixed, synthetic
+ * bracket of photos at several resolutions, in the same way as JMH does:
+ * some warmup iterations that are not measured, then the measured ones,
+ * everything repeated in more forks. Android can not fork the process, so
+ * every fork runs in a new thread on a bracket generated from scratch.
+ * <p>
+ * For each stage it reports the average time with its 99.9% confidence
+ * interval, the throughput and the memory allocated by an iteration, both
+ * on the Java heap and on the native heap (where OpenCV allocates its
+ * {@link Mat}s). The stages that are faster variants of another one also
+ * report how much their output deviates from it, e.g. the calibration on a
+ * downscaled level of the image pyramid. The results are written in the log
+ * and in a CSV file in the directory of the app.
+ */
+class HdrBenchmark implements Runnable {
+
+    private static final String TAG = "HDR_BENCHMARK";
+
+    /**
+     * Resolutions of the bracket: 2MP, 12MP and 48MP
+     */
+    static final Size[] RESOLUTIONS = {
+            new Size(1632, 1224),
+            new Size(4000, 3000),
+            new Size(8000, 6000)
+    };
+
+    /**
+     * Number of photos in the bracket and stops between two of them
+     */
+    static final int NUM_PHOTOS = 3;
+    private static final int STOPS = 2;
+
+    /**
+     * Iterations and forks of every stage
+     */
+    private static final int FORKS = 2;
+    private static final int WARMUP_ITERATIONS = 1;
+    private static final int MEASUREMENT_ITERATIONS = 3;
+
+    /**
+     * Height of the bands of the tiled merge
+     */
+    private static final int MERGE_TILE_ROWS = 256;
+
+    /**
+     * Seed of the synthetic scene: the bracket must be the same on every run.
+     */
+    private static final long SEED = 1617;
+
+    /**
+     * Student's t values at 99.9% for 1 to 30 degrees of freedom.
+     */
+    private static final double[] T_999 = {
+            636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+            4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+            3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646
+    };
+
+    private final Context mContext;
+    private final Size[] mResolutions;
+    private final List<Stage> mStages;
+
+    /**
+     * Create a benchmark of all the stages at all the resolutions.
+     *
+     * @param context the context used to show the messages to the user
+     */
+    HdrBenchmark(Context context) {
+        this(context, RESOLUTIONS);
+    }
+
+    /**
+     * Create a benchmark of all the stages.
+     *
+     * @param context     the context used to show the messages to the user
+     * @param resolutions the resolutions of the bracket
+     */
+    HdrBenchmark(Context context, Size[] resolutions) {
+        mContext = context;
+        mResolutions = resolutions;
+        mStages = createStages();
+    }
+
+    @Override
+    public void run() {
+        showToast(mContext.getString(R.string.benchmark_started));
+
+        List<Result> results = new ArrayList<>();
+        for (Size resolution : mResolutions) {
+            for (Stage stage : mStages) {
+                Result result = measure(stage, resolution);
+                Log.i(TAG, result.toString());
+                results.add(result);
+            }
+        }
+
+        File report = writeReport(results);
+        if (report != null) {
+            showToast(mContext.getString(R.string.benchmark_finished, report.toString()));
+        } else {
+            showToast(mContext.getString(R.string.benchmark_error_saving_report));
+        }
+    }
+
+    /**
+     * Measure a stage at a resolution, through all the forks.
+     *
+     * @param stage      the stage to measure
+     * @param resolution the resolution of the bracket
+     * @return the result of the measurement
+     */
+    @SuppressWarnings("deprecation")
+    Result measure(final Stage stage, final Size resolution) {
+        final Result result = new Result(stage.name, resolution);
+
+        for (int fork = 0; fork < FORKS && !result.failed(); fork++) {
+            Thread forkThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Fixture fixture = null;
+                    try {
+                        fixture = new Fixture(resolution);
+                        Debug.startAllocCounting();
+                        for (int i = 0; i < WARMUP_ITERATIONS + MEASUREMENT_ITERATIONS; i++) {
+                            stage.setUp(fixture);
+
+                            Debug.resetThreadAllocSize();
+                            long nativeBefore = Debug.getNativeHeapAllocatedSize();
+                            long start = System.nanoTime();
+                            stage.run(fixture);
+                            long time = System.nanoTime() - start;
+                            long nativeAlloc = Debug.getNativeHeapAllocatedSize() - nativeBefore;
+                            long javaAlloc = Debug.getThreadAllocSize();
+
+                            if (i >= WARMUP_ITERATIONS) {
+                                result.add(time, javaAlloc, nativeAlloc);
+                                result.addDeviation(stage.deviation(fixture));
+                            }
+                            stage.tearDown();
+                        }
+                    } catch (CvException | OutOfMemoryError e) {
+                        // The device can not handle this resolution
+                        Log.w(TAG, stage.name + " failed at " + resolution + ": " + e.getMessage());
+                        result.fail();
+                        stage.tearDown();
+                    } finally {
+                        Debug.stopAllocCounting();
+                        if (fixture != null) {
+                            fixture.release();
+                        }
+                    }
+                }
+            }, TAG + "_fork_" + fork);
+
+            forkThread.start();
+            try {
+                forkThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.fail();
+            }
+            System.gc();
+        }
+
+        return result;
+    }
+
+    /**
+     * Create the stages of {@link Hdr#run()}, in the same order.
+     *
+     * @return the list of the stages
+     */
+    static List<Stage> createStages() {
+        List<Stage> stages = new ArrayList<>();
+
+        stages.add(new Stage("decode") {
+            private final List<Mat> mDecoded = new ArrayList<>();
+
+            @Override
+            void run(Fixture fixture) {
+                for (ByteBuffer jpeg : fixture.jpegs) {
+                    mDecoded.add(HdrEngine.OPENCV_DECODER.decode(jpeg, false));
+                }
+            }
+
+            @Override
+            void tearDown() {
+                release(mDecoded);
+            }
+        });
+        stages.add(new Stage("decode_reduced_4") {
+            private final List<Mat> mDecoded = new ArrayList<>();
+
+            @Override
+            void run(Fixture fixture) {
+                for (ByteBuffer jpeg : fixture.jpegs) {
+                    mDecoded.add(HdrEngine.OPENCV_DECODER.decode(jpeg, true));
+                }
+            }
+
+            @Override
+            void tearDown() {
+                release(mDecoded);
+            }
+        });
+        stages.add(new Stage("decode_parallel") {
+            private final HdrEngine mEngine = new HdrEngine(false, 1, 1);
+            private List<Mat> mDecoded;
+
+            @Override
+            void setUp(Fixture fixture) {
+                mEngine.setDecoder(HdrEngine.OPENCV_DECODER, 0);
+            }
+
+            @Override
+            void run(Fixture fixture) {
+                mDecoded = mEngine.decode(fixture.jpegs);
+            }
+
+            @Override
+            void tearDown() {
+                if (mDecoded != null) {
+                    release(mDecoded);
+                    mDecoded = null;
+                }
+            }
+        });
+        stages.add(new Stage("decode_bitmap_factory") {
+            private final List<Mat> mDecoded = new ArrayList<>();
+
+            @Override
+            void run(Fixture fixture) {
+                for (ByteBuffer jpeg : fixture.jpegs) {
+                    mDecoded.add(BitmapFactoryDecoder.INSTANCE.decode(jpeg, false));
+                }
+            }
+
+            @Override
+            double deviation(Fixture fixture) {
+                // The decoders may round the IDCT and the chroma upsampling differently
+                double max = 0;
+                for (int i = 0; i < mDecoded.size(); i++) {
+                    max = Math.max(max, Core.norm(mDecoded.get(i), fixture.images.get(i),
+                            Core.NORM_INF));
+                }
+                return max;
+            }
+
+            @Override
+            void tearDown() {
+                release(mDecoded);
+            }
+        });
+        stages.add(new Stage("align_mtb") {
+            private final List<Mat> mImages = new ArrayList<>();
+
+            @Override
+            void setUp(Fixture fixture) {
+                copy(fixture.images, mImages);
+            }
+
+            @Override
+            void run(Fixture fixture) {
+                HdrEngine.alignImages(mImages);
+            }
+
+            @Override
+            void tearDown() {
+                release(mImages);
+            }
+        });
+        stages.add(new CalibrateStage("calibrate_debevec", 1, 0));
+        stages.add(new CalibrateStage("calibrate_robertson", 2, 0));
+        for (int level = 1; level <= 4; level++) {
+            stages.add(new CalibrateStage("calibrate_debevec_l" + level, 1, level));
+            stages.add(new CalibrateStage("calibrate_robertson_l" + level, 2, level));
+        }
+        stages.add(new MergeStage("merge_debevec", 1, 0, 1));
+        stages.add(new MergeStage("merge_robertson", 2, 0, 1));
+        // Scaling of the tiled merge: 1, 2, 4... threads up to the number of cores
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            stages.add(new MergeStage("merge_debevec_t" + threads, 1, MERGE_TILE_ROWS, threads));
+            stages.add(new MergeStage("merge_robertson_t" + threads, 2, MERGE_TILE_ROWS, threads));
+            if (threads == cores) {
+                break;
+            }
+        }
+        stages.add(new FusionStage("fusion_mertens", 0));
+        stages.add(new FusionStage("fusion_l4", 4));
+        stages.add(new FusionStage("fusion_l6", 6));
+        stages.add(new FusionStage("fusion_l8", 8));
+        stages.add(new ToneMapStage("tonemap_drago", 1, false));
+        stages.add(new ToneMapStage("tonemap_durand", 2, false));
+        stages.add(new ToneMapStage("tonemap_mantiuk", 3, false));
+        stages.add(new ToneMapStage("tonemap_reinhard", 4, false));
+        stages.add(new ToneMapStage("tonemap_drago_fast", 1, true));
+        stages.add(new ToneMapStage("tonemap_durand_fast", 2, true));
+        stages.add(new ToneMapStage("tonemap_reinhard_fast", 4, true));
+        stages.add(new InPlaceStage("bgr2rgb") {
+            @Override
+            void run(Fixture fixture) {
+                Imgproc.cvtColor(mImage, mImage, Imgproc.COLOR_BGR2RGB);
+            }
+        });
+        stages.add(new InPlaceStage("multiply") {
+            @Override
+            void run(Fixture fixture) {
+                Core.multiply(mImage, new Scalar(255.0, 255.0, 255.0), mImage);
+            }
+        });
+        stages.add(new InPlaceStage("convert_to") {
+            @Override
+            void setUp(Fixture fixture) {
+                mImage = new Mat();
+                Core.multiply(fixture.toneMapped(), new Scalar(255.0, 255.0, 255.0), mImage);
+            }
+
+            @Override
+            void run(Fixture fixture) {
+                mImage.convertTo(mImage, CvType.CV_8UC3);
+            }
+        });
+        stages.add(new Stage("mat_to_bitmap") {
+            private Mat mOutput;
+            private Bitmap mBitmap;
+
+            @Override
+            void setUp(Fixture fixture) {
+                mOutput = fixture.output();
+            }
+
+            @Override
+            void run(Fixture fixture) {
+                mBitmap = Bitmap.createBitmap(mOutput.cols(), mOutput.rows(),
+                        Bitmap.Config.ARGB_8888);
+                Utils.matToBitmap(mOutput, mBitmap);
+            }
+
+            @Override
+            void tearDown() {
+                if (mBitmap != null) {
+                    mBitmap.recycle();
+                    mBitmap = null;
+                }
+            }
+        });
+        // The single pass that replaces the four stages above
+        stages.add(new Stage("finish_bitmap") {
+            private Mat mToneMapped;
+            private Bitmap mBitmap;
+
+            @Override
+            void setUp(Fixture fixture) {
+                mToneMapped = fixture.toneMapped();
+                mBitmap = Bitmap.createBitmap(mToneMapped.cols(), mToneMapped.rows(),
+                        Bitmap.Config.ARGB_8888);
+            }
+
+            @Override
+            void run(Fixture fixture) {
+                BitmapFinisher.finish(mToneMapped, mBitmap);
+            }
+
+            @Override
+            double deviation(Fixture fixture) {
+                return maxDifference(mBitmap, fixture.bitmap());
+            }
+
+            @Override
+            void tearDown() {
+                if (mBitmap != null) {
+                    mBitmap.recycle();
+                    mBitmap = null;
+                }
+            }
+        });
+        stages.add(new Stage("jpeg_compress") {
+            private Bitmap mBitmap;
+            private ByteArrayOutputStream mStream;
+
+            @Override
+            void setUp(Fixture fixture) {
+                mBitmap = fixture.bitmap();
+                mStream = new ByteArrayOutputStream(mBitmap.getByteCount() / 4);
+            }
+
+            @Override
+            void run(Fixture fixture) {
+                mBitmap.compress(Bitmap.CompressFormat.JPEG, 100, mStream);
+            }
+
+            @Override
+            void tearDown() {
+                mStream = null;
+            }
+        });
+
+        return stages;
+    }
+
+    /**
+     * Write the results in a CSV file in the directory of the app.
+     *
+     * @param results the results to write
+     * @return the file written or {@code null} in case of error
+     */
+    private File writeReport(List<Result> results) {
+        File storageDirectory = CameraPreferences.getAppDir();
+        if (!storageDirectory.exists() && !storageDirectory.mkdirs()) {
+            Log.e(TAG, "Failed to create directory");
+            return null;
+        }
+
+        File report = new File(storageDirectory, "BENCHMARK_"
+                + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date())
+                + ".csv");
+        PrintWriter writer = null;
+        try {
+            writer = new PrintWriter(new FileWriter(report));
+            writer.println(Result.CSV_HEADER);
+            for (Result result : results) {
+                writer.println(result.toCsv());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage());
+            return null;
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+
+        return report;
+    }
+
+    /**
+     * Show a toast.
+     */
+    private void showToast(final String message) {
+        if (!(mContext instanceof Activity)) {
+            return;
+        }
+        ((Activity) mContext).runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(mContext, message, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /**
+     * Copy a list of images into another one.
+     */
+    private static void copy(List<Mat> source, List<Mat> destination) {
+        for (Mat image : source) {
+            destination.add(image.clone());
+        }
+    }
+
+    /**
+     * Release and clear a list of images.
+     */
+    private static void release(List<Mat> images) {
+        for (Mat image : images) {
+            image.release();
+        }
+        images.clear();
+    }
+
+    /**
+     * Distance between two camera response curves: the RMS difference of their
+     * logarithms, after scaling both to 1 at the middle value, over the pixel values
+     * that are neither almost black nor almost saturated.
+     *
+     * @param curve     the curve to compare
+     * @param reference the reference curve
+     * @return the distance, 0 if the curves are equal up to a scale factor
+     */
+    static double curveDistance(Mat curve, Mat reference) {
+        int channels = curve.channels();
+        float[] values = new float[(int) curve.total() * channels];
+        float[] references = new float[(int) reference.total() * reference.channels()];
+        curve.get(0, 0, values);
+        reference.get(0, 0, references);
+
+        double squares = 0;
+        int n = 0;
+        for (int z = 8; z < 248; z++) {
+            for (int c = 0; c < channels; c++) {
+                double difference = logRatio(values, z, 128, channels, c)
+                        - logRatio(references, z, 128, channels, c);
+                squares += difference * difference;
+                n++;
+            }
+        }
+        return Math.sqrt(squares / n);
+    }
+
+    private static double logRatio(float[] curve, int z, int middle, int channels, int c) {
+        return Math.log(Math.max(curve[z * channels + c], 1e-6f))
+                - Math.log(Math.max(curve[middle * channels + c], 1e-6f));
+    }
+
+    /**
+     * Largest difference between the channels of two bitmaps of the same size.
+     */
+    static double maxDifference(Bitmap bitmap, Bitmap reference) {
+        int width = bitmap.getWidth();
+        int[] row = new int[width];
+        int[] referenceRow = new int[width];
+        int max = 0;
+        for (int y = 0; y < bitmap.getHeight(); y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            reference.getPixels(referenceRow, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int difference = (row[x] >>> shift & 0xff) - (referenceRow[x] >>> shift & 0xff);
+                    max = Math.max(max, Math.abs(difference));
+                }
+            }
+        }
+        return max;
+    }
+
+    /**
+     * A stage of the pipeline. Only {@link #run(Fixture)} is measured.
+     */
+    abstract static class Stage {
+        final String name;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Prepare the input of an iteration.
+         *
+         * @param fixture the bracket and the output of the previous stages
+         */
+        void setUp(Fixture fixture) {
+        }
+
+        /**
+         * Run the stage.
+         *
+         * @param fixture the bracket and the output of the previous stages
+         */
+        abstract void run(Fixture fixture);
+
+        /**
+         * Measure how much the output of the iteration deviates from the
+         * output of the reference implementation of the stage.
+         *
+         * @param fixture the bracket and the output of the previous stages
+         * @return the deviation, {@code NaN} if the stage has no reference
+         */
+        double deviation(Fixture fixture) {
+            return Double.NaN;
+        }
+
+        /**
+         * Release what the iteration has produced.
+         */
+        void tearDown() {
+        }
+    }
+
+    /**
+     * A stage that works in place on a copy of the tone mapped image.
+     */
+    private abstract static class InPlaceStage extends Stage {
+        Mat mImage;
+
+        InPlaceStage(String name) {
+            super(name);
+        }
+
+        @Override
+        void setUp(Fixture fixture) {
+            mImage = fixture.toneMapped().clone();
+        }
+
+        @Override
+        void tearDown() {
+            if (mImage != null) {
+                mImage.release();
+                mImage = null;
+            }
+        }
+    }
+
+    /**
+     * Calibration on a level of the image pyramid. Its deviation is the
+     * distance of the curve from the one calibrated at full resolution.
+     */
+    private static class CalibrateStage extends Stage {
+        private final int mHdrAlg;
+        private final int mLevel;
+        private Mat mResponse;
+
+        CalibrateStage(String name, int hdrAlg, int level) {
+            super(name);
+            mHdrAlg = hdrAlg;
+            mLevel = level;
+        }
+
+        @Override
+        void setUp(Fixture fixture) {
+            mResponse = new Mat();
+        }
+
+        @Override
+        void run(Fixture fixture) {
+            HdrEngine.calibrate(mHdrAlg, fixture.images, fixture.times, mResponse, mLevel);
+        }
+
+        @Override
+        double deviation(Fixture fixture) {
+            return curveDistance(mResponse, fixture.response(mHdrAlg));
+        }
+
+        @Override
+        void tearDown() {
+            if (mResponse != null) {
+                mResponse.release();
+            }
+        }
+    }
+
+    /**
+     * Merge, possibly in parallel bands. Its deviation is the largest difference
+     * from the monolithic merge, that must be 0.
+     */
+    private static class MergeStage extends Stage {
+        private final int mHdrAlg;
+        private final int mTileRows;
+        private final int mThreads;
+        private Mat mResponse;
+        private Mat mRadiance;
+
+        MergeStage(String name, int hdrAlg, int tileRows, int threads) {
+            super(name);
+            mHdrAlg = hdrAlg;
+            mTileRows = tileRows;
+            mThreads = threads;
+        }
+
+        @Override
+        void setUp(Fixture fixture) {
+            mResponse = fixture.response(mHdrAlg);
+            mRadiance = new Mat();
+        }
+
+        @Override
+        void run(Fixture fixture) {
+            TiledMerge.merge(mHdrAlg, fixture.images, fixture.times, mResponse, mRadiance,
+                    mTileRows, mThreads);
+        }
+
+        @Override
+        double deviation(Fixture fixture) {
+            return Core.norm(mRadiance, fixture.radiance(mHdrAlg), Core.NORM_INF);
+        }
+
+        @Override
+        void tearDown() {
+            if (mRadiance != null) {
+                mRadiance.release();
+            }
+        }
+    }
+
+    /**
+     * Exposure fusion with a limited pyramid. Its deviation is the mean absolute
+     * difference from {@link org.opencv.photo.MergeMertens}.
+     */
+    private static class FusionStage extends Stage {
+        private final int mLevels;
+        private Mat mFused;
+
+        FusionStage(String name, int levels) {
+            super(name);
+            mLevels = levels;
+        }
+
+        @Override
+        void run(Fixture fixture) {
+            mFused = ExposureFusion.fuse(fixture.images, mLevels);
+        }
+
+        @Override
+        double deviation(Fixture fixture) {
+            return Core.norm(mFused, fixture.fused(), Core.NORM_L1) / mFused.total() / mFused.channels();
+        }
+
+        @Override
+        void tearDown() {
+            if (mFused != null) {
+                mFused.release();
+                mFused = null;
+            }
+        }
+    }
+
+    /**
+     * Tone mapping, with OpenCV or with its fast version (see {@link HdrEngine#fastToneMap}).
+     * The deviation of the fast version is the largest absolute difference from OpenCV
+     * (see {@link GlobalToneMap#largestDifference}), the measure of
+     * {@link GlobalToneMap#TOLERANCE}.
+     */
+    private static class ToneMapStage extends Stage {
+        private final int mToneAlg;
+        private final boolean mFast;
+        private Mat mImage;
+
+        ToneMapStage(String name, int toneAlg, boolean fast) {
+            super(name);
+            mToneAlg = toneAlg;
+            mFast = fast;
+        }
+
+        @Override
+        void setUp(Fixture fixture) {
+            mImage = fixture.radiance(1).clone();
+        }
+
+        @Override
+        void run(Fixture fixture) {
+            if (mFast) {
+                HdrEngine.fastToneMap(mToneAlg, mImage, 0);
+            } else {
+                HdrEngine.toneMap(mToneAlg, mImage);
+            }
+        }
+
+        @Override
+        double deviation(Fixture fixture) {
+            if (!mFast) {
+                return Double.NaN;
+            }
+            return GlobalToneMap.largestDifference(mImage, fixture.toneMapped(mToneAlg));
+        }
+
+        @Override
+        void tearDown() {
+            if (mImage != null) {
+                mImage.release();
+            }
+        }
+    }
+
+    /**
+     * A synthetic bracket of photos and the output of the stages of the
+     * pipeline on it, so that each stage can be run on its real input.
+     * The outputs are computed only when a stage asks for them.
+     */
+    static class Fixture {
+        final Size resolution;
+        final List<ByteBuffer> jpegs = new ArrayList<>();
+        final List<Mat> images = new ArrayList<>();
+        final MatOfFloat times;
+        private Mat mResponseDebevec;
+        private Mat mResponseRobertson;
+        private Mat mRadianceDebevec;
+        private Mat mRadianceRobertson;
+        private Mat mFused;
+        private final Mat[] mToneMapped = new Mat[5];
+        private Mat mOutput;
+        private Bitmap mBitmap;
+
+        Fixture(Size resolution) {
+            this.resolution = resolution;
+
+            float[] exposures = new float[NUM_PHOTOS];
+            for (int i = 0; i < NUM_PHOTOS; i++) {
+                exposures[i] = (float) (Math.pow(2, STOPS * (i - (NUM_PHOTOS - 1) / 2)) / 60);
+            }
+            times = new MatOfFloat(exposures);
+
+            // The images go through a JPEG compression as the photos of the camera
+            List<Mat> rendered = renderBracket(resolution, exposures);
+            for (Mat image : rendered) {
+                MatOfByte jpeg = new MatOfByte();
+                Imgcodecs.imencode(".jpg", image, jpeg,
+                        new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, 95));
+                // Held in direct buffers, as the photos of the camera (see ImageSaver)
+                jpegs.add(JpegBufferPool.copyOf(ByteBuffer.wrap(jpeg.toArray())));
+                jpeg.release();
+                image.release();
+                images.add(HdrEngine.OPENCV_DECODER.decode(jpegs.get(jpegs.size() - 1), false));
+            }
+        }
+
+        Mat response(int hdrAlg) {
+            if (hdrAlg == 1) {
+                if (mResponseDebevec == null) {
+                    mResponseDebevec = new Mat();
+                    HdrEngine.calibrate(1, images, times, mResponseDebevec);
+                }
+                return mResponseDebevec;
+            }
+            if (mResponseRobertson == null) {
+                mResponseRobertson = new Mat();
+                HdrEngine.calibrate(2, images, times, mResponseRobertson);
+            }
+            return mResponseRobertson;
+        }
+
+        Mat radiance(int hdrAlg) {
+            if (hdrAlg == 1) {
+                if (mRadianceDebevec == null) {
+                    mRadianceDebevec = new Mat();
+                    HdrEngine.merge(1, images, times, response(1), mRadianceDebevec);
+                }
+                return mRadianceDebevec;
+            }
+            if (mRadianceRobertson == null) {
+                mRadianceRobertson = new Mat();
+                HdrEngine.merge(2, images, times, response(2), mRadianceRobertson);
+            }
+            return mRadianceRobertson;
+        }
+
+        Mat fused() {
+            if (mFused == null) {
+                mFused = ExposureFusion.fuse(images, 0);
+            }
+            return mFused;
+        }
+
+        Mat toneMapped() {
+            return toneMapped(1);
+        }
+
+        /**
+         * @param toneAlg the tone mapping algorithm, see {@link HdrEngine#toneMap}
+         * @return the radiance of Debevec tone mapped by OpenCV
+         */
+        Mat toneMapped(int toneAlg) {
+            if (mToneMapped[toneAlg] == null) {
+                mToneMapped[toneAlg] = radiance(1).clone();
+                HdrEngine.toneMap(toneAlg, mToneMapped[toneAlg]);
+            }
+            return mToneMapped[toneAlg];
+        }
+
+        Mat output() {
+            if (mOutput == null) {
+                mOutput = new Mat();
+                Imgproc.cvtColor(toneMapped(), mOutput, Imgproc.COLOR_BGR2RGB);
+                Core.multiply(mOutput, new Scalar(255.0, 255.0, 255.0), mOutput);
+                mOutput.convertTo(mOutput, CvType.CV_8UC3);
+            }
+            return mOutput;
+        }
+
+        Bitmap bitmap() {
+            if (mBitmap == null) {
+                mBitmap = Bitmap.createBitmap(output().cols(), output().rows(),
+                        Bitmap.Config.ARGB_8888);
+                Utils.matToBitmap(output(), mBitmap);
+            }
+            return mBitmap;
+        }
+
+        void release() {
+            for (ByteBuffer jpeg : jpegs) {
+                JpegBufferPool.release(jpeg);
+            }
+            HdrBenchmark.release(images);
+            times.release();
+            for (Mat mat : new Mat[]{mResponseDebevec, mResponseRobertson, mRadianceDebevec,
+                    mRadianceRobertson, mFused, mOutput}) {
+                if (mat != null) {
+                    mat.release();
+                }
+            }
+            for (Mat mat : mToneMapped) {
+                if (mat != null) {
+                    mat.release();
+                }
+            }
+            if (mBitmap != null) {
+                mBitmap.recycle();
+            }
+        }
+
+        /**
+         * Render a bracket of a synthetic scene with a high dynamic range.
+         * <p>
+         * The radiance is a smooth random field, rendered at a quarter of the
+         * resolution, with a bright window. Each photo is exposed, clipped and
+         * gamma encoded, then scaled to the full resolution and covered with
+         * its own noise, so that the alignment and the calibration have some
+         * details to work on.
+         *
+         * @param resolution the resolution of the photos
+         * @param exposures  the exposure times of the photos
+         * @return the photos of the bracket
+         */
+        static List<Mat> renderBracket(Size resolution, float[] exposures) {
+            Random random = new Random(SEED);
+            Core.setRNGSeed((int) SEED);
+
+            // Log2 of the radiance: a random field of ±4 stops with a window 4 stops brighter
+            Mat field = new Mat(6, 8, CvType.CV_32FC3);
+            float[] values = new float[6 * 8 * 3];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = (random.nextFloat() - 0.5f) * 8f;
+            }
+            field.put(0, 0, values);
+            Size small = new Size(Math.ceil(resolution.width / 4), Math.ceil(resolution.height / 4));
+            Mat logRadiance = new Mat();
+            Imgproc.resize(field, logRadiance, small, 0, 0, Imgproc.INTER_CUBIC);
+            Mat window = logRadiance.submat(
+                    (int) (small.height / 5), (int) (small.height * 2 / 5),
+                    (int) (small.width / 2), (int) (small.width * 4 / 5));
+            Core.add(window, Scalar.all(4), window);
+            field.release();
+
+            Mat radiance = new Mat();
+            Core.multiply(logRadiance, Scalar.all(Math.log(2)), logRadiance);
+            Core.exp(logRadiance, radiance);
+            Core.multiply(radiance, Scalar.all(15), radiance);
+            logRadiance.release();
+
+            List<Mat> bracket = new ArrayList<>();
+            Mat exposed = new Mat();
+            Mat noise = new Mat();
+            for (float exposure : exposures) {
+                Core.multiply(radiance, Scalar.all(exposure), exposed);
+                Core.min(exposed, Scalar.all(1), exposed);
+                Core.pow(exposed, 1 / 2.2, exposed);
+                exposed.convertTo(exposed, CvType.CV_8UC3, 255);
+
+                Mat image = new Mat();
+                Imgproc.resize(exposed, image, resolution, 0, 0, Imgproc.INTER_LINEAR);
+                noise.create(image.size(), CvType.CV_16SC3);
+                Core.randn(noise, 0, 2);
+                image.convertTo(image, CvType.CV_16SC3);
+                Core.add(image, noise, image);
+                image.convertTo(image, CvType.CV_8UC3);
+                bracket.add(image);
+            }
+            exposed.release();
+            noise.release();
+            radiance.release();
+
+            return bracket;
+        }
+    }
+
+    /**
+     * The result of a stage at a resolution.
+     */
+    static class Result {
+        static final String CSV_HEADER = "stage,resolution,samples,mean_ms,error_ms,"
+                + "ops_per_s,mpixel_per_s,java_alloc_bytes,native_alloc_bytes,deviation";
+
+        final String stage;
+        final Size resolution;
+        private final List<Long> mTimes = new ArrayList<>();
+        private long mJavaAlloc;
+        private long mNativeAlloc;
+        private double mDeviation = Double.NaN;
+        private boolean mFailed;
+
+        Result(String stage, Size resolution) {
+            this.stage = stage;
+            this.resolution = resolution;
+        }
+
+        synchronized void add(long time, long javaAlloc, long nativeAlloc) {
+            mTimes.add(time);
+            mJavaAlloc += javaAlloc;
+            mNativeAlloc += nativeAlloc;
+        }
+
+        /**
+         * Keep the worst deviation of the iterations.
+         */
+        synchronized void addDeviation(double deviation) {
+            if (!Double.isNaN(deviation)) {
+                mDeviation = Double.isNaN(mDeviation) ? deviation : Math.max(mDeviation, deviation);
+            }
+        }
+
+        synchronized double deviation() {
+            return mDeviation;
+        }
+
+        synchronized void fail() {
+            mFailed = true;
+        }
+
+        synchronized boolean failed() {
+            return mFailed;
+        }
+
+        /**
+         * @return the average time of an iteration, in milliseconds
+         */
+        synchronized double mean() {
+            if (mTimes.isEmpty()) {
+                return Double.NaN;
+            }
+            double sum = 0;
+            for (long time : mTimes) {
+                sum += time;
+            }
+            return sum / mTimes.size() / 1e6;
+        }
+
+        /**
+         * @return the half width of the 99.9% confidence interval of the mean, in milliseconds
+         */
+        synchronized double error() {
+            int n = mTimes.size();
+            if (n < 2) {
+                return Double.NaN;
+            }
+            double mean = mean();
+            double squares = 0;
+            for (long time : mTimes) {
+                squares += (time / 1e6 - mean) * (time / 1e6 - mean);
+            }
+            double t = n - 1 <= T_999.length ? T_999[n - 2] : 3.291;
+            return t * Math.sqrt(squares / (n - 1)) / Math.sqrt(n);
+        }
+
+        synchronized double throughput() {
+            return 1000 / mean();
+        }
+
+        synchronized double megapixelThroughput() {
+            return resolution.area() / 1e6 * throughput();
+        }
+
+        synchronized long javaAlloc() {
+            return mTimes.isEmpty() ? 0 : mJavaAlloc / mTimes.size();
+        }
+
+        synchronized long nativeAlloc() {
+            return mTimes.isEmpty() ? 0 : mNativeAlloc / mTimes.size();
+        }
+
+        private String resolutionString() {
+            return (int) resolution.width + "x" + (int) resolution.height;
+        }
+
+        synchronized String toCsv() {
+            if (mFailed) {
+                return stage + "," + resolutionString() + ",0,,,,,,,";
+            }
+            return String.format(Locale.US, "%s,%s,%d,%.3f,%.3f,%.3f,%.3f,%d,%d,%s",
+                    stage, resolutionString(), mTimes.size(), mean(), error(), throughput(),
+                    megapixelThroughput(), javaAlloc(), nativeAlloc(),
+                    Double.isNaN(mDeviation) ? "" : String.format(Locale.US, "%.6g", mDeviation));
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (mFailed) {
+                return String.format(Locale.US, "%-24s %10s  FAILED", stage, resolutionString());
+            }
+            String line = String.format(Locale.US,
+                    "%-24s %10s  %10.3f ± %8.3f ms  %8.3f ops/s  %8.3f MP/s  java %d B/op  native %d B/op",
+                    stage, resolutionString(), mean(), error(), throughput(), megapixelThroughput(),
+                    javaAlloc(), nativeAlloc());
+            if (!Double.isNaN(mDeviation)) {
+                line += String.format(Locale.US, "  deviation %.4g", mDeviation);
+            }
+            return line;
+        }
+    }
+}
@@ -0,0 +1,948 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.photo.AlignMTB;
+import org.opencv.photo.CalibrateDebevec;
+import org.opencv.photo.CalibrateRobertson;
+import org.opencv.photo.MergeDebevec;
+import org.opencv.photo.MergeRobertson;
+import org.opencv.photo.Photo;
+import org.opencv.photo.TonemapDrago;
+import org.opencv.photo.TonemapDurand;
+import org.opencv.photo.TonemapMantiuk;
+import org.opencv.photo.TonemapReinhard;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The HDR pipeline: decode, align, calibrate, merge, tone map and encode; or,
+ * for RAW frames, align, merge, demosaic and tone map.
+ * <p>
+ * This class must not depend on the Android framework, so that the same code
+ * runs on the device and on a desktop JVM with the OpenCV Java bindings
+ * (see the {@code cli} module).
+ */
+final class HdrEngine {
+
+    static final String STAGE_DECODE = "decode";
+    static final String STAGE_ALIGN = "align";
+    static final String STAGE_CALIBRATE = "calibrate";
+    static final String STAGE_MERGE = "merge";
+    static final String STAGE_DEMOSAIC = "demosaic";
+    static final String STAGE_TONE_MAP = "tonemap";
+    static final String STAGE_FUSE = "fuse";
+    static final String STAGE_FINISH = "finish";
+    static final String STAGE_ENCODE = "encode";
+
+    /**
+     * The HDR algorithm that fuses the exposures directly into the final image,
+     * see {@link ExposureFusion}.
+     */
+    static final int EXPOSURE_FUSION = 3;
+
+    /**
+     * Quality of the encoded JPEG, the same used to save the final image.
+     */
+    private static final int JPEG_QUALITY = 100;
+
+    /**
+     * The calibration never goes below this size, to keep enough samples for the curve.
+     */
+    private static final int MIN_CALIBRATION_SIZE = 64;
+
+    /**
+     * The luminances below it are clamped before the gain of a reduced tone mapping is
+     * computed, as the operators of OpenCV do.
+     */
+    private static final double MIN_LUMINANCE = 1e-4;
+
+    /**
+     * Listener notified every time a stage of the pipeline is completed.
+     */
+    interface StageListener {
+        /**
+         * @param stage  the name of the stage, one of the {@code STAGE_*} constants
+         * @param millis the time spent in the stage
+         */
+        void onStageCompleted(String stage, long millis);
+    }
+
+    /**
+     * Receives the outputs of the most expensive stages, to store them and resume the
+     * pipeline from there if the process is killed. It is called on the thread that
+     * runs the pipeline, before the next stage starts.
+     */
+    interface Checkpoint {
+        /**
+         * @param shifts the shifts of the images (or of the RAW frames), to align
+         *               them again with {@link #shiftImages}
+         */
+        void onAligned(Point[] shifts);
+
+        /**
+         * @param radiance the merged HDR image, before the tone mapping; it must not be
+         *                 modified nor released
+         */
+        void onMerged(Mat radiance);
+    }
+
+    /**
+     * Decoder of the encoded photos. It must be safe to use from several threads.
+     */
+    interface Decoder {
+        /**
+         * @param image   the encoded image, from its position to its limit; the position
+         *                is not changed
+         * @param reduced whether to decode the image at a quarter of its width and height
+         * @return the decoded image, 8 bit BGR
+         */
+        Mat decode(ByteBuffer image, boolean reduced);
+    }
+
+    /**
+     * The decoder of OpenCV. With a reduced size the JPEG decoder downscales while
+     * decoding, which is much faster than decoding the full image.
+     */
+    static final Decoder OPENCV_DECODER = new Decoder() {
+        @Override
+        public Mat decode(ByteBuffer image, boolean reduced) {
+            byte[] bytes = JpegBufferPool.obtainArray(image);
+            MatOfByte buffer = new MatOfByte(0, image.remaining(), bytes);
+            JpegBufferPool.releaseArray(image, bytes);
+            try {
+                return Imgcodecs.imdecode(buffer, reduced
+                        ? Imgcodecs.IMREAD_REDUCED_COLOR_4 : Imgcodecs.CV_LOAD_IMAGE_UNCHANGED);
+            } finally {
+                buffer.release();
+            }
+        }
+    };
+
+    private final boolean mAlign;
+    private final int mHdrAlg;
+    private final int mToneAlg;
+    private StageListener mStageListener;
+    private Checkpoint mCheckpoint;
+    private ResponseCache mResponseCache;
+    private String mResponseKey;
+    private int mCalibrationLevel;
+    private int mMergeTileRows;
+    private int mMergeThreads = 1;
+    private int mFusionLevels;
+    private boolean mFastToneMap;
+    private int mToneMapThreads = 1;
+    private ToneMapBudget mToneMapBudget;
+    private ToneMapBudget.Path mToneMapPath;
+    private boolean mReleaseImages;
+    private Decoder mDecoder = OPENCV_DECODER;
+    private int mDecodeThreads = 1;
+    private volatile boolean mCancelled;
+
+    /**
+     * @param align   whether to align the images with the MTB algorithm
+     * @param hdrAlg  the HDR algorithm: 1 for Debevec, {@link #EXPOSURE_FUSION} for
+     *                exposure fusion, Robertson otherwise
+     * @param toneAlg the tone mapping algorithm: 1 Drago, 2 Durand, 3 Mantiuk, 4 Reinhard
+     */
+    HdrEngine(boolean align, int hdrAlg, int toneAlg) {
+        mAlign = align;
+        mHdrAlg = hdrAlg;
+        mToneAlg = toneAlg;
+    }
+
+    void setStageListener(StageListener stageListener) {
+        mStageListener = stageListener;
+    }
+
+    /**
+     * @param checkpoint the receiver of the outputs of the expensive stages,
+     *                   {@code null} to not store them
+     */
+    void setCheckpoint(Checkpoint checkpoint) {
+        mCheckpoint = checkpoint;
+    }
+
+    /**
+     * Use a cached response curve instead of calibrating the camera for every sequence.
+     * If the curve is not in the cache, it is calibrated and then stored.
+     *
+     * @param cache the cache of the response curves, {@code null} to always calibrate
+     * @param key   the key of the curve, see {@link ResponseCache#key}
+     */
+    void setResponseCache(ResponseCache cache, String key) {
+        mResponseCache = cache;
+        mResponseKey = key;
+    }
+
+    /**
+     * Calibrate the response curve on a downscaled copy of the images instead of the
+     * full resolution ones; the full resolution images are still merged with that curve.
+     *
+     * @param level the level of the Gaussian pyramid used for the calibration, 0 for
+     *              the full resolution, 1 for half the size and so on
+     */
+    void setCalibrationLevel(int level) {
+        mCalibrationLevel = level;
+    }
+
+    /**
+     * Merge the images in row bands, in parallel.
+     *
+     * @param tileRows the height of a band, 0 to merge the whole images at once
+     * @param threads  the number of threads that merge the bands, 0 for one per core
+     * @see TiledMerge
+     */
+    void setMergeTiling(int tileRows, int threads) {
+        mMergeTileRows = tileRows;
+        mMergeThreads = threads;
+    }
+
+    /**
+     * Set how the images are decoded.
+     *
+     * @param decoder the decoder of the images
+     * @param threads the number of threads that decode the images in parallel, 0 for
+     *                one per core; never more than the images
+     */
+    void setDecoder(Decoder decoder, int threads) {
+        mDecoder = decoder;
+        mDecodeThreads = threads;
+    }
+
+    /**
+     * Set the levels of the pyramid of the exposure fusion.
+     *
+     * @param levels the levels of the pyramid, 0 for as many as possible
+     * @see ExposureFusion
+     */
+    void setFusionLevels(int levels) {
+        mFusionLevels = levels;
+    }
+
+    /**
+     * Use the fast versions of the tone mapping operators, see {@link #fastToneMap}.
+     *
+     * @param fast    whether to use the fast operators, when the algorithm has one
+     * @param threads the number of threads of the fast operators, 0 for one per core
+     */
+    void setFastToneMap(boolean fast, int threads) {
+        mFastToneMap = fast;
+        mToneMapThreads = threads;
+    }
+
+    /**
+     * Keep the tone mapping within a time budget, reducing its resolution or falling back
+     * to a cheaper algorithm if needed, and measure its cost.
+     *
+     * @param budget the budget and the costs of the algorithms, {@code null} to always
+     *               apply the chosen algorithm
+     * @see #getToneMapPath
+     */
+    void setToneMapBudget(ToneMapBudget budget) {
+        mToneMapBudget = budget;
+    }
+
+    /**
+     * @return how the last image has been tone mapped, {@code null} if there is no
+     * budget or no image has been tone mapped yet
+     */
+    ToneMapBudget.Path getToneMapPath() {
+        return mToneMapPath;
+    }
+
+    /**
+     * Release the images as soon as they have been merged (or fused), instead of leaving
+     * them to the caller: the tone mapping then runs without them in memory.
+     *
+     * @param release whether to release the images once merged
+     * @see MemoryPlanner
+     */
+    void setReleaseImages(boolean release) {
+        mReleaseImages = release;
+    }
+
+    /**
+     * Stop the pipeline as soon as the running stage is completed: the method that is
+     * running throws a {@link CancellationException}. It can be called from any thread.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Tell whether the HDR algorithm needs the exposure times of the photos.
+     *
+     * @param hdrAlg the HDR algorithm
+     * @return {@code false} for the exposure fusion, {@code true} otherwise
+     */
+    static boolean needsExposureTimes(int hdrAlg) {
+        return hdrAlg != EXPOSURE_FUSION;
+    }
+
+    /**
+     * Run the whole pipeline on a sequence of encoded images.
+     *
+     * @param images the encoded images of the sequence
+     * @param times  the exposure times of the images, in seconds; ignored (and can be
+     *               {@code null}) with the exposure fusion
+     * @return the final image encoded as JPEG
+     */
+    byte[] process(List<ByteBuffer> images, float[] times) {
+        List<Mat> mats = decode(images);
+        MatOfFloat matTimes = new MatOfFloat(times == null ? new float[0] : times);
+        Mat output = null;
+        try {
+            output = render(mats, matTimes);
+            finish(output);
+            return encode(output);
+        } finally {
+            MatPool.release(output);
+            matTimes.release();
+            release(mats);
+        }
+    }
+
+    /**
+     * Decode the images of the sequence.
+     *
+     * @param images the encoded images
+     * @return the decoded BGR images
+     */
+    List<Mat> decode(List<ByteBuffer> images) {
+        return decode(images, false);
+    }
+
+    /**
+     * Decode the images of the sequence at a quarter of their size. This is much
+     * faster than decoding the full images.
+     *
+     * @param images the encoded images
+     * @return the decoded BGR images, a quarter of the width and height of the originals
+     */
+    List<Mat> decodeReduced(List<ByteBuffer> images) {
+        return decode(images, true);
+    }
+
+    private List<Mat> decode(final List<ByteBuffer> images, final boolean reduced) {
+        long start = System.currentTimeMillis();
+        int threads = mDecodeThreads <= 0 ? Runtime.getRuntime().availableProcessors()
+                : mDecodeThreads;
+        threads = Math.min(threads, images.size());
+
+        List<Mat> mats = new ArrayList<>(images.size());
+        if (threads <= 1) {
+            try {
+                for (ByteBuffer image : images) {
+                    mats.add(mDecoder.decode(image, reduced));
+                }
+            } catch (RuntimeException e) {
+                release(mats);
+                throw e;
+            }
+        } else {
+            decodeInParallel(images, reduced, threads, mats);
+        }
+
+        try {
+            notifyStage(STAGE_DECODE, start);
+        } catch (CancellationException e) {
+            release(mats);
+            throw e;
+        }
+        return mats;
+    }
+
+    /**
+     * Decode the images on a pool of threads, one image per task.
+     */
+    private void decodeInParallel(List<ByteBuffer> images, final boolean reduced, int threads,
+                                  List<Mat> mats) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Mat>> decoded = new ArrayList<>(images.size());
+        try {
+            for (final ByteBuffer image : images) {
+                decoded.add(executor.submit(new Callable<Mat>() {
+                    @Override
+                    public Mat call() {
+                        return mDecoder.decode(image, reduced);
+                    }
+                }));
+            }
+            for (Future<Mat> mat : decoded) {
+                mats.add(mat.get());
+            }
+        } catch (ExecutionException e) {
+            releaseDecoded(decoded, mats);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            releaseDecoded(decoded, mats);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Decode interrupted", e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Release the images decoded so far, waiting for the tasks still running.
+     */
+    private static void releaseDecoded(List<Future<Mat>> decoded, List<Mat> mats) {
+        release(mats);
+        for (int i = mats.size(); i < decoded.size(); i++) {
+            try {
+                decoded.get(i).get().release();
+            } catch (InterruptedException | ExecutionException e) {
+                // Nothing to release
+            }
+        }
+    }
+
+    /**
+     * Release the images once merged, if requested. They are given back to the
+     * {@link MatPool} and removed from the list.
+     */
+    private void releaseMerged(List<Mat> images) {
+        if (mReleaseImages) {
+            release(images);
+            images.clear();
+        }
+    }
+
+    private static void release(List<Mat> mats) {
+        for (Mat mat : mats) {
+            MatPool.release(mat);
+        }
+    }
+
+    /**
+     * Align (if requested), calibrate, merge and tone map the images; or, with
+     * the exposure fusion, align and fuse them.
+     *
+     * @param images the decoded images, aligned in place
+     * @param times  the exposure times of the images, ignored with the exposure fusion
+     * @return the tone mapped image, BGR with float values in [0, 1]
+     */
+    Mat render(List<Mat> images, Mat times) {
+        return render(images, times, mAlign);
+    }
+
+    /**
+     * Same as {@link #render(List, Mat)}, but tell whether the images still have to be
+     * aligned, e.g. because they have already been aligned by a {@link FramePipeline}.
+     *
+     * @param images the decoded images, aligned in place if {@code align} is {@code true}
+     * @param times  the exposure times of the images, ignored with the exposure fusion
+     * @param align  whether to align the images with the MTB algorithm
+     * @return the tone mapped image, BGR with float values in [0, 1]
+     */
+    Mat render(List<Mat> images, Mat times, boolean align) {
+        long start = System.currentTimeMillis();
+        if (align) {
+            Point[] shifts = alignImages(images);
+            if (mCheckpoint != null) {
+                mCheckpoint.onAligned(shifts);
+            }
+            start = notifyStage(STAGE_ALIGN, start);
+        }
+
+        if (mHdrAlg == EXPOSURE_FUSION) {
+            Mat output = ExposureFusion.fuse(images, mFusionLevels);
+            releaseMerged(images);
+            try {
+                notifyStage(STAGE_FUSE, start);
+            } catch (CancellationException e) {
+                output.release();
+                throw e;
+            }
+            return output;
+        }
+
+        Mat response = null;
+        if (mResponseCache != null) {
+            response = mResponseCache.get(mResponseKey);
+        }
+        // The radiance map of the previous sequence, if it had the same size
+        Mat first = images.get(0);
+        Mat output = MatPool.obtain(first.rows(), first.cols(), CvType.CV_32FC3);
+        try {
+            try {
+                if (response == null) {
+                    response = new Mat();
+                    calibrate(mHdrAlg, images, times, response, mCalibrationLevel);
+                    if (mResponseCache != null) {
+                        try {
+                            mResponseCache.put(mResponseKey, response);
+                        } catch (IOException e) {
+                            // The curve will be calibrated again next time
+                        }
+                    }
+                }
+                start = notifyStage(STAGE_CALIBRATE, start);
+                TiledMerge.merge(mHdrAlg, images, times, response, output,
+                        mMergeTileRows, mMergeThreads);
+                releaseMerged(images);
+                if (mCheckpoint != null) {
+                    mCheckpoint.onMerged(output);
+                }
+                start = notifyStage(STAGE_MERGE, start);
+            } finally {
+                response.release();
+            }
+
+            toneMapImage(output);
+            notifyStage(STAGE_TONE_MAP, start);
+        } catch (RuntimeException e) {
+            output.release();
+            throw e;
+        }
+        return output;
+    }
+
+    /**
+     * Align (if requested), merge, demosaic and tone map a sequence of RAW frames,
+     * see {@link RawMerge}. The values of the sensor are linear, so there is no
+     * calibration, whatever the HDR algorithm.
+     *
+     * @param frames        the RAW frames, 16 bit single channel, aligned in place
+     * @param exposureTimes the exposure times of the frames, in seconds
+     * @param sensor        the parameters of the sensor that captured the frames
+     * @return the tone mapped image, BGR with float values in [0, 1]
+     */
+    Mat renderRaw(List<Mat> frames, float[] exposureTimes, RawMerge.Sensor sensor) {
+        return renderRaw(frames, exposureTimes, sensor, mAlign);
+    }
+
+    /**
+     * Same as {@link #renderRaw(List, float[], RawMerge.Sensor)}, but tell whether the
+     * frames still have to be aligned, e.g. because they have already been shifted.
+     *
+     * @param frames        the RAW frames, 16 bit single channel, aligned in place if
+     *                      {@code align} is {@code true}
+     * @param exposureTimes the exposure times of the frames, in seconds
+     * @param sensor        the parameters of the sensor that captured the frames
+     * @param align         whether to align the frames with the MTB algorithm
+     * @return the tone mapped image, BGR with float values in [0, 1]
+     */
+    Mat renderRaw(List<Mat> frames, float[] exposureTimes, RawMerge.Sensor sensor,
+                  boolean align) {
+        long start = System.currentTimeMillis();
+        if (align) {
+            Point[] shifts = RawMerge.align(frames);
+            if (mCheckpoint != null) {
+                mCheckpoint.onAligned(shifts);
+            }
+            start = notifyStage(STAGE_ALIGN, start);
+        }
+
+        Mat output = null;
+        try {
+            Mat radiance = RawMerge.merge(frames, exposureTimes, sensor);
+            releaseMerged(frames);
+            try {
+                start = notifyStage(STAGE_MERGE, start);
+                output = RawMerge.demosaic(radiance, sensor);
+            } finally {
+                radiance.release();
+            }
+            if (mCheckpoint != null) {
+                mCheckpoint.onMerged(output);
+            }
+            start = notifyStage(STAGE_DEMOSAIC, start);
+
+            toneMapImage(output);
+            notifyStage(STAGE_TONE_MAP, start);
+        } catch (RuntimeException e) {
+            if (output != null) {
+                output.release();
+            }
+            throw e;
+        }
+        return output;
+    }
+
+    /**
+     * Resume the pipeline from a merged HDR image, e.g. the one received by a
+     * {@link Checkpoint}: only the tone mapping is left.
+     *
+     * @param radiance the HDR image, tone mapped in place
+     * @return the tone mapped image, the same {@link Mat}
+     */
+    Mat resume(Mat radiance) {
+        long start = System.currentTimeMillis();
+        toneMapImage(radiance);
+        notifyStage(STAGE_TONE_MAP, start);
+        return radiance;
+    }
+
+    /**
+     * Convert in place a tone mapped image to 8 bit per channel BGR, ready to be encoded.
+     *
+     * @param image the tone mapped image
+     */
+    void finish(Mat image) {
+        long start = System.currentTimeMillis();
+        Core.multiply(image, new Scalar(255.0, 255.0, 255.0), image);
+        image.convertTo(image, CvType.CV_8UC3);
+        notifyStage(STAGE_FINISH, start);
+    }
+
+    /**
+     * Encode an 8 bit BGR image as JPEG.
+     *
+     * @param image the image to encode
+     * @return the encoded image
+     */
+    byte[] encode(Mat image) {
+        long start = System.currentTimeMillis();
+        MatOfByte buffer = new MatOfByte();
+        MatOfInt params = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, JPEG_QUALITY);
+        try {
+            if (!Imgcodecs.imencode(".jpg", image, buffer, params)) {
+                throw new IllegalStateException("Unable to encode the image");
+            }
+            return buffer.toArray();
+        } finally {
+            buffer.release();
+            params.release();
+            notifyStage(STAGE_ENCODE, start);
+        }
+    }
+
+    /**
+     * Notify the listener that a stage is completed.
+     *
+     * @param stage the completed stage
+     * @param start when the stage started
+     * @return the current time, i.e. the start of the next stage
+     * @throws CancellationException if the pipeline has been cancelled
+     */
+    private long notifyStage(String stage, long start) {
+        long now = System.currentTimeMillis();
+        if (mStageListener != null) {
+            mStageListener.onStageCompleted(stage, now - start);
+        }
+        if (mCancelled) {
+            throw new CancellationException("Cancelled after the " + stage + " stage");
+        }
+        return now;
+    }
+
+    /**
+     * Align the images in place with the MTB algorithm, see {@link MtbAligner}, and crop
+     * them as {@link AlignMTB#process} does.
+     *
+     * @param images the images to align
+     * @return the shift of every image with respect to the middle one, to align the
+     * same images again with {@link #shiftImages}
+     */
+    static Point[] alignImages(List<Mat> images) {
+        int pivot = images.size() / 2;
+        Point[] shifts = new Point[images.size()];
+
+        // The pyramid of the middle image is built once, for all the pairs
+        MtbAligner.Pyramid reference = MtbAligner.build(images.get(pivot),
+                Imgproc.COLOR_RGB2GRAY);
+        try {
+            for (int i = 0; i < images.size(); i++) {
+                if (i == pivot) {
+                    shifts[i] = new Point(0, 0);
+                } else {
+                    MtbAligner.Pyramid pyramid = MtbAligner.build(images.get(i),
+                            Imgproc.COLOR_RGB2GRAY);
+                    shifts[i] = MtbAligner.calculateShift(reference, pyramid);
+                    pyramid.release();
+                }
+            }
+        } finally {
+            reference.release();
+        }
+        shiftImages(images, shifts);
+        return shifts;
+    }
+
+    /**
+     * Shift the images and, as {@link AlignMTB} does by default, crop them to the area
+     * that is common to all of them. Every image is replaced by a view of that area, with
+     * the same pixels {@link AlignMTB#shiftMat} and the crop would give: nothing is copied.
+     *
+     * @param images the images to shift
+     * @param shifts the shift of every image, e.g. computed by {@link #alignImages}
+     */
+    static void shiftImages(List<Mat> images, Point[] shifts) {
+        int maxX = 0;
+        int maxY = 0;
+        int minX = 0;
+        int minY = 0;
+        for (Point shift : shifts) {
+            maxX = Math.max(maxX, (int) shift.x);
+            maxY = Math.max(maxY, (int) shift.y);
+            minX = Math.min(minX, (int) shift.x);
+            minY = Math.min(minY, (int) shift.y);
+        }
+
+        for (int i = 0; i < images.size(); i++) {
+            Mat image = images.get(i);
+            // The pixel p of the shifted image is the pixel p - shift of the image
+            int top = maxY - (int) shifts[i].y;
+            int left = maxX - (int) shifts[i].x;
+            Mat cut = image.submat(top, top + image.rows() - maxY + minY,
+                    left, left + image.cols() - maxX + minX);
+            image.release();
+            images.set(i, cut);
+        }
+    }
+
+    /**
+     * Recover the camera response curve from the images.
+     *
+     * @param hdrAlg   the HDR algorithm: 1 for Debevec, Robertson otherwise
+     * @param images   the images of the sequence
+     * @param times    the exposure times of the images
+     * @param response the {@link Mat} where to store the response curve
+     */
+    static void calibrate(int hdrAlg, List<Mat> images, Mat times, Mat response) {
+        if (hdrAlg == 1) {
+            CalibrateDebevec cD = Photo.createCalibrateDebevec(70, 100f, false);
+            cD.process(images, response, times);
+        } else {
+            CalibrateRobertson cR = Photo.createCalibrateRobertson(5, 0.5f);
+            cR.process(images, response, times);
+        }
+    }
+
+    /**
+     * Recover the camera response curve from a level of the Gaussian pyramid of the images.
+     * <p>
+     * Debevec only samples a few points and Robertson does not improve with more
+     * pixels, so a small level gives almost the same curve in a fraction of the time.
+     *
+     * @param hdrAlg   the HDR algorithm: 1 for Debevec, Robertson otherwise
+     * @param images   the images of the sequence
+     * @param times    the exposure times of the images
+     * @param response the {@link Mat} where to store the response curve
+     * @param level    the level of the pyramid, 0 for the full resolution
+     */
+    static void calibrate(int hdrAlg, List<Mat> images, Mat times, Mat response, int level) {
+        if (level <= 0) {
+            calibrate(hdrAlg, images, times, response);
+            return;
+        }
+
+        List<Mat> reduced = pyramidLevel(images, level);
+        try {
+            calibrate(hdrAlg, reduced, times, response);
+        } finally {
+            for (Mat image : reduced) {
+                image.release();
+            }
+        }
+    }
+
+    /**
+     * Downscale the images to a level of their Gaussian pyramid. The downscaling
+     * stops earlier if the images would get smaller than {@link #MIN_CALIBRATION_SIZE}.
+     *
+     * @param images the images to downscale
+     * @param level  the level of the pyramid
+     * @return new downscaled images
+     */
+    static List<Mat> pyramidLevel(List<Mat> images, int level) {
+        List<Mat> reduced = new ArrayList<>(images.size());
+        for (Mat image : images) {
+            Mat current = image;
+            int size = Math.min(image.rows(), image.cols());
+            for (int i = 0; i < level && size / 2 >= MIN_CALIBRATION_SIZE; i++, size /= 2) {
+                Mat next = new Mat();
+                Imgproc.pyrDown(current, next);
+                if (current != image) {
+                    current.release();
+                }
+                current = next;
+            }
+            reduced.add(current == image ? image.clone() : current);
+        }
+        return reduced;
+    }
+
+    /**
+     * Merge the images into a single HDR (radiance) image.
+     *
+     * @param hdrAlg   the HDR algorithm: 1 for Debevec, Robertson otherwise
+     * @param images   the images of the sequence
+     * @param times    the exposure times of the images
+     * @param response the camera response curve
+     * @param output   the {@link Mat} where to store the HDR image
+     */
+    static void merge(int hdrAlg, List<Mat> images, Mat times, Mat response, Mat output) {
+        if (hdrAlg == 1) {
+            MergeDebevec mD = Photo.createMergeDebevec();
+            mD.process(images, output, times, response);
+        } else {
+            MergeRobertson mR = Photo.createMergeRobertson();
+            mR.process(images, output, times, response);
+        }
+    }
+
+    /**
+     * Apply in place the tone mapping algorithm of the pipeline to an HDR image, with its
+     * fast version if enabled, on the path chosen by the budget if there is one.
+     */
+    private void toneMapImage(Mat image) {
+        if (mToneMapBudget == null) {
+            toneMapImage(mToneAlg, mFastToneMap, image);
+            return;
+        }
+
+        ToneMapBudget.Path path = mToneMapBudget.choose(mToneAlg, mFastToneMap, image.total());
+        mToneMapPath = path;
+        if (path.isReduced()) {
+            toneMapReduced(path, image);
+        } else {
+            long start = System.currentTimeMillis();
+            toneMapImage(path.getToneAlg(), path.isFast(), image);
+            mToneMapBudget.record(path.getToneAlg(), path.isFast(), image.total(),
+                    System.currentTimeMillis() - start);
+        }
+    }
+
+    private void toneMapImage(int toneAlg, boolean fast, Mat image) {
+        if (fast) {
+            fastToneMap(toneAlg, image, mToneMapThreads);
+        } else {
+            toneMap(toneAlg, image);
+        }
+    }
+
+    /**
+     * Tone map an HDR image on a downscaled copy: the gain the algorithm gives to the
+     * luminance of every pixel is upscaled and applied to the full resolution image.
+     * The local contrast is the one of the reduced image, but the details are kept.
+     */
+    private void toneMapReduced(ToneMapBudget.Path path, Mat image) {
+        long start = System.currentTimeMillis();
+        Mat small = new Mat();
+        Mat gray = new Mat();
+        Mat gain = new Mat();
+        Mat channels = new Mat();
+        try {
+            Imgproc.resize(image, small, new Size(), path.getScale(), path.getScale(),
+                    Imgproc.INTER_AREA);
+
+            // The algorithms start mapping the radiance linearly to [0, 1]: the same
+            // mapping, from the range of the reduced image, is applied to the full one
+            Mat values = small.reshape(1);
+            Core.MinMaxLocResult range = Core.minMaxLoc(values);
+            values.release();
+            if (range.maxVal - range.minVal > Math.ulp(1.0)) {
+                double scale = 1 / (range.maxVal - range.minVal);
+                small.convertTo(small, -1, scale, -range.minVal * scale);
+                image.convertTo(image, -1, scale, -range.minVal * scale);
+            }
+            Imgproc.cvtColor(small, gray, Imgproc.COLOR_RGB2GRAY);
+            Core.max(gray, new Scalar(MIN_LUMINANCE), gray);
+
+            long toneMapStart = System.currentTimeMillis();
+            toneMapImage(path.getToneAlg(), path.isFast(), small);
+            long toneMapEnd = System.currentTimeMillis();
+            mToneMapBudget.record(path.getToneAlg(), path.isFast(), small.total(),
+                    toneMapEnd - toneMapStart);
+
+            Imgproc.cvtColor(small, gain, Imgproc.COLOR_RGB2GRAY);
+            small.release();
+            Core.divide(gain, gray, gain);
+            Core.patchNaNs(gain, 0);
+            Imgproc.resize(gain, gray, image.size(), 0, 0, Imgproc.INTER_LINEAR);
+            gain.release();
+            Core.merge(Arrays.asList(gray, gray, gray), channels);
+            gray.release();
+            Core.multiply(image, channels, image);
+            Core.min(image, new Scalar(1, 1, 1), image);
+            Core.max(image, new Scalar(0, 0, 0), image);
+
+            mToneMapBudget.recordResample(image.total(), toneMapStart - start
+                    + System.currentTimeMillis() - toneMapEnd);
+        } finally {
+            small.release();
+            gray.release();
+            gain.release();
+            channels.release();
+        }
+    }
+
+    /**
+     * Apply in place the fast version of a tone mapping algorithm to an HDR image:
+     * {@link GlobalToneMap} for Drago and Reinhard, {@link FastDurand} for Durand.
+     * Mantiuk has no fast version.
+     *
+     * @param toneAlg the tone mapping algorithm: 1 Drago, 2 Durand, 3 Mantiuk, 4 Reinhard
+     * @param image   the HDR image
+     * @param threads the number of threads of the fast versions, 0 for one per core
+     */
+    static void fastToneMap(int toneAlg, Mat image, int threads) {
+        if (GlobalToneMap.supports(toneAlg)) {
+            GlobalToneMap.apply(toneAlg, image, threads);
+        } else if (toneAlg == 2) {
+            FastDurand.apply(image, threads);
+        } else {
+            toneMap(toneAlg, image);
+        }
+    }
+
+    /**
+     * Apply in place the tone mapping algorithm to an HDR image.
+     *
+     * @param toneAlg the tone mapping algorithm: 1 Drago, 2 Durand, 3 Mantiuk, 4 Reinhard
+     * @param image   the HDR image
+     */
+    static void toneMap(int toneAlg, Mat image) {
+        switch (toneAlg) {
+            case 1:
+                TonemapDrago tDr = Photo.createTonemapDrago(1.3f, 1.0f, 0.85f);
+                tDr.process(image, image);
+                break;
+            case 2:
+                TonemapDurand tDu = Photo.createTonemapDurand(1.3f, 4f, 1.0f, 2f, 2f);
+                tDu.process(image, image);
+                break;
+            case 3:
+                TonemapMantiuk tM = Photo.createTonemapMantiuk(0.9f, 0.75f, 0.9f);
+                tM.process(image, image);
+                break;
+            case 4:
+                TonemapReinhard tR = Photo.createTonemapReinhard(0.8f, 0.0f, 1f, 0f);
+                tR.process(image, image);
+                break;
+        }
+    }
+}
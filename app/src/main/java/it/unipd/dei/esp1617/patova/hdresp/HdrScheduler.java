@@ -0,0 +1,205 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the HDR jobs, of the camera and of the gallery, on a few background threads.
+ * <p>
+ * Every job needs hundreds of megabytes at full resolution: running many of them
+ * at once only makes all of them slower and can exhaust the memory. So the jobs
+ * run at most {@link CameraPreferences#getHdrJobs()} at a time (one by default),
+ * with a background priority, and at most {@link #QUEUE_CAPACITY} more wait in a
+ * queue; when it is full new jobs are rejected. The camera checks
+ * {@link #isSaturated()} before taking a new sequence, and is notified through a
+ * {@link BackpressureListener} when that changes.
+ */
+final class HdrScheduler {
+
+    private static final String TAG = "HdrScheduler";
+
+    /**
+     * Jobs that can wait for a free thread.
+     */
+    static final int QUEUE_CAPACITY = 2;
+
+    /**
+     * Listener notified every time a job is submitted or completed, so when the
+     * scheduler becomes full or accepts jobs again. It is called on the thread that
+     * submitted or completed the job.
+     */
+    interface BackpressureListener {
+        /**
+         * @param saturated {@code true} if a new job would be rejected
+         */
+        void onBackpressureChanged(boolean saturated);
+    }
+
+    /**
+     * A job submitted to the scheduler.
+     */
+    static final class Job {
+
+        private final Hdr mHdr;
+        private final Future<?> mFuture;
+
+        private Job(Hdr hdr, Future<?> future) {
+            mHdr = hdr;
+            mFuture = future;
+        }
+
+        /**
+         * Cancel the job: if it is waiting it stops as soon as it starts, if it is running
+         * it stops at the end of the current stage. Either way it runs until its cleanup,
+         * that releases its photos and deletes its {@link PersistentJob}.
+         */
+        void cancel() {
+            mHdr.cancel();
+        }
+
+        boolean isDone() {
+            return mFuture.isDone();
+        }
+    }
+
+    /**
+     * Jobs submitted and not completed yet, running or waiting.
+     */
+    private static final AtomicInteger sPending = new AtomicInteger();
+
+    /**
+     * Jobs accepted since the process started.
+     */
+    private static final AtomicInteger sSubmitted = new AtomicInteger();
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(1, 1,
+            30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "HdrJob-" + mCount.incrementAndGet());
+                }
+            }) {
+        @Override
+        protected void afterExecute(Runnable runnable, Throwable throwable) {
+            super.afterExecute(runnable, throwable);
+            sPending.decrementAndGet();
+            notifyBackpressure();
+        }
+    };
+
+    private static BackpressureListener sListener;
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private HdrScheduler() {
+    }
+
+    /**
+     * Submit a job. If all the threads are busy, the full resolution image of the previous
+     * sequence is left as a preview, so that the new job starts as soon as possible.
+     *
+     * @param context the context of the application, for the preferences
+     * @param hdr     the job; once accepted it always runs, even if cancelled, so that it
+     *                releases its resources
+     * @return the job, to cancel it; {@code null} if it has been rejected because the
+     * scheduler is {@link #isSaturated() saturated}
+     */
+    static synchronized Job submit(Context context, Hdr hdr) {
+        setConcurrency(CameraPreferences.getInstance(context).getHdrJobs());
+        if (sExecutor.getActiveCount() >= sExecutor.getMaximumPoolSize()) {
+            Hdr.preemptRefinement();
+        }
+
+        sPending.incrementAndGet();
+        Future<?> future;
+        try {
+            // As a task, so that an unexpected failure of the job does not kill the thread
+            future = sExecutor.submit(hdr);
+        } catch (RejectedExecutionException e) {
+            sPending.decrementAndGet();
+            Log.w(TAG, "HDR job rejected: " + sPending.get() + " jobs pending");
+            return null;
+        }
+        sSubmitted.incrementAndGet();
+        notifyBackpressure();
+        return new Job(hdr, future);
+    }
+
+    /**
+     * @return {@code true} if all the threads are busy and the queue is full,
+     * so that a new job would be rejected
+     */
+    static boolean isSaturated() {
+        return sPending.get() >= sExecutor.getMaximumPoolSize() + QUEUE_CAPACITY;
+    }
+
+    /**
+     * @return {@code true} if no job is running or waiting
+     */
+    static boolean isIdle() {
+        return sPending.get() == 0;
+    }
+
+    /**
+     * @return the number of jobs accepted so far, to tell whether any has been submitted
+     * in a period of time, e.g. while the {@link PipelineTuner} measures a stage
+     */
+    static int getSubmitted() {
+        return sSubmitted.get();
+    }
+
+    /**
+     * @param listener the listener of the backpressure, {@code null} to remove it
+     */
+    static synchronized void setBackpressureListener(BackpressureListener listener) {
+        sListener = listener;
+    }
+
+    private static void notifyBackpressure() {
+        BackpressureListener listener;
+        synchronized (HdrScheduler.class) {
+            listener = sListener;
+        }
+        if (listener != null) {
+            listener.onBackpressureChanged(isSaturated());
+        }
+    }
+
+    /**
+     * Set how many jobs can run at the same time.
+     */
+    private static void setConcurrency(int jobs) {
+        jobs = Math.max(1, jobs);
+        if (jobs == sExecutor.getMaximumPoolSize()) {
+            return;
+        }
+        // The core size can never be larger than the maximum one
+        if (jobs > sExecutor.getMaximumPoolSize()) {
+            sExecutor.setMaximumPoolSize(jobs);
+            sExecutor.setCorePoolSize(jobs);
+        } else {
+            sExecutor.setCorePoolSize(jobs);
+            sExecutor.setMaximumPoolSize(jobs);
+        }
+    }
+}
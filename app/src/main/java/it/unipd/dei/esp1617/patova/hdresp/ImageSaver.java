@@ -1,15 +1,20 @@
 package it.unipd.dei.esp1617.patova.hdresp;
 
+import android.app.Activity;
 import android.content.Context;
-import android.content.Intent;
+import android.graphics.ImageFormat;
 import android.media.Image;
-import android.net.Uri;
+import android.os.Build;
+import android.os.Debug;
 import android.util.Log;
+import android.widget.Toast;
 
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.List;
@@ -18,6 +23,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 /**
  * Saves a JPEG {@link Image} into the specified {@link File}.
  * <p>
+ * The files, and the photos of the {@link PersistentJob}, are written by the
+ * {@link StorageWriter}, so that the camera never waits for the storage.
+ * <p>
  * If enabled, it also saves the exposure information in another
  * {@link File}.
  */
@@ -33,11 +41,24 @@ class ImageSaver implements Runnable {
      */
     private static final boolean DEBUG = true;
 
+    /**
+     * Quality of the photos of a sequence captured in YUV and saved as JPEG
+     */
+    private static final int JPEG_QUALITY = 95;
+
     /**
      * Reference to {@code CameraPreferences}
      */
     private static CameraPreferences sCameraPreferences;
 
+    /**
+     * Garbage collections and bytes allocated by the process when the first photo of the
+     * current sequence has been saved, -1 if not available. They are only accessed by the
+     * thread of the savers.
+     */
+    private static long sBurstGcCount = -1;
+    private static long sBurstAllocated = -1;
+
     /**
      * The JPEG image
      */
@@ -71,10 +92,22 @@ class ImageSaver implements Runnable {
     private final int mPhotoIndex;
 
     /**
-     * Reference to the list of {@link Mat} images that will be sent
-     * to the HDR algorithm when all the photos are available.
+     * The photos of the current HDR sequence, that will be sent to the HDR
+     * algorithm when all of them are available; {@code null} if there is no sequence.
+     */
+    private final List<Frame> mFrames;
+
+    /**
+     * Decodes (and aligns) the photos of the sequence while the next ones arrive;
+     * {@code null} if the photo is not part of an HDR sequence.
+     */
+    private final FramePipeline mFramePipeline;
+
+    /**
+     * Stores the photos of the sequence, so that its HDR survives the death of the
+     * process; {@code null} if the sequence is not persisted.
      */
-    private final List<byte[]> mMatList;
+    private final PersistentJob mJob;
 
     /**
      * Create a new ImageSaver object.
@@ -83,59 +116,70 @@ class ImageSaver implements Runnable {
      * @param image      the {@link Image} to be saved and/or elaborated
      * @param imageFile  the name of the jpg file where to save the photo
      * @param photoIndex counter that tracks the position of a photo in a sequence of photos
+     * @param frames     the photos of the current HDR sequence, if any
+     * @param framePipeline the pipeline of the current HDR sequence, if any
+     * @param job        the job of the current HDR sequence, if any
      */
     ImageSaver(Context context, Image image, String imageFile,
-               AtomicInteger photoIndex, List<byte[]> matList) {
+               AtomicInteger photoIndex, List<Frame> frames, FramePipeline framePipeline,
+               PersistentJob job) {
         mContext = context;
         sCameraPreferences = CameraPreferences.getInstance(context);
         mImage = image;
         mImageFileName = imageFile;
         mPhotoCounter = photoIndex;
         mPhotoIndex = mPhotoCounter.incrementAndGet();
-        mMatList = matList;
+        mFrames = frames;
+        mFramePipeline = framePipeline;
+        mJob = job;
         createFiles();
     }
 
     @Override
     public void run() {
-        // Get the buffer from the Image object
-        ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
-        byte[] bytes = new byte[buffer.remaining()];
-        buffer.get(bytes);
-
-        if (mPhotoIndex != 0) {
-            mMatList.add(mPhotoIndex - 1, bytes);
+        if (DEBUG && mPhotoIndex == 1) {
+            sBurstGcCount = runtimeStat("art.gc.gc-count");
+            sBurstAllocated = runtimeStat("art.gc.bytes-allocated");
+        }
+        Frame frame = isInSequence() ? mFrames.get(mPhotoIndex - 1) : null;
+        if (frame != null) {
+            frame.setImage(null, mImage.getTimestamp(), mImage.getWidth(), mImage.getHeight());
         }
 
-        // If the user has chosen to save the photo, save it (if appropriate).
-        // IMPORTANT: no matter what, close the Image object!
-        FileOutputStream output = null;
-        try {
-            if (sCameraPreferences.getSaveIntermediatePhotos() || mPhotoIndex == 0) {
-                output = new FileOutputStream(mImageFile);
-                output.write(bytes);
-                triggerMediaScanner(mImageFile.toString());
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            mImage.close();
-            if (null != output) {
-                try {
-                    output.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+        if (mImage.getFormat() == ImageFormat.YUV_420_888) {
+            saveYuvFrame();
+        } else if (mImage.getFormat() == ImageFormat.RAW_SENSOR) {
+            saveRawFrame();
+        } else {
+            saveJpeg(frame);
         }
 
         if (sCameraPreferences.isHdrOn()) {
             // Finally, if it is the last photo of the sequence,
             // we start the HDR algorithm.
-            if (mPhotoIndex == sCameraPreferences.getNumHdrPhotos()) {
+            if (mPhotoIndex == sCameraPreferences.getNumHdrPhotos() && mFrames != null) {
+                if (DEBUG) {
+                    logBurstAllocations();
+                }
+
                 // Start HDR
-                Hdr makeHdr = new Hdr(mContext, mMatList);
-                new Thread(makeHdr).start();
+                CameraSettings cameraSettings = CameraSettings.getInstance((Activity) mContext);
+                Hdr makeHdr = new Hdr(mContext, mFrames, cameraSettings.getBackCamera(),
+                        mFramePipeline, mJob);
+                if (HdrScheduler.submit(mContext, makeHdr) == null) {
+                    Log.w(TAG, "HDR scheduler full, sequence dropped");
+                    if (mFramePipeline != null) {
+                        mFramePipeline.release();
+                    }
+                    if (mJob != null) {
+                        StorageWriter.delete(mJob);
+                    }
+                    for (Frame sequenceFrame : mFrames) {
+                        StorageWriter.recycle(sequenceFrame.getJpeg());
+                        sequenceFrame.releaseJpeg();
+                    }
+                    showToast(mContext.getString(R.string.hdr_busy));
+                }
 
                 // Reset the global counter
                 mPhotoCounter.set(-1);
@@ -143,6 +187,177 @@ class ImageSaver implements Runnable {
         }
     }
 
+    /**
+     * Save a JPEG photo and, if it is part of an HDR sequence, start decoding it.
+     *
+     * @param frame the frame of the photo in the HDR sequence, {@code null} if none
+     */
+    private void saveJpeg(Frame frame) {
+        // Copy the buffer of the Image object into a pooled one, out of the Java heap, and
+        // give the Image back to the camera right away.
+        // The photos of the sequence are given back to the pool by the HDR once decoded.
+        long timestamp = mImage.getTimestamp();
+        int width = mImage.getWidth();
+        int height = mImage.getHeight();
+        ByteBuffer bytes;
+        try {
+            bytes = JpegBufferPool.copyOf(mImage.getPlanes()[0].getBuffer());
+        } finally {
+            mImage.close();
+        }
+
+        if (frame != null) {
+            frame.setImage(bytes, timestamp, width, height);
+            if (mJob != null) {
+                final PersistentJob job = mJob;
+                final int index = mPhotoIndex - 1;
+                final ByteBuffer jpeg = bytes;
+                StorageWriter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            job.putJpeg(index, jpeg);
+                        } catch (IOException e) {
+                            Log.w(TAG, "Unable to store photo " + (index + 1) + " in " + job, e);
+                        }
+                    }
+                });
+            }
+            if (isInPipeline()) {
+                mFramePipeline.add(mPhotoIndex - 1, bytes);
+            }
+        }
+
+        // If the user has chosen to save the photo, save it (if appropriate).
+        if (sCameraPreferences.getSaveIntermediatePhotos() || mPhotoIndex == 0) {
+            StorageWriter.write(mContext, mImageFile, bytes, frame == null, null);
+        } else if (frame == null) {
+            JpegBufferPool.release(bytes);
+        }
+    }
+
+    /**
+     * Convert a YUV frame of an HDR sequence straight into the {@link Mat} of the HDR.
+     * It is encoded as JPEG only if the user wants to keep the photos of the sequence.
+     */
+    private void saveYuvFrame() {
+        Mat frame;
+        try {
+            frame = YuvConverter.toBgr(mImage);
+        } finally {
+            mImage.close();
+        }
+
+        if (sCameraPreferences.getSaveIntermediatePhotos() && mImageFile != null) {
+            MatOfByte jpeg = new MatOfByte();
+            MatOfInt params = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, JPEG_QUALITY);
+            try {
+                Imgcodecs.imencode(".jpg", frame, jpeg, params);
+                StorageWriter.write(mContext, mImageFile, ByteBuffer.wrap(jpeg.toArray()), false,
+                        null);
+            } finally {
+                jpeg.release();
+                params.release();
+            }
+        }
+
+        addToPipeline(frame);
+    }
+
+    /**
+     * Convert a RAW frame of an HDR sequence into the {@link Mat} merged by the HDR.
+     * The RAW frames are not kept, even if the user wants the photos of the sequence.
+     */
+    private void saveRawFrame() {
+        Mat frame;
+        try {
+            frame = RawConverter.toMat(mImage);
+        } finally {
+            mImage.close();
+        }
+
+        addToPipeline(frame);
+    }
+
+    /**
+     * Store a decoded frame in the job, then hand it over to the pipeline.
+     *
+     * @param frame the frame, released if it is not part of the sequence
+     */
+    private void addToPipeline(Mat frame) {
+        if (!isInPipeline()) {
+            frame.release();
+            return;
+        }
+        if (mJob != null) {
+            // Stored from a copy: the pipeline may release the frame before it is written
+            final Mat copy = MatPool.obtain(frame.rows(), frame.cols(), frame.type());
+            frame.copyTo(copy);
+            final PersistentJob job = mJob;
+            final int index = mPhotoIndex - 1;
+            StorageWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        job.putFrame(index, copy);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to store photo " + (index + 1) + " in " + job, e);
+                    } finally {
+                        MatPool.release(copy);
+                    }
+                }
+            });
+        }
+        mFramePipeline.add(mPhotoIndex - 1, frame);
+    }
+
+    /**
+     * Log the garbage collections and the allocations of the process since the first
+     * photo of the sequence, to check that saving a burst does not churn the Java heap.
+     */
+    private void logBurstAllocations() {
+        long gcCount = runtimeStat("art.gc.gc-count");
+        long allocated = runtimeStat("art.gc.bytes-allocated");
+        if (sBurstGcCount >= 0 && gcCount >= 0 && sBurstAllocated >= 0 && allocated >= 0) {
+            Log.d(TAG, "Sequence of " + mPhotoIndex + " photos saved with "
+                    + (gcCount - sBurstGcCount) + " GCs and "
+                    + ((allocated - sBurstAllocated) >> 10) + " KB allocated; "
+                    + JpegBufferPool.stats());
+        }
+        sBurstGcCount = -1;
+        sBurstAllocated = -1;
+    }
+
+    /**
+     * @param name the name of a statistic of the runtime, see {@link Debug#getRuntimeStat}
+     * @return its value, -1 if not available
+     */
+    private static long runtimeStat(String name) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(Debug.getRuntimeStat(name));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return {@code true} if the photo belongs to the current HDR sequence
+     */
+    private boolean isInSequence() {
+        return mFrames != null && mPhotoIndex > 0 && mPhotoIndex <= mFrames.size();
+    }
+
+    /**
+     * @return {@code true} if the photo belongs to the HDR sequence of the pipeline
+     */
+    private boolean isInPipeline() {
+        return mFramePipeline != null && mPhotoIndex > 0
+                && mPhotoIndex <= mFramePipeline.size();
+    }
+
     /**
      * Create the appropriate files.
      */
@@ -170,16 +385,15 @@ class ImageSaver implements Runnable {
     }
 
     /**
-     * Trigger the Android Media Scanner to scan the new file created.
-     * It, hopefully, ensures that other apps are notified about
-     * the new file.
-     *
-     * @param path path of the new file created
+     * Show a toast.
      */
-    private void triggerMediaScanner(String path) {
-        File file = new File(path);
-        Uri uri = Uri.fromFile(file);
-        Intent scanFileIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, uri);
-        mContext.sendBroadcast(scanFileIntent);
+    private void showToast(final String message) {
+        final Activity activity = (Activity) mContext;
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(mContext, message, Toast.LENGTH_LONG).show();
+            }
+        });
     }
 }
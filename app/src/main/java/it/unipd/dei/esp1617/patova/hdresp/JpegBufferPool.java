@@ -0,0 +1,193 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Pool of the buffers that hold the encoded photos of the HDR sequences.
+ * <p>
+ * A photo of the camera is several megabytes: allocating a new array for every
+ * photo of a burst fills the Java heap and triggers the garbage collector right
+ * while the next photos arrive. The photos are instead copied into direct buffers,
+ * outside of the Java heap, that return to the pool once the HDR has decoded them.
+ * The decoders that need an array (OpenCV and {@code BitmapFactory} only take
+ * arrays) borrow one from the pool too, see {@link #obtainArray}.
+ * <p>
+ * It counts the buffers and the arrays allocated and reused, to check that the
+ * bursts stop allocating once the pool is warm. It does not depend on Android.
+ */
+final class JpegBufferPool {
+
+    /**
+     * Direct buffers kept in the pool: a sequence of 7 photos and the metering one.
+     */
+    private static final int MAX_POOLED = 8;
+
+    /**
+     * Bytes of the arrays kept in the pool. They are in the Java heap and they are only
+     * borrowed for the time of a decoding, so the pool keeps just a couple of them at
+     * full resolution rather than one per photo.
+     */
+    private static final long MAX_POOLED_ARRAY_BYTES = 16 * 1024 * 1024;
+
+    private static final Deque<ByteBuffer> sBuffers = new ArrayDeque<>();
+    private static final Deque<byte[]> sArrays = new ArrayDeque<>();
+    private static long sArrayBytes;
+    private static int sCapacity;
+    private static long sAllocated;
+    private static long sReused;
+
+    private JpegBufferPool() {
+    }
+
+    /**
+     * Set the size of the new buffers, from the resolution of the photos. The pooled
+     * buffers that are smaller are dropped.
+     *
+     * @param width  the width of the photos
+     * @param height the height of the photos
+     */
+    static synchronized void setResolution(int width, int height) {
+        // A JPEG of the camera is well below half a byte per pixel
+        int capacity = width * height / 2;
+        if (capacity == sCapacity) {
+            return;
+        }
+        sCapacity = capacity;
+        for (Iterator<ByteBuffer> iterator = sBuffers.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().capacity() < capacity) {
+                iterator.remove();
+            }
+        }
+        for (Iterator<byte[]> iterator = sArrays.iterator(); iterator.hasNext(); ) {
+            byte[] array = iterator.next();
+            if (array.length < capacity) {
+                iterator.remove();
+                sArrayBytes -= array.length;
+            }
+        }
+    }
+
+    /**
+     * Copy an encoded photo into a buffer of the pool.
+     *
+     * @param source the photo, from its position to its limit; the position is not changed
+     * @return a direct buffer with the photo from position 0 to its limit, to be given
+     * back with {@link #release}
+     */
+    static ByteBuffer copyOf(ByteBuffer source) {
+        ByteBuffer buffer = acquire(source.remaining());
+        buffer.put(source.duplicate());
+        buffer.flip();
+        return buffer;
+    }
+
+    private static synchronized ByteBuffer acquire(int size) {
+        for (Iterator<ByteBuffer> iterator = sBuffers.iterator(); iterator.hasNext(); ) {
+            ByteBuffer buffer = iterator.next();
+            if (buffer.capacity() >= size) {
+                iterator.remove();
+                buffer.clear();
+                sReused++;
+                return buffer;
+            }
+        }
+        sAllocated++;
+        return ByteBuffer.allocateDirect(Math.max(size, sCapacity));
+    }
+
+    /**
+     * Give back a buffer returned by {@link #copyOf}; it must not be used anymore.
+     * Any other buffer, e.g. one that wraps an array, is ignored.
+     *
+     * @param buffer the buffer, {@code null} to do nothing
+     */
+    static synchronized void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.isDirect() && sBuffers.size() < MAX_POOLED
+                && buffer.capacity() >= sCapacity) {
+            sBuffers.push(buffer);
+        }
+    }
+
+    /**
+     * Get the bytes of an encoded photo as an array: the array of the buffer if it has
+     * one, otherwise a copy in an array of the pool.
+     *
+     * @param image the photo, from its position to its limit; the position is not changed
+     * @return an array with the photo in its first {@code image.remaining()} bytes, to be
+     * given back with {@link #releaseArray}
+     */
+    static byte[] obtainArray(ByteBuffer image) {
+        if (image.hasArray() && image.arrayOffset() + image.position() == 0) {
+            return image.array();
+        }
+        int size = image.remaining();
+        int capacity;
+        byte[] array = null;
+        synchronized (JpegBufferPool.class) {
+            for (Iterator<byte[]> iterator = sArrays.iterator(); iterator.hasNext(); ) {
+                byte[] candidate = iterator.next();
+                if (candidate.length >= size) {
+                    iterator.remove();
+                    sArrayBytes -= candidate.length;
+                    array = candidate;
+                    sReused++;
+                    break;
+                }
+            }
+            if (array == null) {
+                sAllocated++;
+            }
+            capacity = sCapacity;
+        }
+        if (array == null) {
+            array = new byte[Math.max(size, capacity)];
+        }
+        image.duplicate().get(array, 0, size);
+        return array;
+    }
+
+    /**
+     * Give back an array returned by {@link #obtainArray}.
+     *
+     * @param image the photo the array has been obtained for
+     * @param array the array
+     */
+    static synchronized void releaseArray(ByteBuffer image, byte[] array) {
+        if (image.hasArray() && image.array() == array) {
+            return;
+        }
+        if (sArrayBytes + array.length <= MAX_POOLED_ARRAY_BYTES
+                && array.length >= sCapacity) {
+            sArrays.push(array);
+            sArrayBytes += array.length;
+        }
+    }
+
+    /**
+     * Drop the pooled arrays, to free the Java heap, keeping the direct buffers for the
+     * next burst.
+     */
+    static synchronized void clearArrays() {
+        sArrays.clear();
+        sArrayBytes = 0;
+    }
+
+    /**
+     * Drop all the pooled buffers and arrays, to free their memory.
+     */
+    static synchronized void clear() {
+        sBuffers.clear();
+        clearArrays();
+    }
+
+    /**
+     * @return how many buffers and arrays have been allocated and reused so far
+     */
+    static synchronized String stats() {
+        return String.format(Locale.US, "%d buffers allocated, %d reused", sAllocated, sReused);
+    }
+}
@@ -0,0 +1,178 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Pool of the large {@link Mat}s of the HDR, reused from a sequence to the next.
+ * <p>
+ * A sequence at full resolution allocates hundreds of megabytes of native memory, for
+ * the decoded photos and the radiance map, and frees them at the end: the next sequence,
+ * at the same resolution, would allocate (and fault in) all of them again. The released
+ * {@link Mat}s are instead kept here, keyed by size and type, up to a
+ * {@link #setCapacity capacity}; the least recently released are freed first. The OpenCV
+ * functions do not allocate an output {@link Mat} that already has the right size and
+ * type, so the {@link Mat}s obtained from the pool can be passed as outputs.
+ * <p>
+ * It does not depend on Android.
+ */
+final class MatPool {
+
+    /**
+     * Smaller {@link Mat}s are not worth pooling.
+     */
+    private static final long MIN_BYTES = 1 << 20;
+
+    /**
+     * Capacity until {@link #setCapacity} is called: about a sequence of 8 megapixel photos.
+     */
+    private static final long DEFAULT_CAPACITY = 256L << 20;
+
+    /**
+     * The pooled {@link Mat}s, the most recently released first.
+     */
+    private static final Deque<Mat> sMats = new ArrayDeque<>();
+    private static long sCapacity = DEFAULT_CAPACITY;
+    private static long sPooledBytes;
+    private static long sHits;
+    private static long sMisses;
+
+    private MatPool() {
+    }
+
+    /**
+     * Get a {@link Mat} of the given size and type. Its content is undefined.
+     *
+     * @param rows the number of rows
+     * @param cols the number of columns
+     * @param type the type, see {@link org.opencv.core.CvType}
+     * @return a {@link Mat} from the pool, or a new one if none fits
+     */
+    static Mat obtain(int rows, int cols, int type) {
+        synchronized (MatPool.class) {
+            for (Iterator<Mat> iterator = sMats.iterator(); iterator.hasNext(); ) {
+                Mat mat = iterator.next();
+                if (mat.rows() == rows && mat.cols() == cols && mat.type() == type) {
+                    iterator.remove();
+                    sPooledBytes -= bytes(mat);
+                    sHits++;
+                    return mat;
+                }
+            }
+            sMisses++;
+        }
+        return new Mat(rows, cols, type);
+    }
+
+    /**
+     * Give back a {@link Mat} to the pool, or release it if it is too small or too large.
+     * Nothing else must use it, nor its data, anymore: it is reused as it is, with no
+     * reference counting. A submatrix gives back the whole {@link Mat} it is part of.
+     *
+     * @param mat the {@link Mat}, {@code null} to do nothing
+     */
+    static void release(Mat mat) {
+        if (mat == null) {
+            return;
+        }
+        Size whole = new Size();
+        Point offset = new Point();
+        if (!mat.empty() && !isWhole(mat, whole, offset)) {
+            // e.g. the photos cut by the alignment: widen the header back to the whole data
+            int top = (int) offset.y;
+            int left = (int) offset.x;
+            Mat parent = mat.adjustROI(top, (int) whole.height - mat.rows() - top,
+                    left, (int) whole.width - mat.cols() - left);
+            mat.release();
+            mat = parent;
+        }
+        long bytes = bytes(mat);
+        // The widened header keeps the flag of a submatrix, so the area is checked instead
+        if (mat.empty() || !mat.isContinuous() || !isWhole(mat, whole, offset)
+                || bytes < MIN_BYTES) {
+            mat.release();
+            return;
+        }
+        synchronized (MatPool.class) {
+            if (sMats.contains(mat)) {
+                return;
+            }
+            if (bytes <= sCapacity) {
+                sMats.push(mat);
+                sPooledBytes += bytes;
+                mat = null;
+                trim(sCapacity);
+            }
+        }
+        if (mat != null) {
+            mat.release();
+        }
+    }
+
+    /**
+     * Set the memory the pool can keep. The pooled {@link Mat}s beyond it are freed.
+     *
+     * @param bytes the capacity, in bytes
+     */
+    static synchronized void setCapacity(long bytes) {
+        sCapacity = Math.max(0, bytes);
+        trim(sCapacity);
+    }
+
+    /**
+     * Free the least recently released {@link Mat}s, down to the given size.
+     *
+     * @param bytes the memory the pool can still keep, in bytes
+     */
+    static synchronized void trim(long bytes) {
+        while (sPooledBytes > bytes && !sMats.isEmpty()) {
+            Mat mat = sMats.removeLast();
+            sPooledBytes -= bytes(mat);
+            mat.release();
+        }
+    }
+
+    /**
+     * Free all the pooled {@link Mat}s.
+     */
+    static void clear() {
+        trim(0);
+    }
+
+    /**
+     * @return the memory kept by the pool, in bytes
+     */
+    static synchronized long getPooledBytes() {
+        return sPooledBytes;
+    }
+
+    /**
+     * @return how many {@link Mat}s have been reused and allocated so far
+     */
+    static synchronized String stats() {
+        return String.format(Locale.US, "%d mats reused, %d allocated, %d MB pooled",
+                sHits, sMisses, sPooledBytes >> 20);
+    }
+
+    /**
+     * Tell whether a {@link Mat} covers all of its data.
+     *
+     * @param whole  filled with the size of the whole data
+     * @param offset filled with the position of the {@link Mat} in the whole data
+     */
+    private static boolean isWhole(Mat mat, Size whole, Point offset) {
+        mat.locateROI(whole, offset);
+        return offset.x == 0 && offset.y == 0
+                && whole.width == mat.cols() && whole.height == mat.rows();
+    }
+
+    private static long bytes(Mat mat) {
+        return mat.total() * mat.elemSize();
+    }
+}
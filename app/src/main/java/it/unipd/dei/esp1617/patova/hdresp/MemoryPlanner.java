@@ -0,0 +1,328 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Chooses how to process an HDR sequence so that it fits in the memory of the device.
+ * <p>
+ * The peak memory of the pipeline is estimated from the number and the size of the
+ * photos and from the algorithms: the native memory of the {@link Mat}s (the decoded
+ * photos plus the largest of the buffers of the alignment, of the merge and of the
+ * tone mapping) and the Java heap (the encoded photos and, before Android 8, the
+ * pixels of the final bitmap). The estimates are rough, but on the safe side.
+ * <p>
+ * If the sequence does not fit in the budget, the planner gives up, in order: the
+ * encoded photos as soon as they are decoded; the decoded photos as soon as they are
+ * merged; the merge of the whole image at once, for a merge in bands (see
+ * {@link TiledMerge}); and finally the full resolution, downscaling the photos while
+ * they are decoded. The RAW frames can not be downscaled before the demosaicing, so
+ * they always keep their resolution.
+ * <p>
+ * It does not depend on Android.
+ */
+final class MemoryPlanner {
+
+    /**
+     * Height of the bands of the merge, when the planner enables it.
+     */
+    private static final int TILE_ROWS = 256;
+
+    /**
+     * The scales tried, in order, when the sequence does not fit at full resolution.
+     */
+    private static final double[] SCALES = {0.75, 0.5};
+
+    /**
+     * Bytes per pixel of the buffers of the stages, beyond the decoded photos.
+     */
+    private static final int RADIANCE_BYTES = 12;
+    private static final int MERGE_BYTES = 36;
+    private static final int RAW_MERGE_BYTES = 32;
+    private static final int FUSION_BYTES = 64;
+    private static final int BITMAP_BYTES = 4;
+    private static final int CHECKPOINT_BYTES = 6;
+
+    /**
+     * Bytes of the MTB pyramids, whatever the resolution, see {@link MtbAligner}.
+     */
+    private static final long ALIGN_BYTES = 8L << 20;
+
+    /**
+     * The decisions of the planner.
+     */
+    static final class Plan {
+
+        private final boolean mReleaseEncoded;
+        private final boolean mReleaseImages;
+        private final int mMergeTileRows;
+        private final double mScale;
+        private final long mNativePeak;
+        private final long mJavaPeak;
+
+        private Plan(boolean releaseEncoded, boolean releaseImages, int mergeTileRows,
+                     double scale, long nativePeak, long javaPeak) {
+            mReleaseEncoded = releaseEncoded;
+            mReleaseImages = releaseImages;
+            mMergeTileRows = mergeTileRows;
+            mScale = scale;
+            mNativePeak = nativePeak;
+            mJavaPeak = javaPeak;
+        }
+
+        /**
+         * @return {@code true} to release the encoded photos as soon as they are decoded
+         */
+        boolean releasesEncoded() {
+            return mReleaseEncoded;
+        }
+
+        /**
+         * @return {@code true} to release the decoded photos as soon as they are merged,
+         * see {@link HdrEngine#setReleaseImages}
+         */
+        boolean releasesImages() {
+            return mReleaseImages;
+        }
+
+        /**
+         * @return the height of the bands of the merge, 0 to merge the whole images at once
+         */
+        int getMergeTileRows() {
+            return mMergeTileRows;
+        }
+
+        /**
+         * @return the scale of the photos, 1 for the full resolution
+         */
+        double getScale() {
+            return mScale;
+        }
+
+        /**
+         * @return the estimated peak of the native memory, in bytes
+         */
+        long getNativePeak() {
+            return mNativePeak;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "native %d MB, java %d MB, release encoded %b, "
+                            + "release images %b, merge tile rows %d, scale %.2f",
+                    mNativePeak >> 20, mJavaPeak >> 20, mReleaseEncoded, mReleaseImages,
+                    mMergeTileRows, mScale);
+        }
+    }
+
+    private final int mFrames;
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mRaw;
+    private boolean mAlign;
+    private int mHdrAlg;
+    private int mToneAlg;
+    private long mEncodedBytes;
+    private int mMergeTileRows;
+    private int mMergeThreads = 1;
+    private boolean mBitmapOnJavaHeap;
+    private boolean mCheckpointed;
+    private double mFixedScale;
+
+    /**
+     * @param frames the number of photos of the sequence
+     * @param width  the width of the photos
+     * @param height the height of the photos
+     * @param raw    whether the photos are RAW frames, see {@link RawMerge}
+     */
+    MemoryPlanner(int frames, int width, int height, boolean raw) {
+        mFrames = frames;
+        mWidth = width;
+        mHeight = height;
+        mRaw = raw;
+    }
+
+    /**
+     * @param align   whether the photos are aligned
+     * @param hdrAlg  the HDR algorithm, see {@link HdrEngine}
+     * @param toneAlg the tone mapping algorithm, see {@link HdrEngine}
+     */
+    void setAlgorithms(boolean align, int hdrAlg, int toneAlg) {
+        mAlign = align;
+        mHdrAlg = hdrAlg;
+        mToneAlg = toneAlg;
+    }
+
+    /**
+     * @param bytes the size of the encoded photos on the Java heap, 0 if they are already
+     *              decoded or in direct buffers
+     */
+    void setEncodedBytes(long bytes) {
+        mEncodedBytes = bytes;
+    }
+
+    /**
+     * @param tileRows the height of the bands of the merge chosen by the user, 0 for none
+     * @param threads  the threads of the merge, 0 for one per core
+     */
+    void setMergeTiling(int tileRows, int threads) {
+        mMergeTileRows = tileRows;
+        mMergeThreads = threads <= 0 ? Runtime.getRuntime().availableProcessors() : threads;
+    }
+
+    /**
+     * @param onJavaHeap whether the pixels of the bitmaps are allocated on the Java heap,
+     *                   as before Android 8
+     */
+    void setBitmapOnJavaHeap(boolean onJavaHeap) {
+        mBitmapOnJavaHeap = onJavaHeap;
+    }
+
+    /**
+     * @param checkpointed whether the merged radiance is stored, see
+     *                     {@link RadianceCache#compact}: its copy in half floats is
+     *                     kept while it is tone mapped
+     */
+    void setCheckpointed(boolean checkpointed) {
+        mCheckpointed = checkpointed;
+    }
+
+    /**
+     * Force the scale of the photos, e.g. the one chosen when a resumed job was first
+     * started, that its checkpoints depend on.
+     *
+     * @param scale the scale, 0 to let the planner choose it
+     */
+    void setFixedScale(double scale) {
+        mFixedScale = scale;
+    }
+
+    /**
+     * Choose the cheapest strategy that fits in the budget or, if none does, the one
+     * that uses the least memory.
+     *
+     * @param nativeBudget the native memory available to the sequence, in bytes
+     * @param javaBudget   the Java heap available to the sequence, in bytes
+     * @return the plan
+     */
+    Plan plan(long nativeBudget, long javaBudget) {
+        boolean releaseEncoded = estimateJava(false) > javaBudget;
+
+        boolean releaseImages = false;
+        int tileRows = mMergeTileRows;
+        double scale = mFixedScale > 0 ? mFixedScale : 1;
+        long peak = estimateNative(releaseImages, tileRows, scale);
+        if (peak > nativeBudget) {
+            releaseImages = true;
+            peak = estimateNative(releaseImages, tileRows, scale);
+        }
+        if (peak > nativeBudget && tileRows <= 0 && !mRaw
+                && mHdrAlg != HdrEngine.EXPOSURE_FUSION) {
+            tileRows = TILE_ROWS;
+            peak = estimateNative(releaseImages, tileRows, scale);
+        }
+        if (!mRaw && mFixedScale <= 0) {
+            for (int i = 0; i < SCALES.length && peak > nativeBudget; i++) {
+                scale = SCALES[i];
+                peak = estimateNative(releaseImages, tileRows, scale);
+            }
+        }
+        return new Plan(releaseEncoded, releaseImages, tileRows, scale, peak,
+                estimateJava(releaseEncoded));
+    }
+
+    /**
+     * Estimate the peak of the native memory.
+     *
+     * @param releaseImages whether the decoded photos are released once merged
+     * @param tileRows      the height of the bands of the merge, 0 for none
+     * @param scale         the scale of the photos
+     * @return the peak, in bytes
+     */
+    long estimateNative(boolean releaseImages, int tileRows, double scale) {
+        long pixels = (long) (mWidth * scale) * (long) (mHeight * scale);
+        long frames = mFrames * pixels * (mRaw ? 2 : 3);
+        // The MTB pyramids of two photos, built on the photos downscaled (the photos are
+        // shifted with no copy), and the half resolution gray RAW frames
+        long align = mAlign ? ALIGN_BYTES + (mRaw ? mFrames * pixels / 4 : 0) : 0;
+
+        long merge;
+        long toneMap;
+        long checkpoint = mCheckpointed ? pixels * CHECKPOINT_BYTES : 0;
+        if (mRaw) {
+            merge = pixels * RAW_MERGE_BYTES;
+            toneMap = pixels * (RADIANCE_BYTES + toneMapBytes(mToneAlg)) + checkpoint;
+        } else if (mHdrAlg == HdrEngine.EXPOSURE_FUSION) {
+            // The weights of all the photos, then the pyramids of one photo at a time
+            merge = pixels * (4L * mFrames + FUSION_BYTES);
+            toneMap = pixels * RADIANCE_BYTES;
+        } else {
+            double band = 1;
+            if (tileRows > 0) {
+                band = Math.min(1, tileRows * mMergeThreads / (mHeight * scale));
+            }
+            merge = pixels * RADIANCE_BYTES + (long) (pixels * MERGE_BYTES * band);
+            toneMap = pixels * (RADIANCE_BYTES + toneMapBytes(mToneAlg)) + checkpoint;
+        }
+        long bitmap = mBitmapOnJavaHeap ? 0 : pixels * BITMAP_BYTES;
+
+        long kept = releaseImages ? 0 : frames;
+        return Math.max(frames + Math.max(align, merge),
+                kept + Math.max(toneMap, pixels * RADIANCE_BYTES + bitmap));
+    }
+
+    /**
+     * Estimate the peak of the Java heap.
+     *
+     * @param releaseEncoded whether the encoded photos are released once decoded
+     * @return the peak, in bytes
+     */
+    long estimateJava(boolean releaseEncoded) {
+        long bitmap = mBitmapOnJavaHeap ? (long) mWidth * mHeight * BITMAP_BYTES : 0;
+        return releaseEncoded ? Math.max(mEncodedBytes, bitmap) : mEncodedBytes + bitmap;
+    }
+
+    /**
+     * Bytes per pixel of the buffers of a tone mapping algorithm, beyond its input.
+     */
+    private static int toneMapBytes(int toneAlg) {
+        switch (toneAlg) {
+            case 1:
+                return 16;
+            case 2:
+                return 32;
+            case 3:
+                return 48;
+            default:
+                return 24;
+        }
+    }
+
+    /**
+     * Wrap a decoder so that it downscales every photo as soon as it is decoded, so that
+     * only one photo per thread is ever at full resolution.
+     *
+     * @param decoder the decoder of the photos
+     * @param scale   the scale of the photos
+     * @return the downscaling decoder; the reduced photos are decoded as before
+     */
+    static HdrEngine.Decoder downscaling(final HdrEngine.Decoder decoder, final double scale) {
+        return new HdrEngine.Decoder() {
+            @Override
+            public Mat decode(ByteBuffer image, boolean reduced) {
+                Mat decoded = decoder.decode(image, reduced);
+                if (reduced) {
+                    return decoded;
+                }
+                Mat scaled = new Mat();
+                Imgproc.resize(decoded, scaled, new Size(), scale, scale, Imgproc.INTER_AREA);
+                decoded.release();
+                return scaled;
+            }
+        };
+    }
+}
@@ -0,0 +1,397 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.photo.AlignMTB;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes the shifts between the photos of a sequence with the MTB algorithm, as
+ * {@link AlignMTB#calculateShift}, at a fraction of its cost on large photos.
+ * <p>
+ * {@link AlignMTB} builds the bitmap pyramids of both photos at full resolution for
+ * every pair, and tests every shift on whole bitmaps. Here the pyramid of a photo is
+ * built once, from the photo downscaled to at most {@link #BASE_SIZE} pixels per side,
+ * and reused for all the pairs it is part of. Below the base, the shift is refined
+ * level by level down to the full resolution on crops of {@link #CROP_SIZE} pixels spread
+ * over the photos (see {@link #CROP_CENTERS}), which are enough to find a global
+ * translation even when the center of the photos is flat; the crops of the reference
+ * photo are reused for all the pairs too. The shifts are tested on views of the bitmaps,
+ * with no shifted copy. The pyramid has as many levels as the one of {@link AlignMTB},
+ * counting the ones below the base, so the range of the shifts is the same.
+ * <p>
+ * It does not depend on Android.
+ */
+final class MtbAligner {
+
+    /**
+     * Conversion of the photos that are already gray, 8 bit single channel.
+     */
+    static final int NO_CONVERSION = -1;
+
+    /**
+     * Largest side of the base of the pyramid, that covers the whole photo.
+     */
+    private static final int BASE_SIZE = 1024;
+
+    /**
+     * Side of the crops that refine the shift below the base of the pyramid.
+     */
+    private static final int CROP_SIZE = 512;
+
+    /**
+     * Centers of the crops, as fractions of the width and of the height of the photo: the
+     * center and the centers of the four quadrants.
+     */
+    private static final double[][] CROP_CENTERS = {
+            {0.5, 0.5}, {0.25, 0.25}, {0.75, 0.25}, {0.25, 0.75}, {0.75, 0.75}};
+
+    /**
+     * Levels of the pyramid, counting the ones below its base, as the default of
+     * {@link AlignMTB}.
+     */
+    private static final int MAX_BITS = 6;
+
+    /**
+     * Pixels this close to the median are excluded, as the default of {@link AlignMTB}.
+     */
+    private static final int EXCLUDE_RANGE = 4;
+
+    /**
+     * The threshold and exclusion bitmaps of an area of a photo, at one level.
+     */
+    private static final class Bitmaps {
+
+        private final Mat mThreshold = new Mat();
+        private final Mat mExclusion = new Mat();
+        private final Rect mArea;
+
+        /**
+         * @param gray the gray pixels of the area
+         * @param x    the left of the area, in the coordinates of its level
+         * @param y    the top of the area, in the coordinates of its level
+         */
+        Bitmaps(Mat gray, int x, int y) {
+            mArea = new Rect(x, y, gray.cols(), gray.rows());
+            int median = median(gray);
+            Imgproc.threshold(gray, mThreshold, median, 255, Imgproc.THRESH_BINARY);
+            Core.inRange(gray, new Scalar(median - EXCLUDE_RANGE),
+                    new Scalar(median + EXCLUDE_RANGE), mExclusion);
+            Core.bitwise_not(mExclusion, mExclusion);
+        }
+
+        void release() {
+            mThreshold.release();
+            mExclusion.release();
+        }
+    }
+
+    /**
+     * The bitmaps of a photo: the pyramid of the whole photo and, lazily, the crops
+     * below it.
+     */
+    static final class Pyramid {
+
+        private final Mat mSource;
+        private final int mConversion;
+        private final int mBaseLevel;
+        private final List<Bitmaps> mLevels = new ArrayList<>();
+        private final Bitmaps[][] mCrops;
+
+        private Pyramid(Mat source, int conversion) {
+            mSource = source;
+            mConversion = conversion;
+            int side = Math.max(source.rows(), source.cols());
+            int baseLevel = 0;
+            while ((side >> baseLevel) > BASE_SIZE) {
+                baseLevel++;
+            }
+            mBaseLevel = baseLevel;
+            mCrops = new Bitmaps[baseLevel][];
+
+            Mat gray = gray(new Rect(0, 0, source.cols(), source.rows()), baseLevel);
+            // The same number of levels of AlignMTB at full resolution, minus the ones
+            // below the base
+            int levels = Math.max(1, Math.min((int) (Math.log(side) / Math.log(2)),
+                    MAX_BITS - 1) + 1 - baseLevel);
+            for (int level = 0; level < levels; level++) {
+                mLevels.add(new Bitmaps(gray, 0, 0));
+                if (level + 1 < levels) {
+                    Mat half = new Mat();
+                    Imgproc.pyrDown(gray, half);
+                    gray.release();
+                    gray = half;
+                }
+            }
+            gray.release();
+        }
+
+        /**
+         * The gray pixels of an area of the photo, at a level.
+         *
+         * @param area  the area, in full resolution coordinates
+         * @param level the level: the area is downscaled by 2 to the level
+         */
+        private Mat gray(Rect area, int level) {
+            Mat region = mSource.submat(area);
+            Mat scaled = region;
+            if (level > 0) {
+                scaled = new Mat();
+                Imgproc.resize(region, scaled, new Size(Math.max(1, area.width >> level),
+                        Math.max(1, area.height >> level)), 0, 0, Imgproc.INTER_AREA);
+            }
+            Mat gray = new Mat();
+            if (mConversion == NO_CONVERSION) {
+                scaled.copyTo(gray);
+            } else {
+                // The same conversion done by AlignMTB
+                Imgproc.cvtColor(scaled, gray, mConversion);
+            }
+            if (scaled != region) {
+                scaled.release();
+            }
+            region.release();
+            return gray;
+        }
+
+        /**
+         * The bitmaps of an area of the photo at a level below the base.
+         *
+         * @param area  the area, in the coordinates of the level
+         * @param level the level, below {@link #mBaseLevel}
+         */
+        private Bitmaps crop(Rect area, int level) {
+            Mat gray = gray(new Rect(area.x << level, area.y << level,
+                    area.width << level, area.height << level), level);
+            Bitmaps bitmaps = new Bitmaps(gray, area.x, area.y);
+            gray.release();
+            return bitmaps;
+        }
+
+        /**
+         * The bitmaps of the crops at {@link #CROP_CENTERS} at a level below the base,
+         * computed once.
+         */
+        private synchronized Bitmaps[] crops(int level) {
+            if (mCrops[level] == null) {
+                int width = mSource.cols() >> level;
+                int height = mSource.rows() >> level;
+                int cropWidth = Math.min(CROP_SIZE, width);
+                int cropHeight = Math.min(CROP_SIZE, height);
+                Bitmaps[] crops = new Bitmaps[CROP_CENTERS.length];
+                for (int i = 0; i < crops.length; i++) {
+                    int x = (int) (width * CROP_CENTERS[i][0]) - cropWidth / 2;
+                    int y = (int) (height * CROP_CENTERS[i][1]) - cropHeight / 2;
+                    crops[i] = crop(new Rect(Math.max(0, Math.min(x, width - cropWidth)),
+                            Math.max(0, Math.min(y, height - cropHeight)),
+                            cropWidth, cropHeight), level);
+                }
+                mCrops[level] = crops;
+            }
+            return mCrops[level];
+        }
+
+        /**
+         * Release the bitmaps; the photo is not released.
+         */
+        synchronized void release() {
+            for (Bitmaps bitmaps : mLevels) {
+                bitmaps.release();
+            }
+            mLevels.clear();
+            for (int i = 0; i < mCrops.length; i++) {
+                if (mCrops[i] != null) {
+                    for (Bitmaps crop : mCrops[i]) {
+                        crop.release();
+                    }
+                    mCrops[i] = null;
+                }
+            }
+        }
+    }
+
+    private MtbAligner() {
+    }
+
+    /**
+     * Build the pyramid of a photo.
+     *
+     * @param image      the photo; it must not be released nor changed while the pyramid
+     *                   is used
+     * @param conversion the conversion of the photo to gray, e.g.
+     *                   {@link Imgproc#COLOR_RGB2GRAY}, or {@link #NO_CONVERSION}
+     * @return the pyramid, to be released once all the shifts are computed
+     */
+    static Pyramid build(Mat image, int conversion) {
+        return new Pyramid(image, conversion);
+    }
+
+    /**
+     * Compute the shift of a photo with respect to the reference one, with the same
+     * meaning of {@link AlignMTB#calculateShift}.
+     *
+     * @param reference the pyramid of the reference photo
+     * @param image     the pyramid of the photo, of the same size
+     * @return the shift that aligns the photo to the reference one
+     */
+    static Point calculateShift(Pyramid reference, Pyramid image) {
+        int x = 0;
+        int y = 0;
+        Mat diff = new Mat();
+        try {
+            int levels = Math.min(reference.mLevels.size(), image.mLevels.size());
+            for (int level = levels - 1; level >= 0; level--) {
+                int[] shift = search(new Bitmaps[]{reference.mLevels.get(level)},
+                        new Bitmaps[]{image.mLevels.get(level)}, x * 2, y * 2, diff);
+                x = shift[0];
+                y = shift[1];
+            }
+
+            // Refine the shift on the crops, down to the full resolution
+            for (int level = reference.mBaseLevel - 1; level >= 0; level--) {
+                x *= 2;
+                y *= 2;
+                Bitmaps[] references = reference.crops(level);
+                Bitmaps[] crops = new Bitmaps[references.length];
+                int width = image.mSource.cols() >> level;
+                int height = image.mSource.rows() >> level;
+                try {
+                    for (int i = 0; i < crops.length; i++) {
+                        // The area of the photo the crop is compared with, for all the
+                        // shifts tested at this level
+                        Rect area = references[i].mArea;
+                        int left = Math.max(0, area.x - x - 1);
+                        int top = Math.max(0, area.y - y - 1);
+                        int right = Math.min(width, area.x + area.width - x + 1);
+                        int bottom = Math.min(height, area.y + area.height - y + 1);
+                        if (right - left >= 3 && bottom - top >= 3) {
+                            crops[i] = image.crop(new Rect(left, top, right - left,
+                                    bottom - top), level);
+                        }
+                    }
+                    int[] shift = search(references, crops, x, y, diff);
+                    x = shift[0];
+                    y = shift[1];
+                } finally {
+                    for (Bitmaps crop : crops) {
+                        if (crop != null) {
+                            crop.release();
+                        }
+                    }
+                }
+            }
+        } finally {
+            diff.release();
+        }
+        return new Point(x, y);
+    }
+
+    /**
+     * Test the shifts within a pixel of the given one, as {@link AlignMTB} does at every
+     * level, on the areas that the pairs of bitmaps have in common for all of them.
+     *
+     * @param references the bitmaps of the reference photo
+     * @param images     the bitmaps of the photo, paired with the reference ones; the
+     *                   missing ones are skipped
+     * @return the shift with the fewest different pixels over all the pairs, as {x, y}:
+     * the given one on a tie, so that flat areas do not move it
+     */
+    private static int[] search(Bitmaps[] references, Bitmaps[] images, int x, int y,
+                                Mat diff) {
+        long[] errors = new long[9];
+        boolean compared = false;
+        for (int k = 0; k < references.length; k++) {
+            if (images[k] != null) {
+                compared |= addErrors(references[k], images[k], x, y, diff, errors);
+            }
+        }
+        if (!compared) {
+            return new int[]{x, y};
+        }
+
+        // The given shift is the center of the candidates
+        int best = 4;
+        for (int k = 0; k < errors.length; k++) {
+            if (errors[k] < errors[best]) {
+                best = k;
+            }
+        }
+        return new int[]{x + best / 3 - 1, y + best % 3 - 1};
+    }
+
+    /**
+     * Add the different pixels of a pair of bitmaps for every shift within a pixel of the
+     * given one, indexed by (dx + 1) * 3 + dy + 1.
+     *
+     * @return {@code false} if the bitmaps have no area in common
+     */
+    private static boolean addErrors(Bitmaps reference, Bitmaps image, int x, int y, Mat diff,
+                                     long[] errors) {
+        // The reference pixels p compared with the pixels p - shift of the image
+        Rect a = reference.mArea;
+        Rect b = image.mArea;
+        int left = Math.max(a.x, b.x + x + 1);
+        int top = Math.max(a.y, b.y + y + 1);
+        int right = Math.min(a.x + a.width, b.x + b.width + x - 1);
+        int bottom = Math.min(a.y + a.height, b.y + b.height + y - 1);
+        if (right <= left || bottom <= top) {
+            return false;
+        }
+        int width = right - left;
+        int height = bottom - top;
+
+        Mat referenceThreshold = reference.mThreshold.submat(
+                top - a.y, bottom - a.y, left - a.x, right - a.x);
+        Mat referenceExclusion = reference.mExclusion.submat(
+                top - a.y, bottom - a.y, left - a.x, right - a.x);
+        try {
+            for (int i = -1; i <= 1; i++) {
+                for (int j = -1; j <= 1; j++) {
+                    int row = top - (y + j) - b.y;
+                    int col = left - (x + i) - b.x;
+                    Mat threshold = image.mThreshold.submat(row, row + height, col, col + width);
+                    Mat exclusion = image.mExclusion.submat(row, row + height, col, col + width);
+                    Core.bitwise_xor(referenceThreshold, threshold, diff);
+                    Core.bitwise_and(diff, referenceExclusion, diff);
+                    Core.bitwise_and(diff, exclusion, diff);
+                    threshold.release();
+                    exclusion.release();
+
+                    errors[(i + 1) * 3 + j + 1] += Core.countNonZero(diff);
+                }
+            }
+        } finally {
+            referenceThreshold.release();
+            referenceExclusion.release();
+        }
+        return true;
+    }
+
+    /**
+     * The median of the gray pixels, as computed by {@link AlignMTB}.
+     */
+    private static int median(Mat gray) {
+        byte[] pixels = new byte[(int) gray.total()];
+        gray.get(0, 0, pixels);
+        int[] histogram = new int[256];
+        for (byte pixel : pixels) {
+            histogram[pixel & 0xff]++;
+        }
+        int half = (pixels.length + 1) / 2;
+        int count = 0;
+        for (int value = 0; value < histogram.length; value++) {
+            count += histogram[value];
+            if (count >= half) {
+                return value;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,526 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * An HDR job stored on disk, so that it survives the death of the process.
+ * <p>
+ * Every job is a directory with the photos of the sequence, as captured (JPEG)
+ * or already decoded ({@link Mat} dumps of the YUV and RAW frames), and a
+ * properties file with everything else needed to compute the HDR. The properties
+ * are written last, atomically: a job without them has not been completely
+ * saved and is deleted. While the job runs, the outputs of its expensive stages
+ * are stored next to the photos (the shifts of the alignment among the properties,
+ * the response curve in a {@link ResponseCache}, the merged radiance as in a
+ * {@link RadianceCache}), so that a new process resumes from the last completed stage.
+ * <p>
+ * It does not depend on Android.
+ */
+final class PersistentJob {
+
+    /**
+     * Name of the directory of the jobs, inside the private directory of the app.
+     */
+    static final String DIR_NAME = "hdr_jobs";
+
+    private static final String PARAMETERS = "job.properties";
+    private static final String RADIANCE = "radiance.rad";
+    private static final String KEY_SHIFTS = "shifts";
+    private static final int MAGIC = 0x484a4d54; // "HJMT"
+
+    /**
+     * Maximum size of the buffer used to read and write a {@link Mat}.
+     */
+    private static final int CHUNK_BYTES = 1 << 20;
+
+    private final File mDirectory;
+
+    private PersistentJob(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Create a new empty job.
+     *
+     * @param root the directory of all the jobs
+     * @return the job
+     * @throws IOException if its directory cannot be created
+     */
+    static PersistentJob create(File root) throws IOException {
+        File directory = new File(root, "job_" + System.currentTimeMillis());
+        for (int i = 1; directory.exists(); i++) {
+            directory = new File(root, "job_" + System.currentTimeMillis() + "_" + i);
+        }
+        if (!directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        return new PersistentJob(directory);
+    }
+
+    /**
+     * List the jobs left by a previous process, oldest first. The jobs that have
+     * not been completely saved are deleted. It must be called before any new job
+     * is created by this process.
+     *
+     * @param root the directory of all the jobs
+     * @return the jobs that can be resumed
+     */
+    static List<PersistentJob> pending(File root) {
+        File[] directories = root.listFiles();
+        if (directories == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(directories);
+
+        List<PersistentJob> jobs = new ArrayList<>();
+        for (File directory : directories) {
+            PersistentJob job = new PersistentJob(directory);
+            if (new File(directory, PARAMETERS).isFile()) {
+                jobs.add(job);
+            } else {
+                job.delete();
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * @return the directory of the job, to store other outputs in it
+     */
+    File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Store the parameters of the job, replacing the previous ones. After the first call
+     * the job is complete and it is resumed by a new process.
+     *
+     * @param parameters the parameters of the job
+     * @throws IOException if they cannot be written
+     */
+    synchronized void commit(Properties parameters) throws IOException {
+        File temp = new File(mDirectory, PARAMETERS + ".tmp");
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(temp);
+            parameters.store(output, null);
+            output.getFD().sync();
+            output.close();
+            output = null;
+        } finally {
+            close(output);
+        }
+        if (!temp.renameTo(new File(mDirectory, PARAMETERS))) {
+            throw new IOException("Unable to save the parameters of " + mDirectory);
+        }
+    }
+
+    /**
+     * @return the parameters of the job, empty if it has not been committed yet
+     * @throws IOException if they cannot be read
+     */
+    synchronized Properties getParameters() throws IOException {
+        Properties parameters = new Properties();
+        File file = new File(mDirectory, PARAMETERS);
+        if (file.isFile()) {
+            FileInputStream input = new FileInputStream(file);
+            try {
+                parameters.load(input);
+            } finally {
+                close(input);
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Store the shifts of the alignment among the parameters of the job, so that the
+     * next commits of the same parameters keep them.
+     *
+     * @param parameters the parameters of the job, with the shifts added
+     * @param shifts     the shifts of the photos
+     * @throws IOException if they cannot be written
+     */
+    synchronized void putShifts(Properties parameters, Point[] shifts) throws IOException {
+        float[] values = new float[shifts.length * 2];
+        for (int i = 0; i < shifts.length; i++) {
+            values[i * 2] = (float) shifts[i].x;
+            values[i * 2 + 1] = (float) shifts[i].y;
+        }
+        parameters.setProperty(KEY_SHIFTS, join(values));
+        commit(parameters);
+    }
+
+    /**
+     * @param parameters the parameters of the job
+     * @return the shifts of the alignment, {@code null} if the photos have not been
+     * aligned yet
+     */
+    static Point[] getShifts(Properties parameters) {
+        float[] values = split(parameters.getProperty(KEY_SHIFTS));
+        if (values == null) {
+            return null;
+        }
+        Point[] shifts = new Point[values.length / 2];
+        for (int i = 0; i < shifts.length; i++) {
+            shifts[i] = new Point(values[i * 2], values[i * 2 + 1]);
+        }
+        return shifts;
+    }
+
+    /**
+     * Store a photo of the sequence as captured.
+     *
+     * @param index the position of the photo in the sequence, starting from 0
+     * @param jpeg  the encoded photo, from its position to its limit; the position is
+     *              not changed
+     * @throws IOException if it cannot be written
+     */
+    void putJpeg(int index, ByteBuffer jpeg) throws IOException {
+        File temp = new File(mDirectory, frameName(index, ".jpg") + ".tmp");
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(temp);
+            FileChannel channel = output.getChannel();
+            ByteBuffer source = jpeg.duplicate();
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+            output.close();
+            output = null;
+        } finally {
+            close(output);
+        }
+        if (!temp.renameTo(new File(mDirectory, frameName(index, ".jpg")))) {
+            throw new IOException("Unable to save the photo " + index);
+        }
+    }
+
+    /**
+     * Store a photo of the sequence already decoded.
+     *
+     * @param index the position of the photo in the sequence, starting from 0
+     * @param frame the photo, 8 bit BGR or 16 bit RAW
+     * @throws IOException if it cannot be written
+     */
+    void putFrame(int index, Mat frame) throws IOException {
+        writeMat(new File(mDirectory, frameName(index, ".mat")), frame);
+    }
+
+    /**
+     * @param index the position of the photo in the sequence, starting from 0
+     * @return the photo stored by {@link #putJpeg}, in a buffer on the Java heap;
+     * {@code null} if it has been stored decoded
+     * @throws IOException if the photo is missing or cannot be read
+     */
+    ByteBuffer getJpeg(int index) throws IOException {
+        File file = new File(mDirectory, frameName(index, ".jpg"));
+        if (!file.isFile()) {
+            if (new File(mDirectory, frameName(index, ".mat")).isFile()) {
+                return null;
+            }
+            throw new IOException("Photo " + index + " of the job is missing");
+        }
+        byte[] jpeg = new byte[(int) file.length()];
+        FileInputStream input = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < jpeg.length) {
+                int count = input.read(jpeg, read, jpeg.length - read);
+                if (count < 0) {
+                    throw new IOException("Truncated photo " + index);
+                }
+                read += count;
+            }
+        } finally {
+            close(input);
+        }
+        return ByteBuffer.wrap(jpeg);
+    }
+
+    /**
+     * @param index the position of the photo in the sequence, starting from 0
+     * @return the photo stored by {@link #putFrame}
+     * @throws IOException if the photo is missing or cannot be read
+     */
+    Mat getFrame(int index) throws IOException {
+        return readMat(new File(mDirectory, frameName(index, ".mat")));
+    }
+
+    /**
+     * Store the merged radiance, the output of the last expensive stage, in half floats
+     * as in the {@link RadianceCache}.
+     *
+     * @param radiance the HDR image, see {@link RadianceCache#compact}
+     * @throws IOException if it cannot be written
+     */
+    void putRadiance(RadianceCache.Compact radiance) throws IOException {
+        RadianceCache.write(new File(mDirectory, RADIANCE), radiance);
+    }
+
+    /**
+     * @return the radiance stored by {@link #putRadiance}, 32 bit float; {@code null} if
+     * the photos have not been merged yet or it cannot be read
+     */
+    Mat getRadiance() {
+        File file = new File(mDirectory, RADIANCE);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return RadianceCache.read(file);
+        } catch (IOException e) {
+            // Merged again from the photos
+            return null;
+        }
+    }
+
+    /**
+     * Delete the job and all its files.
+     */
+    void delete() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+        if (!mDirectory.delete()) {
+            mDirectory.deleteOnExit();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mDirectory.getName();
+    }
+
+    /**
+     * @return the values separated by commas, for the properties of a job
+     */
+    static String join(float[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(values[i]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return the values joined by {@link #join}, {@code null} if {@code text} is
+     * {@code null}
+     */
+    static float[] split(String text) {
+        if (text == null) {
+            return null;
+        }
+        if (text.isEmpty()) {
+            return new float[0];
+        }
+        String[] parts = text.split(",");
+        float[] values = new float[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Float.parseFloat(parts[i]);
+        }
+        return values;
+    }
+
+    private static String frameName(int index, String extension) {
+        return String.format(Locale.US, "frame_%02d%s", index, extension);
+    }
+
+    /**
+     * Dump a {@link Mat} to a file, see {@link #writeMat(FileChannel, Mat)}.
+     * It is written to a temporary file first, so that a crash never leaves a
+     * truncated dump.
+     */
+    private static void writeMat(File file, Mat mat) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(temp);
+        try {
+            writeMat(output.getChannel(), mat);
+            output.getFD().sync();
+        } finally {
+            close(output);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to save " + file);
+        }
+    }
+
+    /**
+     * Dump a {@link Mat}: a header with its size and type, then its values in the
+     * native byte order, a band of rows at a time.
+     *
+     * @param channel the channel, at the position where to write the dump
+     * @param mat     the {@link Mat}, 8 or 16 bit integer or 32 bit float
+     * @throws IOException if it cannot be written
+     */
+    static void writeMat(FileChannel channel, Mat mat) throws IOException {
+        Mat continuous = mat.isContinuous() ? mat : mat.clone();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            header.putInt(MAGIC).putInt(mat.rows()).putInt(mat.cols()).putInt(mat.type());
+            header.flip();
+            writeFully(channel, header);
+
+            int rowBytes = (int) (mat.cols() * mat.elemSize());
+            int bandRows = Math.max(1, CHUNK_BYTES / Math.max(1, rowBytes));
+            ByteBuffer buffer = ByteBuffer.allocate(bandRows * rowBytes)
+                    .order(ByteOrder.nativeOrder());
+            for (int row = 0; row < mat.rows(); row += bandRows) {
+                int rows = Math.min(bandRows, mat.rows() - row);
+                int values = rows * mat.cols() * mat.channels();
+                buffer.clear();
+                switch (CvType.depth(mat.type())) {
+                    case CvType.CV_8U:
+                        byte[] bytes = new byte[values];
+                        continuous.get(row, 0, bytes);
+                        buffer.put(bytes);
+                        break;
+                    case CvType.CV_16U:
+                    case CvType.CV_16S:
+                        short[] shorts = new short[values];
+                        continuous.get(row, 0, shorts);
+                        buffer.asShortBuffer().put(shorts);
+                        buffer.position(values * 2);
+                        break;
+                    case CvType.CV_32F:
+                        float[] floats = new float[values];
+                        continuous.get(row, 0, floats);
+                        buffer.asFloatBuffer().put(floats);
+                        buffer.position(values * 4);
+                        break;
+                    default:
+                        throw new IOException("Unsupported type " + mat.type());
+                }
+                buffer.flip();
+                writeFully(channel, buffer);
+            }
+        } finally {
+            if (continuous != mat) {
+                continuous.release();
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Read a {@link Mat} dumped by {@link #writeMat(File, Mat)}.
+     */
+    private static Mat readMat(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            return readMat(input.getChannel());
+        } finally {
+            close(input);
+        }
+    }
+
+    /**
+     * Read a {@link Mat} dumped by {@link #writeMat(FileChannel, Mat)}.
+     *
+     * @param channel the channel, at the position of the dump
+     * @return the {@link Mat}
+     * @throws IOException if it cannot be read
+     */
+    static Mat readMat(FileChannel channel) throws IOException {
+        Mat mat = null;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            readFully(channel, header);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a dump");
+            }
+            int rows = header.getInt();
+            int cols = header.getInt();
+            int type = header.getInt();
+            mat = new Mat(rows, cols, type);
+
+            int rowBytes = (int) (cols * mat.elemSize());
+            int bandRows = Math.max(1, CHUNK_BYTES / Math.max(1, rowBytes));
+            ByteBuffer buffer = ByteBuffer.allocate(bandRows * rowBytes)
+                    .order(ByteOrder.nativeOrder());
+            for (int row = 0; row < rows; row += bandRows) {
+                int count = Math.min(bandRows, rows - row);
+                int values = count * cols * CvType.channels(type);
+                buffer.clear();
+                buffer.limit(count * rowBytes);
+                readFully(channel, buffer);
+                switch (CvType.depth(type)) {
+                    case CvType.CV_8U:
+                        byte[] bytes = new byte[values];
+                        buffer.get(bytes);
+                        mat.put(row, 0, bytes);
+                        break;
+                    case CvType.CV_16U:
+                    case CvType.CV_16S:
+                        short[] shorts = new short[values];
+                        buffer.asShortBuffer().get(shorts);
+                        mat.put(row, 0, shorts);
+                        break;
+                    case CvType.CV_32F:
+                        float[] floats = new float[values];
+                        buffer.asFloatBuffer().get(floats);
+                        mat.put(row, 0, floats);
+                        break;
+                    default:
+                        throw new IOException("Unsupported type " + type);
+                }
+            }
+            Mat result = mat;
+            mat = null;
+            return result;
+        } finally {
+            if (mat != null) {
+                mat.release();
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Truncated dump");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+}
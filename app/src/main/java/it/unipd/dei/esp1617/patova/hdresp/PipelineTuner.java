@@ -0,0 +1,694 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.widget.Toast;
+
+import org.opencv.core.CvException;
+import org.opencv.core.Size;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures the variants of the stages of the pipeline on this device and turns them into
+ * the settings of three profiles: fastest, balanced and best quality.
+ * <p>
+ * It runs once, in background, the first time the app starts (and again after an update
+ * of the system), then whenever the user asks for it. It runs on the same thread as the
+ * {@link DecoderBenchmark}, after it, and only while no HDR job is running: a stage
+ * that an HDR job overlaps is measured again. The stages of {@link HdrBenchmark}
+ * that the settings choose between (the alignment, the calibration at every level, the
+ * merge in bands with every number of threads, the exposure fusion, the tone mapping with
+ * OpenCV and with its fast versions) are run on its synthetic bracket at 2MP, and their
+ * best time and their deviation from the reference are stored in a file. The profiles are
+ * then computed from the file:
+ * <ul>
+ * <li>best quality keeps the algorithms of the user and their exact versions, at the
+ * highest resolution;</li>
+ * <li>balanced keeps the algorithms of the user and picks their fastest variants that
+ * deviate only slightly from the exact ones, at the highest resolution processed within
+ * {@link #BALANCED_TARGET};</li>
+ * <li>fastest picks the fastest of all the algorithms with their fastest acceptable
+ * variants, at the highest resolution processed within {@link #FASTEST_TARGET}.</li>
+ * </ul>
+ * The merge in bands gives the same result with any number of threads, so every profile
+ * uses the fastest one. Editing a setting that a profile chooses switches to the custom
+ * profile, so that a new tuning does not overwrite the choice of the user.
+ */
+class PipelineTuner implements Runnable {
+
+    private static final String TAG = "PIPELINE_TUNER";
+
+    /**
+     * Name of the file of the measures, inside the private directory of the app.
+     */
+    static final String FILE_NAME = "pipeline_profile.properties";
+
+    /**
+     * The profiles, as stored by {@link SettingsFragment#HDR_PROFILE}: the custom one is
+     * never changed by the tuner.
+     */
+    static final int PROFILE_CUSTOM = 0;
+    static final int PROFILE_FASTEST = 1;
+    static final int PROFILE_BALANCED = 2;
+    static final int PROFILE_BEST_QUALITY = 3;
+
+    /**
+     * Resolution of the bracket: the smallest one of {@link HdrBenchmark}, so that the
+     * tuning takes a minute or two.
+     */
+    private static final Size RESOLUTION = HdrBenchmark.RESOLUTIONS[0];
+
+    private static final int WARMUP_RUNS = 1;
+    private static final int RUNS = 2;
+
+    /**
+     * Time of a full resolution HDR image the fastest and the balanced profiles choose the
+     * resolution for, in milliseconds.
+     */
+    private static final long FASTEST_TARGET = 2000;
+    private static final long BALANCED_TARGET = 5000;
+
+    /**
+     * Largest deviation of an acceptable variant, for the balanced profile and for the
+     * fastest one: of the response curve calibrated on a level of the pyramid (see
+     * {@link HdrBenchmark#curveDistance}), of the fast tone mapping (largest absolute
+     * difference, the measure of {@link GlobalToneMap#TOLERANCE}) and of the exposure
+     * fusion with fewer levels (mean absolute difference).
+     */
+    private static final double[] CURVE_TOLERANCE = {0.02, 0.05};
+    private static final double[] TONE_MAP_TOLERANCE = {GlobalToneMap.TOLERANCE, 8 / 255.0};
+    private static final double[] FUSION_TOLERANCE = {0.005, 0.02};
+
+    private static final String KEY_CORES = "cores";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_RESOLUTION = "resolution";
+    private static final String SUFFIX_MILLIS = ".ms_per_mp";
+    private static final String SUFFIX_DEVIATION = ".deviation";
+
+    private static final String[] HDR_NAMES = {null, "debevec", "robertson"};
+    private static final String[] TONE_MAP_NAMES = {null, "drago", "durand", "mantiuk", "reinhard"};
+    private static final int[] FUSION_LEVELS = {4, 6, 8};
+    private static final int MAX_CALIBRATION_LEVEL = 4;
+    private static final int MERGE_TILE_ROWS = 256;
+
+    /**
+     * How often to check whether the HDR jobs are completed, before measuring a stage.
+     */
+    private static final long IDLE_POLL_MS = 1000;
+
+    /**
+     * A configuration of the pipeline and its estimated cost.
+     */
+    private static final class Configuration {
+        int mHdrAlg;
+        int mToneAlg;
+        boolean mFastToneMap;
+        int mCalibrationLevel;
+        int mFusionLevels;
+        int mMergeTileRows;
+        int mMergeThreads;
+        double mMillisPerMegapixel;
+
+        Configuration(CameraPreferences preferences) {
+            mHdrAlg = preferences.getHdrAlgorithm();
+            mToneAlg = preferences.getToneMappingAlgorithm();
+            mFastToneMap = preferences.isFastToneMapping();
+            mCalibrationLevel = preferences.getCalibrationLevel();
+            mFusionLevels = preferences.getFusionLevels();
+            mMergeTileRows = preferences.getMergeTileRows();
+            mMergeThreads = preferences.getMergeThreads();
+        }
+    }
+
+    /**
+     * Runs the measures of the device, of the {@link DecoderBenchmark} and of the tuning,
+     * one at a time: they would slow each other down.
+     */
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Whether a tuning is waiting or running.
+     */
+    private static final AtomicBoolean sRunning = new AtomicBoolean();
+
+    /**
+     * The settings chosen by the profiles, see {@link #settings}.
+     */
+    private static final String[] PROFILE_SETTINGS = {
+            SettingsFragment.HDR_ALGORITHM,
+            SettingsFragment.TONE_MAPPING_ALGORITHM,
+            SettingsFragment.HDR_FAST_TONE_MAPPING,
+            SettingsFragment.HDR_CALIBRATION_LEVEL,
+            SettingsFragment.HDR_FUSION_LEVELS,
+            SettingsFragment.MERGE_TILE_ROWS,
+            SettingsFragment.MERGE_THREADS,
+            SettingsFragment.BACK_CAMERA_RESOLUTION_SETTINGS
+    };
+
+    private final Context mContext;
+    private final boolean mOnDemand;
+
+    /**
+     * @param context  the context that starts the tuning; only the context of the
+     *                 application is kept
+     * @param onDemand {@code true} if the user asked for the tuning, to tell them when it
+     *                 is finished
+     */
+    private PipelineTuner(Context context, boolean onDemand) {
+        mContext = context.getApplicationContext();
+        mOnDemand = onDemand;
+    }
+
+    /**
+     * Start the tuning in background, unless it is already waiting or running.
+     *
+     * @param context  the context that starts the tuning
+     * @param onDemand {@code true} if the user asked for the tuning, to tell them when it
+     *                 is finished
+     */
+    static void start(Context context, boolean onDemand) {
+        PipelineTuner tuner = new PipelineTuner(context, onDemand);
+        if (!sRunning.compareAndSet(false, true)) {
+            if (onDemand) {
+                tuner.showToast(context.getString(R.string.tuning_running));
+            }
+            return;
+        }
+        sExecutor.execute(tuner);
+    }
+
+    /**
+     * Run another measure of the device, e.g. the {@link DecoderBenchmark}, on the thread
+     * of the tuning, so that they do not overlap.
+     *
+     * @param benchmark the measure
+     */
+    static void execute(Runnable benchmark) {
+        sExecutor.execute(benchmark);
+    }
+
+    /**
+     * Tell whether the tuning has still to run on this device. The number of cores is not
+     * checked: it follows the cores that are online, that change all the time on some
+     * devices.
+     *
+     * @param context the context of the application
+     * @return {@code true} if there are no measures, or they were taken before an update
+     * of the system
+     */
+    static boolean isNeeded(Context context) {
+        Properties measures = load(context);
+        return measures == null || !Build.FINGERPRINT.equals(measures.getProperty(KEY_FINGERPRINT));
+    }
+
+    /**
+     * @param key the key of a setting
+     * @return {@code true} if the setting is chosen by the profiles
+     */
+    static boolean manages(String key) {
+        for (String setting : PROFILE_SETTINGS) {
+            if (setting.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        try {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            if (mOnDemand) {
+                showToast(mContext.getString(R.string.tuning_started));
+            }
+            tune();
+        } finally {
+            sRunning.set(false);
+        }
+    }
+
+    /**
+     * Measure the stages, store the measures and apply the profile chosen by the user.
+     */
+    private void tune() {
+        Properties measures = new Properties();
+        measures.setProperty(KEY_FINGERPRINT, Build.FINGERPRINT);
+        measures.setProperty(KEY_CORES,
+                Integer.toString(Runtime.getRuntime().availableProcessors()));
+        measures.setProperty(KEY_RESOLUTION,
+                (int) RESOLUTION.width + "x" + (int) RESOLUTION.height);
+        HdrBenchmark.Fixture fixture = null;
+        try {
+            fixture = new HdrBenchmark.Fixture(RESOLUTION);
+            for (HdrBenchmark.Stage stage : HdrBenchmark.createStages()) {
+                if (!isTuned(stage.name)) {
+                    continue;
+                }
+                // Again if an HDR job has been submitted in the meantime
+                int submitted;
+                do {
+                    awaitIdle();
+                    submitted = HdrScheduler.getSubmitted();
+                    measure(stage, fixture, measures);
+                } while (submitted != HdrScheduler.getSubmitted());
+            }
+            save(measures);
+        } catch (CvException | OutOfMemoryError | IOException e) {
+            Log.e(TAG, "Tuning failed", e);
+            if (mOnDemand) {
+                showToast(mContext.getString(R.string.tuning_error));
+            }
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, "Tuning interrupted");
+            return;
+        } finally {
+            if (fixture != null) {
+                fixture.release();
+            }
+        }
+
+        // The profile chosen by the user follows the new measures
+        int profile = Integer.valueOf(PreferenceManager.getDefaultSharedPreferences(mContext)
+                .getString(SettingsFragment.HDR_PROFILE, Integer.toString(PROFILE_CUSTOM)));
+        if (profile != PROFILE_CUSTOM) {
+            apply(mContext, settings(mContext, profile));
+        }
+        if (mOnDemand) {
+            showToast(mContext.getString(R.string.tuning_finished));
+        }
+    }
+
+    /**
+     * Compute the settings of a profile from the measures.
+     *
+     * @param context the context of the application
+     * @param profile the profile, not {@link #PROFILE_CUSTOM}
+     * @return the values of the settings by key, {@link String}s for the lists and
+     * {@link Boolean}s for the switches, or {@code null} if the tuning has not run yet
+     */
+    static Map<String, Object> settings(Context context, int profile) {
+        Properties measures = load(context);
+        if (measures == null) {
+            return null;
+        }
+        CameraPreferences preferences = CameraPreferences.getInstance(context);
+        // The stages before the tone mapping were measured on the photos of the bracket
+        double photos = preferences.getNumHdrPhotos() / (double) HdrBenchmark.NUM_PHOTOS;
+
+        Configuration configuration;
+        long target;
+        if (profile == PROFILE_BEST_QUALITY) {
+            configuration = new Configuration(preferences);
+            configuration.mCalibrationLevel = 0;
+            configuration.mFusionLevels = 0;
+            configuration.mFastToneMap = false;
+            chooseMerge(measures, configuration);
+            estimate(measures, configuration, photos);
+            target = 0;
+        } else if (profile == PROFILE_BALANCED) {
+            configuration = tune(measures, new Configuration(preferences), 0, photos);
+            target = BALANCED_TARGET;
+        } else {
+            configuration = null;
+            for (int hdrAlg = 1; hdrAlg <= HdrEngine.EXPOSURE_FUSION; hdrAlg++) {
+                for (int toneAlg = 1; toneAlg < TONE_MAP_NAMES.length; toneAlg++) {
+                    Configuration candidate = new Configuration(preferences);
+                    candidate.mHdrAlg = hdrAlg;
+                    // The exposure fusion does not tone map: the tone mapping of the
+                    // user is kept, and it is tried only once
+                    boolean fusion = hdrAlg == HdrEngine.EXPOSURE_FUSION;
+                    candidate.mToneAlg = fusion ? preferences.getToneMappingAlgorithm()
+                            : toneAlg;
+                    candidate = tune(measures, candidate, 1, photos);
+                    if (configuration == null || candidate.mMillisPerMegapixel
+                            < configuration.mMillisPerMegapixel) {
+                        configuration = candidate;
+                    }
+                    if (fusion) {
+                        break;
+                    }
+                }
+            }
+            target = FASTEST_TARGET;
+        }
+        Log.i(TAG, String.format(Locale.US, "Profile %d: HDR %d, tone mapping %d%s, "
+                        + "calibration level %d, fusion levels %d, merge %d rows on %d threads, "
+                        + "%.0f ms/MP", profile, configuration.mHdrAlg, configuration.mToneAlg,
+                configuration.mFastToneMap ? " (fast)" : "", configuration.mCalibrationLevel,
+                configuration.mFusionLevels, configuration.mMergeTileRows,
+                configuration.mMergeThreads, configuration.mMillisPerMegapixel));
+
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put(SettingsFragment.HDR_ALGORITHM, Integer.toString(configuration.mHdrAlg));
+        settings.put(SettingsFragment.TONE_MAPPING_ALGORITHM,
+                Integer.toString(configuration.mToneAlg));
+        settings.put(SettingsFragment.HDR_FAST_TONE_MAPPING, configuration.mFastToneMap);
+        settings.put(SettingsFragment.HDR_CALIBRATION_LEVEL,
+                Integer.toString(configuration.mCalibrationLevel));
+        settings.put(SettingsFragment.HDR_FUSION_LEVELS,
+                Integer.toString(configuration.mFusionLevels));
+        settings.put(SettingsFragment.MERGE_TILE_ROWS,
+                Integer.toString(configuration.mMergeTileRows));
+        settings.put(SettingsFragment.MERGE_THREADS,
+                Integer.toString(configuration.mMergeThreads));
+        String resolution = chooseResolution(context, configuration.mMillisPerMegapixel, target);
+        if (resolution != null) {
+            settings.put(SettingsFragment.BACK_CAMERA_RESOLUTION_SETTINGS, resolution);
+        }
+        return settings;
+    }
+
+    /**
+     * Store the settings of a profile in the {@link SharedPreferences}. The
+     * {@link SettingsFragment} applies them through its preferences instead, so that they
+     * show the new values.
+     *
+     * @param context  the context of the application
+     * @param settings the settings, see {@link #settings}
+     */
+    static void apply(Context context, Map<String, Object> settings) {
+        SharedPreferences sharedPreferences =
+                PreferenceManager.getDefaultSharedPreferences(context);
+        Object level = settings.get(SettingsFragment.HDR_CALIBRATION_LEVEL);
+        if (level != null && !level.equals(sharedPreferences.getString(
+                SettingsFragment.HDR_CALIBRATION_LEVEL, null))) {
+            // The cached curves were computed at the old resolution
+            new ResponseCache(CameraPreferences.getResponseCacheDir(context)).clear();
+        }
+
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        for (Map.Entry<String, Object> setting : settings.entrySet()) {
+            if (setting.getValue() instanceof Boolean) {
+                editor.putBoolean(setting.getKey(), (Boolean) setting.getValue());
+            } else {
+                editor.putString(setting.getKey(), setting.getValue().toString());
+            }
+        }
+        editor.apply();
+        // Read the new settings
+        CameraPreferences.getInstance(context);
+    }
+
+    /**
+     * Choose the fastest acceptable variants of the algorithms of a configuration.
+     *
+     * @param tolerance 0 for the tolerances of the balanced profile, 1 for the fastest one
+     */
+    private static Configuration tune(Properties measures, Configuration configuration,
+                                      int tolerance, double photos) {
+        if (configuration.mHdrAlg == HdrEngine.EXPOSURE_FUSION) {
+            configuration.mFusionLevels = 0;
+            double best = millis(measures, "fusion_mertens");
+            for (int levels : FUSION_LEVELS) {
+                String stage = "fusion_l" + levels;
+                if (deviation(measures, stage) <= FUSION_TOLERANCE[tolerance]
+                        && millis(measures, stage) < best) {
+                    best = millis(measures, stage);
+                    configuration.mFusionLevels = levels;
+                }
+            }
+        } else {
+            String hdr = HDR_NAMES[configuration.mHdrAlg];
+            configuration.mCalibrationLevel = 0;
+            double best = millis(measures, "calibrate_" + hdr);
+            for (int level = 1; level <= MAX_CALIBRATION_LEVEL; level++) {
+                String stage = "calibrate_" + hdr + "_l" + level;
+                if (deviation(measures, stage) <= CURVE_TOLERANCE[tolerance]
+                        && millis(measures, stage) < best) {
+                    best = millis(measures, stage);
+                    configuration.mCalibrationLevel = level;
+                }
+            }
+
+            String toneMap = "tonemap_" + TONE_MAP_NAMES[configuration.mToneAlg];
+            configuration.mFastToneMap = deviation(measures, toneMap + "_fast")
+                    <= TONE_MAP_TOLERANCE[tolerance]
+                    && millis(measures, toneMap + "_fast") < millis(measures, toneMap);
+        }
+        chooseMerge(measures, configuration);
+        estimate(measures, configuration, photos);
+        return configuration;
+    }
+
+    /**
+     * Choose the merge, whole or in bands, and its threads, that took the least.
+     */
+    private static void chooseMerge(Properties measures, Configuration configuration) {
+        if (configuration.mHdrAlg == HdrEngine.EXPOSURE_FUSION) {
+            return;
+        }
+        String merge = "merge_" + HDR_NAMES[configuration.mHdrAlg];
+        double best = millis(measures, merge);
+        configuration.mMergeTileRows = 0;
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            double tiled = millis(measures, merge + "_t" + threads);
+            if (tiled < best) {
+                best = tiled;
+                configuration.mMergeTileRows = MERGE_TILE_ROWS;
+                // 0 is one thread per core
+                configuration.mMergeThreads = threads == cores ? 0 : threads;
+            }
+            if (threads == cores) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Estimate the time of a configuration per megapixel of the photos.
+     *
+     * @param photos the photos of the sequence, over the ones of the bracket
+     */
+    private static void estimate(Properties measures, Configuration configuration,
+                                 double photos) {
+        double sequence = millis(measures, "align_mtb");
+        double toneMap = 0;
+        if (configuration.mHdrAlg == HdrEngine.EXPOSURE_FUSION) {
+            sequence += millis(measures, configuration.mFusionLevels == 0 ? "fusion_mertens"
+                    : "fusion_l" + configuration.mFusionLevels);
+        } else {
+            String hdr = HDR_NAMES[configuration.mHdrAlg];
+            sequence += millis(measures, configuration.mCalibrationLevel == 0 ? "calibrate_" + hdr
+                    : "calibrate_" + hdr + "_l" + configuration.mCalibrationLevel);
+            int threads = configuration.mMergeThreads == 0
+                    ? Runtime.getRuntime().availableProcessors() : configuration.mMergeThreads;
+            sequence += millis(measures, configuration.mMergeTileRows == 0 ? "merge_" + hdr
+                    : "merge_" + hdr + "_t" + threads);
+            toneMap = millis(measures, "tonemap_" + TONE_MAP_NAMES[configuration.mToneAlg]
+                    + (configuration.mFastToneMap ? "_fast" : ""));
+        }
+        configuration.mMillisPerMegapixel = sequence * photos + toneMap;
+    }
+
+    /**
+     * Choose the highest resolution of the back camera, with the aspect ratio chosen by the
+     * user, whose estimated time is within the target.
+     *
+     * @param target the target in milliseconds, 0 for the highest resolution
+     * @return the resolution, as in {@link CameraSettings#getResolutions}, or {@code null}
+     * to leave it unchanged
+     */
+    private static String chooseResolution(Context context, double millisPerMegapixel,
+                                           long target) {
+        CameraSettings cameraSettings = CameraSettings.getInstance(context);
+        String camera = cameraSettings.getBackCamera();
+        if (!cameraSettings.isHdrSupported(camera) || Double.isInfinite(millisPerMegapixel)) {
+            return null;
+        }
+        String current = PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(SettingsFragment.BACK_CAMERA_RESOLUTION_SETTINGS, null);
+        String aspectRatio = current != null && current.contains(" ")
+                ? current.substring(current.indexOf(' ')) : null;
+
+        String largest = null;
+        long largestPixels = 0;
+        String smallest = null;
+        long smallestPixels = Long.MAX_VALUE;
+        for (CharSequence resolution : cameraSettings.getResolutions(camera)) {
+            String value = resolution.toString();
+            if (aspectRatio != null && !value.endsWith(aspectRatio)) {
+                continue;
+            }
+            String[] size = value.split("[x ]");
+            long pixels = Long.parseLong(size[0]) * Long.parseLong(size[1]);
+            if (pixels < smallestPixels) {
+                smallestPixels = pixels;
+                smallest = value;
+            }
+            if ((target <= 0 || millisPerMegapixel * pixels / 1e6 <= target)
+                    && pixels > largestPixels) {
+                largestPixels = pixels;
+                largest = value;
+            }
+        }
+        return largest != null ? largest : smallest;
+    }
+
+    /**
+     * Wait until the HDR jobs are completed, so that they do not slow down the measures.
+     */
+    private static void awaitIdle() throws InterruptedException {
+        while (!HdrScheduler.isIdle()) {
+            Thread.sleep(IDLE_POLL_MS);
+        }
+    }
+
+    /**
+     * Whether a stage of {@link HdrBenchmark} is a variant the settings choose between.
+     */
+    private static boolean isTuned(String stage) {
+        return stage.equals("align_mtb") || stage.startsWith("calibrate_")
+                || stage.startsWith("merge_") || stage.startsWith("fusion_")
+                || stage.startsWith("tonemap_");
+    }
+
+    /**
+     * Store the best time of a stage, per megapixel, and its worst deviation. A stage
+     * the device can not run is not stored, so that it is never chosen.
+     */
+    private static void measure(HdrBenchmark.Stage stage, HdrBenchmark.Fixture fixture,
+                                Properties measures) {
+        long best = Long.MAX_VALUE;
+        double deviation = Double.NaN;
+        try {
+            for (int i = 0; i < WARMUP_RUNS + RUNS; i++) {
+                stage.setUp(fixture);
+                try {
+                    long start = System.nanoTime();
+                    stage.run(fixture);
+                    long time = System.nanoTime() - start;
+                    if (i >= WARMUP_RUNS) {
+                        best = Math.min(best, time);
+                        double stageDeviation = stage.deviation(fixture);
+                        if (!Double.isNaN(stageDeviation)) {
+                            deviation = Double.isNaN(deviation)
+                                    ? stageDeviation : Math.max(deviation, stageDeviation);
+                        }
+                    }
+                } finally {
+                    stage.tearDown();
+                }
+            }
+        } catch (CvException | OutOfMemoryError e) {
+            Log.w(TAG, stage.name + " failed: " + e.getMessage());
+            return;
+        }
+
+        double millis = best / 1e6 / (RESOLUTION.area() / 1e6);
+        Log.i(TAG, String.format(Locale.US, "%-24s %10.3f ms/MP  deviation %.4g",
+                stage.name, millis, deviation));
+        measures.setProperty(stage.name + SUFFIX_MILLIS, Double.toString(millis));
+        if (!Double.isNaN(deviation)) {
+            measures.setProperty(stage.name + SUFFIX_DEVIATION, Double.toString(deviation));
+        }
+    }
+
+    /**
+     * The time of a stage per megapixel, infinite if it has not been measured.
+     */
+    private static double millis(Properties measures, String stage) {
+        return parse(measures.getProperty(stage + SUFFIX_MILLIS), Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * The deviation of a stage from its reference, infinite if it has not been measured.
+     */
+    private static double deviation(Properties measures, String stage) {
+        return parse(measures.getProperty(stage + SUFFIX_DEVIATION), Double.POSITIVE_INFINITY);
+    }
+
+    private static double parse(String value, double missing) {
+        if (value == null) {
+            return missing;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return missing;
+        }
+    }
+
+    private static File file(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * @return the measures, or {@code null} if the tuning has not run yet
+     */
+    private static Properties load(Context context) {
+        File file = file(context);
+        if (!file.isFile()) {
+            return null;
+        }
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            Properties measures = new Properties();
+            measures.load(input);
+            return measures;
+        } catch (IOException | IllegalArgumentException e) {
+            // The tuning will run again
+            return null;
+        } finally {
+            close(input);
+        }
+    }
+
+    private void save(Properties measures) throws IOException {
+        File file = file(mContext);
+        // Write to a temporary file first, so that a crash never leaves a truncated file
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(temp);
+        try {
+            measures.store(output, null);
+        } finally {
+            close(output);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to save " + file);
+        }
+    }
+
+    /**
+     * Show a toast, on the main thread.
+     */
+    private void showToast(final String message) {
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(mContext, message, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+}
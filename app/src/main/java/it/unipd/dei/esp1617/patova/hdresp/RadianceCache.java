@@ -0,0 +1,276 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * On-disk cache of the merged radiance of the recent sequences.
+ * <p>
+ * Processing the same photos again with another tone mapping only changes the last
+ * stage: the radiance they are merged into is cached, keyed by a hash of the encoded
+ * photos and of the settings the radiance depends on, so that the alignment, the
+ * calibration and the merge are skipped. To halve its size the radiance is stored in
+ * half floats, scaled so that its maximum is {@link #HALF_TOP}: it never overflows them,
+ * and its shadows stay well above their subnormals, where they would lose precision and
+ * tone map differently than a new merge. The cache is kept within a size: the least
+ * recently used radiances are deleted first.
+ * <p>
+ * It does not depend on Android.
+ */
+final class RadianceCache {
+
+    /**
+     * Name of the directory of the cache, inside the cache directory of the app.
+     */
+    static final String DIR_NAME = "radiance";
+
+    /**
+     * Size of the cache: a few sequences of 12 megapixel photos.
+     */
+    static final long DEFAULT_CAPACITY = 256L << 20;
+
+    private static final String EXTENSION = ".rad";
+    private static final int MAGIC = 0x48524144; // "HRAD"
+
+    /**
+     * The half float the maximum of the radiance is stored as: a power of two, so that the
+     * scale is exact, below the largest half float (65504).
+     */
+    static final float HALF_TOP = 1 << 15;
+
+    /**
+     * A radiance ready to be stored: in half floats, with the scale that gives back the
+     * radiance.
+     */
+    static final class Compact {
+
+        private final Mat mHalf;
+        private final float mScale;
+
+        private Compact(Mat half, float scale) {
+            mHalf = half;
+            mScale = scale;
+        }
+
+        void release() {
+            mHalf.release();
+        }
+    }
+
+    private final File mDirectory;
+    private final long mCapacity;
+
+    /**
+     * @param directory the directory where the radiances are stored
+     * @param capacity  the maximum size of the cache, in bytes
+     */
+    RadianceCache(File directory, long capacity) {
+        mDirectory = directory;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Build the key of the radiance of a sequence.
+     *
+     * @param images   the encoded photos of the sequence, in order
+     * @param settings the settings the radiance depends on, e.g. the alignment and the
+     *                 HDR algorithm
+     * @return the key, usable as a file name
+     */
+    static String key(List<ByteBuffer> images, String settings) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (ByteBuffer image : images) {
+            digest.update(image.duplicate());
+        }
+        digest.update(settings.getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder key = new StringBuilder();
+        for (byte value : digest.digest()) {
+            key.append(Character.forDigit((value >> 4) & 0xf, 16))
+                    .append(Character.forDigit(value & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Convert a radiance to the format of the cache. It is fast enough to be done before
+     * the radiance is tone mapped in place, while {@link #put} can run later on another
+     * thread.
+     *
+     * @param radiance the merged radiance, 32 bit float
+     * @return the radiance to store, to be released once stored
+     */
+    static Compact compact(Mat radiance) {
+        double max = Core.minMaxLoc(radiance.reshape(1)).maxVal;
+        // The radiance of a stored unit; the files store it, so they are read back
+        // whatever the scale they were written with
+        float scale = max > 0 ? (float) (max / HALF_TOP) : 1;
+        Mat normalized = new Mat();
+        Mat half = new Mat();
+        try {
+            radiance.convertTo(normalized, CvType.CV_32F, 1 / scale);
+            Core.convertFp16(normalized, half);
+        } finally {
+            normalized.release();
+        }
+        return new Compact(half, scale);
+    }
+
+    /**
+     * Retrieve a radiance.
+     *
+     * @param key the key of the radiance
+     * @return the radiance, 32 bit float, or {@code null} if it is not in the cache or
+     * it cannot be read
+     */
+    synchronized Mat get(String key) {
+        File file = new File(mDirectory, key + EXTENSION);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            Mat radiance = read(file);
+            // The most recently used radiances are the last evicted
+            file.setLastModified(System.currentTimeMillis());
+            return radiance;
+        } catch (IOException e) {
+            // A corrupted radiance is simply merged again
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Store a radiance, then evict the least recently used ones beyond the capacity.
+     *
+     * @param key     the key of the radiance
+     * @param compact the radiance, see {@link #compact}
+     * @throws IOException if the radiance cannot be written
+     */
+    synchronized void put(String key, Compact compact) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        write(new File(mDirectory, key + EXTENSION), compact);
+        evict();
+    }
+
+    /**
+     * Write a radiance to a file, e.g. also the checkpoint of a {@link PersistentJob}.
+     * It is written to a temporary file first, so that a crash never leaves a truncated
+     * radiance.
+     *
+     * @param file    the file
+     * @param compact the radiance, see {@link #compact}
+     * @throws IOException if the radiance cannot be written
+     */
+    static void write(File file, Compact compact) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(temp);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(MAGIC).putFloat(compact.mScale);
+            header.flip();
+            while (header.hasRemaining()) {
+                output.getChannel().write(header);
+            }
+            PersistentJob.writeMat(output.getChannel(), compact.mHalf);
+        } finally {
+            close(output);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to save " + file);
+        }
+    }
+
+    /**
+     * Read a radiance written by {@link #write}.
+     *
+     * @param file the file
+     * @return the radiance, 32 bit float
+     * @throws IOException if the radiance cannot be read
+     */
+    static Mat read(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        Mat half = null;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            while (header.hasRemaining()) {
+                if (input.getChannel().read(header) < 0) {
+                    throw new IOException("Truncated radiance: " + file);
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a radiance: " + file);
+            }
+            float scale = header.getFloat();
+            half = PersistentJob.readMat(input.getChannel());
+
+            Mat radiance = new Mat();
+            Core.convertFp16(half, radiance);
+            radiance.convertTo(radiance, CvType.CV_32F, scale);
+            return radiance;
+        } finally {
+            close(input);
+            if (half != null) {
+                half.release();
+            }
+        }
+    }
+
+    /**
+     * Delete the least recently used radiances, until the cache is within its capacity.
+     */
+    private void evict() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                // The most recently used first
+                return Long.compare(b.lastModified(), a.lastModified());
+            }
+        });
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+            if (size > mCapacity && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.params.BlackLevelPattern;
+import android.hardware.camera2.params.ColorSpaceTransform;
+import android.hardware.camera2.params.RggbChannelVector;
+import android.media.Image;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Converts the {@link ImageFormat#RAW_SENSOR} frames of the camera into the
+ * 16 bit {@link Mat}s merged by {@link RawMerge}, and collects the parameters
+ * of the sensor needed to develop them.
+ */
+final class RawConverter {
+
+    /**
+     * The buffer of the frame, reused from one frame to the next.
+     */
+    private static short[] sPixels;
+
+    private RawConverter() {
+    }
+
+    /**
+     * Convert a frame. The {@link Image} is not closed.
+     *
+     * @param image a {@link ImageFormat#RAW_SENSOR} image
+     * @return the frame, 16 bit single channel, still in the color filter array
+     */
+    static synchronized Mat toMat(Image image) {
+        if (image.getFormat() != ImageFormat.RAW_SENSOR) {
+            throw new IllegalArgumentException("Expected a RAW_SENSOR image, got " + image.getFormat());
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (sPixels == null || sPixels.length != width * height) {
+            sPixels = new short[width * height];
+        }
+
+        // Two bytes per pixel, but the rows can be padded
+        Image.Plane plane = image.getPlanes()[0];
+        ShortBuffer buffer = plane.getBuffer().order(ByteOrder.nativeOrder()).asShortBuffer();
+        int rowStride = plane.getRowStride() / 2;
+        if (rowStride == width) {
+            buffer.position(0);
+            buffer.get(sPixels);
+        } else {
+            for (int y = 0; y < height; y++) {
+                buffer.position(y * rowStride);
+                buffer.get(sPixels, y * width, width);
+            }
+        }
+
+        Mat frame = MatPool.obtain(height, width, CvType.CV_16UC1);
+        frame.put(0, 0, sPixels);
+        return frame;
+    }
+
+    /**
+     * Collect the parameters of the sensor.
+     *
+     * @param characteristics the characteristics of the camera
+     * @param result          the result of a capture with automatic white balance, whose
+     *                        gains and color transform are used for the whole sequence;
+     *                        {@code null} to leave the colors of the sensor as they are
+     * @return the parameters of the sensor
+     */
+    static RawMerge.Sensor sensor(CameraCharacteristics characteristics, CaptureResult result) {
+        Integer cfa = characteristics.get(
+                CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT);
+        Integer whiteLevel = characteristics.get(CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL);
+        BlackLevelPattern blackLevelPattern = characteristics.get(
+                CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN);
+
+        float[] blackLevels = new float[4];
+        if (blackLevelPattern != null) {
+            for (int row = 0; row < 2; row++) {
+                for (int col = 0; col < 2; col++) {
+                    blackLevels[row * 2 + col] = blackLevelPattern.getOffsetForIndex(col, row);
+                }
+            }
+        }
+
+        float[] gains = {1f, 1f, 1f};
+        float[] transform = null;
+        if (result != null) {
+            RggbChannelVector channelGains = result.get(CaptureResult.COLOR_CORRECTION_GAINS);
+            if (channelGains != null) {
+                gains[0] = channelGains.getRed();
+                gains[1] = (channelGains.getGreenEven() + channelGains.getGreenOdd()) / 2;
+                gains[2] = channelGains.getBlue();
+            }
+            ColorSpaceTransform colorTransform =
+                    result.get(CaptureResult.COLOR_CORRECTION_TRANSFORM);
+            if (colorTransform != null) {
+                transform = new float[9];
+                for (int row = 0; row < 3; row++) {
+                    for (int col = 0; col < 3; col++) {
+                        transform[row * 3 + col] = colorTransform.getElement(col, row).floatValue();
+                    }
+                }
+            }
+        }
+
+        return new RawMerge.Sensor(cfa != null ? cfa : RawMerge.CFA_RGGB, blackLevels,
+                whiteLevel != null ? whiteLevel : 1023, gains, transform);
+    }
+}
@@ -0,0 +1,332 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.photo.AlignMTB;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * HDR of a sequence of RAW frames.
+ * <p>
+ * The values of the sensor are linear in the exposure, so there is no camera
+ * response to calibrate: every photosite is the sum of its values that are not
+ * clipped divided by the sum of the exposure times of those frames, which is
+ * also the estimate with the least noise. The frames are merged while still in
+ * the color filter array, and only the merged image is demosaiced, once; then
+ * the white balance and the color transform of the camera bring it to linear
+ * sRGB, ready for the tone mapping.
+ * <p>
+ * It does not depend on Android.
+ */
+final class RawMerge {
+
+    /**
+     * The arrangements of the color filter array, with the same values of
+     * {@code CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT}.
+     */
+    static final int CFA_RGGB = 0;
+    static final int CFA_GRBG = 1;
+    static final int CFA_GBRG = 2;
+    static final int CFA_BGGR = 3;
+
+    private static final int RED = 0;
+    private static final int GREEN = 1;
+    private static final int BLUE = 2;
+
+    /**
+     * Normalized value above which a photosite is considered clipped.
+     */
+    private static final double SATURATION = 0.95;
+
+    /**
+     * The tone mapping takes the logarithm of the radiance, that must stay positive.
+     */
+    private static final double MIN_RADIANCE = 1e-6;
+
+    /**
+     * The parameters of the sensor needed to develop its frames.
+     */
+    static final class Sensor {
+
+        private final int mCfa;
+        private final float[] mBlackLevels;
+        private final float mWhiteLevel;
+        private final float[] mGains;
+        private final float[] mTransform;
+
+        /**
+         * @param cfa         the arrangement of the color filter array, one of the
+         *                    {@code CFA_*} constants
+         * @param blackLevels the black level of the four photosites of a 2x2 block,
+         *                    row by row
+         * @param whiteLevel  the maximum value of a photosite
+         * @param gains       the white balance gains of red, green and blue
+         * @param transform   the 3x3 matrix, row by row, from the white balanced colors of
+         *                    the camera to linear sRGB; {@code null} for the identity
+         */
+        Sensor(int cfa, float[] blackLevels, float whiteLevel, float[] gains,
+               float[] transform) {
+            if (cfa < CFA_RGGB || cfa > CFA_BGGR) {
+                throw new IllegalArgumentException("Unsupported color filter array " + cfa);
+            }
+            mCfa = cfa;
+            mBlackLevels = blackLevels;
+            mWhiteLevel = whiteLevel;
+            mGains = gains;
+            mTransform = transform;
+        }
+
+        /**
+         * Store the parameters, to develop the frames in another process.
+         *
+         * @param properties where to store them
+         * @param prefix     the prefix of their keys
+         */
+        void store(Properties properties, String prefix) {
+            properties.setProperty(prefix + "cfa", Integer.toString(mCfa));
+            properties.setProperty(prefix + "black", PersistentJob.join(mBlackLevels));
+            properties.setProperty(prefix + "white", Float.toString(mWhiteLevel));
+            properties.setProperty(prefix + "gains", PersistentJob.join(mGains));
+            if (mTransform != null) {
+                properties.setProperty(prefix + "transform", PersistentJob.join(mTransform));
+            }
+        }
+
+        /**
+         * Read the parameters stored by {@link #store}.
+         *
+         * @param properties where they are stored
+         * @param prefix     the prefix of their keys
+         * @return the parameters, {@code null} if they are not stored
+         */
+        static Sensor load(Properties properties, String prefix) {
+            String cfa = properties.getProperty(prefix + "cfa");
+            if (cfa == null) {
+                return null;
+            }
+            return new Sensor(Integer.parseInt(cfa),
+                    PersistentJob.split(properties.getProperty(prefix + "black")),
+                    Float.parseFloat(properties.getProperty(prefix + "white")),
+                    PersistentJob.split(properties.getProperty(prefix + "gains")),
+                    PersistentJob.split(properties.getProperty(prefix + "transform")));
+        }
+
+        /**
+         * @return the color of the photosite of a 2x2 block, {@link #RED}, {@link #GREEN}
+         * or {@link #BLUE}
+         */
+        private int colorAt(int row, int col) {
+            int position = row * 2 + col;
+            switch (mCfa) {
+                case CFA_RGGB:
+                    return position == 0 ? RED : position == 3 ? BLUE : GREEN;
+                case CFA_GRBG:
+                    return position == 1 ? RED : position == 2 ? BLUE : GREEN;
+                case CFA_GBRG:
+                    return position == 2 ? RED : position == 1 ? BLUE : GREEN;
+                default:
+                    return position == 3 ? RED : position == 0 ? BLUE : GREEN;
+            }
+        }
+    }
+
+    private RawMerge() {
+    }
+
+    /**
+     * Align the frames in place with the MTB algorithm (see {@link MtbAligner}), with
+     * shifts of whole 2x2 blocks so that the color filter array stays the same. As
+     * {@link AlignMTB} does by default, the frames are cropped to the area common to all
+     * of them.
+     *
+     * @param frames the RAW frames, 16 bit single channel
+     * @return the shift of every frame, always even, to align the same frames again
+     * with {@link HdrEngine#shiftImages}
+     */
+    static Point[] align(List<Mat> frames) {
+        int pivot = frames.size() / 2;
+
+        // Half resolution gray frames, one pixel per 2x2 block
+        List<Mat> grays = new ArrayList<>(frames.size());
+        for (Mat frame : frames) {
+            grays.add(halfGray(frame));
+        }
+        MtbAligner.Pyramid reference = MtbAligner.build(grays.get(pivot),
+                MtbAligner.NO_CONVERSION);
+        Point[] shifts = new Point[frames.size()];
+        for (int i = 0; i < frames.size(); i++) {
+            Point shift = new Point(0, 0);
+            if (i != pivot) {
+                MtbAligner.Pyramid pyramid = MtbAligner.build(grays.get(i),
+                        MtbAligner.NO_CONVERSION);
+                shift = MtbAligner.calculateShift(reference, pyramid);
+                pyramid.release();
+            }
+            shifts[i] = new Point(shift.x * 2, shift.y * 2);
+        }
+        reference.release();
+        for (Mat gray : grays) {
+            gray.release();
+        }
+
+        HdrEngine.shiftImages(frames, shifts);
+        return shifts;
+    }
+
+    /**
+     * Downscale a frame to one gray pixel per 2x2 block, with its mean brightness in the
+     * middle of the 8 bit range so that the MTB bitmaps of all the frames have detail.
+     */
+    private static Mat halfGray(Mat frame) {
+        Mat half = new Mat();
+        Imgproc.resize(frame, half, new Size(frame.cols() / 2, frame.rows() / 2), 0, 0,
+                Imgproc.INTER_AREA);
+        double mean = Math.max(Core.mean(half).val[0], 1);
+        Mat gray = new Mat();
+        half.convertTo(gray, CvType.CV_8U, 128 / mean);
+        half.release();
+        return gray;
+    }
+
+    /**
+     * Merge the frames into the radiance of every photosite.
+     *
+     * @param frames        the RAW frames, 16 bit single channel, all of the same size
+     * @param exposureTimes the exposure times of the frames, in seconds
+     * @param sensor        the parameters of the sensor
+     * @return the radiance, float single channel, still in the color filter array
+     */
+    static Mat merge(List<Mat> frames, float[] exposureTimes, Sensor sensor) {
+        Mat first = frames.get(0);
+        Mat black = blackLevels(first, sensor);
+        double range = sensor.mWhiteLevel - Core.mean(black).val[0];
+
+        int shortest = 0;
+        for (int i = 1; i < frames.size(); i++) {
+            if (exposureTimes[i] < exposureTimes[shortest]) {
+                shortest = i;
+            }
+        }
+
+        Mat sum = Mat.zeros(first.size(), CvType.CV_32F);
+        Mat timeSum = Mat.zeros(first.size(), CvType.CV_32F);
+        Mat value = new Mat();
+        Mat valid = new Mat();
+        Mat fallback = new Mat();
+        try {
+            for (int i = 0; i < frames.size(); i++) {
+                frames.get(i).convertTo(value, CvType.CV_32F);
+                Core.subtract(value, black, value);
+                value.convertTo(value, CvType.CV_32F, 1 / range);
+
+                Core.compare(value, new Scalar(SATURATION), valid, Core.CMP_LT);
+                Core.add(sum, value, sum, valid);
+                Core.add(timeSum, new Scalar(exposureTimes[i]), timeSum, valid);
+                if (i == shortest) {
+                    // Used where a photosite is clipped in every frame
+                    value.convertTo(fallback, CvType.CV_32F, 1 / exposureTimes[i]);
+                }
+            }
+
+            Core.divide(sum, timeSum, sum);
+            Core.compare(timeSum, new Scalar(0), valid, Core.CMP_EQ);
+            fallback.copyTo(sum, valid);
+        } catch (RuntimeException e) {
+            sum.release();
+            throw e;
+        } finally {
+            black.release();
+            timeSum.release();
+            value.release();
+            valid.release();
+            fallback.release();
+        }
+        return sum;
+    }
+
+    /**
+     * The black level of every photosite of a frame.
+     */
+    private static Mat blackLevels(Mat frame, Sensor sensor) {
+        Mat block = new Mat(2, 2, CvType.CV_32F);
+        block.put(0, 0, sensor.mBlackLevels);
+        Mat black = new Mat();
+        Core.repeat(block, frame.rows() / 2, frame.cols() / 2, black);
+        block.release();
+        return black;
+    }
+
+    /**
+     * Demosaic the merged radiance with a bilinear interpolation, then white balance
+     * it and convert it to linear sRGB.
+     *
+     * @param radiance the radiance returned by {@link #merge}
+     * @param sensor   the parameters of the sensor
+     * @return the radiance, BGR float
+     */
+    static Mat demosaic(Mat radiance, Sensor sensor) {
+        Mat redBlueKernel = new Mat(3, 3, CvType.CV_32F);
+        redBlueKernel.put(0, 0, 0.25f, 0.5f, 0.25f, 0.5f, 1f, 0.5f, 0.25f, 0.5f, 0.25f);
+        Mat greenKernel = new Mat(3, 3, CvType.CV_32F);
+        greenKernel.put(0, 0, 0f, 0.25f, 0f, 0.25f, 1f, 0.25f, 0f, 0.25f, 0f);
+        Mat block = new Mat(2, 2, CvType.CV_32F);
+        Mat mask = new Mat();
+
+        List<Mat> planes = new ArrayList<>(3);
+        Mat output = new Mat();
+        try {
+            for (int color : new int[]{BLUE, GREEN, RED}) {
+                for (int row = 0; row < 2; row++) {
+                    for (int col = 0; col < 2; col++) {
+                        block.put(row, col, sensor.colorAt(row, col) == color ? 1 : 0);
+                    }
+                }
+                Core.repeat(block, radiance.rows() / 2, radiance.cols() / 2, mask);
+
+                // Keep only the photosites of the color and interpolate the others;
+                // the reflection at the borders keeps the pattern of the array
+                Mat plane = new Mat();
+                Core.multiply(radiance, mask, plane);
+                Imgproc.filter2D(plane, plane, -1, color == GREEN ? greenKernel : redBlueKernel,
+                        new Point(-1, -1), 0, Core.BORDER_REFLECT_101);
+                planes.add(plane);
+            }
+            Core.merge(planes, output);
+        } finally {
+            for (Mat plane : planes) {
+                plane.release();
+            }
+            redBlueKernel.release();
+            greenKernel.release();
+            block.release();
+            mask.release();
+        }
+
+        float[] gains = sensor.mGains;
+        Core.multiply(output, new Scalar(gains[BLUE], gains[GREEN], gains[RED]), output);
+        if (sensor.mTransform != null) {
+            // The transform is RGB to RGB, the image BGR: reverse rows and columns
+            Mat transform = new Mat(3, 3, CvType.CV_32F);
+            for (int row = 0; row < 3; row++) {
+                for (int col = 0; col < 3; col++) {
+                    transform.put(2 - row, 2 - col, sensor.mTransform[row * 3 + col]);
+                }
+            }
+            Mat srgb = new Mat();
+            Core.transform(output, srgb, transform);
+            transform.release();
+            output.release();
+            output = srgb;
+        }
+        Core.max(output, Scalar.all(MIN_RADIANCE), output);
+        return output;
+    }
+}
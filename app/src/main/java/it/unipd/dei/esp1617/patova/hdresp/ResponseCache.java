@@ -0,0 +1,173 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * On-disk cache of the camera response curves.
+ * <p>
+ * The response curve of a camera hardly changes between two shots, so
+ * it is calibrated once and then reused for every sequence taken by the
+ * same camera, in the same format, at the same resolution and ISO, with the
+ * same HDR algorithm.
+ * Deleting the cache forces a new calibration.
+ * <p>
+ * It does not depend on Android.
+ */
+final class ResponseCache {
+
+    /**
+     * Name of the directory of the cache, inside the private directory of the app.
+     */
+    static final String DIR_NAME = "response_curves";
+
+    /**
+     * Formats of the photos a curve is calibrated on: the JPEG photos and the
+     * YUV frames of a camera are processed differently, so they need their own curves.
+     */
+    static final String FORMAT_JPEG = "jpeg";
+    static final String FORMAT_YUV = "yuv";
+
+    private static final String EXTENSION = ".crv";
+    private static final int MAGIC = 0x48435256; // "HCRV"
+
+    private final File mDirectory;
+
+    /**
+     * @param directory the directory where the curves are stored
+     */
+    ResponseCache(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Build the key of a response curve.
+     *
+     * @param cameraId the id of the camera that took the photos
+     * @param format   the format of the photos, {@link #FORMAT_JPEG} or {@link #FORMAT_YUV}
+     * @param width    the width of the photos
+     * @param height   the height of the photos
+     * @param iso      the sensitivity used for the photos
+     * @param hdrAlg   the HDR algorithm: 1 for Debevec, Robertson otherwise
+     * @return the key, usable as a file name
+     */
+    static String key(String cameraId, String format, int width, int height, int iso,
+                      int hdrAlg) {
+        return String.format(Locale.US, "cam%s_%s_%dx%d_iso%d_alg%d",
+                cameraId.replaceAll("[^A-Za-z0-9]", "_"), format, width, height, iso, hdrAlg);
+    }
+
+    /**
+     * Retrieve a response curve.
+     *
+     * @param key the key of the curve
+     * @return the curve, or {@code null} if it is not in the cache or it cannot be read
+     */
+    synchronized Mat get(String key) {
+        File file = new File(mDirectory, key + EXTENSION);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Not a response curve: " + file);
+            }
+            int rows = input.readInt();
+            int cols = input.readInt();
+            int type = input.readInt();
+            if (CvType.depth(type) != CvType.CV_32F) {
+                throw new IOException("Unexpected type of response curve: " + type);
+            }
+            float[] data = new float[rows * cols * CvType.channels(type)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = input.readFloat();
+            }
+            Mat response = new Mat(rows, cols, type);
+            response.put(0, 0, data);
+            return response;
+        } catch (IOException e) {
+            // A corrupted curve is simply calibrated again
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+            return null;
+        } finally {
+            close(input);
+        }
+    }
+
+    /**
+     * Store a response curve, replacing the previous one with the same key.
+     *
+     * @param key      the key of the curve
+     * @param response the curve, a {@code CV_32F} {@link Mat}
+     * @throws IOException if the curve cannot be written
+     */
+    synchronized void put(String key, Mat response) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+
+        float[] data = new float[(int) response.total() * response.channels()];
+        response.get(0, 0, data);
+
+        // Write to a temporary file first, so that a crash never leaves a truncated curve
+        File temp = new File(mDirectory, key + EXTENSION + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            output.writeInt(MAGIC);
+            output.writeInt(response.rows());
+            output.writeInt(response.cols());
+            output.writeInt(response.type());
+            for (float value : data) {
+                output.writeFloat(value);
+            }
+            output.close();
+            output = null;
+        } finally {
+            close(output);
+        }
+        if (!temp.renameTo(new File(mDirectory, key + EXTENSION))) {
+            throw new IOException("Unable to save the response curve " + key);
+        }
+    }
+
+    /**
+     * Delete all the curves, so that the next sequences are calibrated again.
+     */
+    synchronized void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+}
@@ -37,6 +37,9 @@ public class SettingsActivity extends Activity {
             case R.id.info:
                 startActivity(new Intent(this, InfoActivity.class));
                 return true;
+            case R.id.benchmark:
+                new Thread(new HdrBenchmark(this)).start();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
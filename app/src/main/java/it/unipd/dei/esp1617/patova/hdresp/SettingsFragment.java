@@ -6,6 +6,10 @@ import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceCategory;
 import android.preference.PreferenceFragment;
+import android.preference.TwoStatePreference;
+import android.widget.Toast;
+
+import java.util.Map;
 
 import static android.preference.PreferenceManager.getDefaultSharedPreferences;
 
@@ -21,6 +25,21 @@ public class SettingsFragment extends PreferenceFragment {
     static final String HDR_ALGORITHM = "pref_hdr_algorithm";
     static final String TONE_MAPPING_ALGORITHM = "pref_hdr_tone_mapping";
     static final String PHOTO_ALIGNMENT = "pref_hdr_photo_alignment";
+    static final String HDR_CALIBRATION_LEVEL = "pref_hdr_calibration_level";
+    static final String HDR_RECALIBRATE = "pref_hdr_recalibrate";
+    static final String HDR_FUSION_LEVELS = "pref_hdr_fusion_levels";
+    static final String MERGE_TILE_ROWS = "pref_merge_tile_rows";
+    static final String MERGE_THREADS = "pref_merge_threads";
+    static final String HDR_PROGRESSIVE = "pref_hdr_progressive";
+    static final String JPEG_DECODER = "pref_jpeg_decoder";
+    static final String JPEG_DECODER_BENCHMARK = "pref_jpeg_decoder_benchmark";
+    static final String HDR_YUV_CAPTURE = "pref_hdr_yuv_capture";
+    static final String HDR_RAW_CAPTURE = "pref_hdr_raw_capture";
+    static final String HDR_JOBS = "pref_hdr_jobs";
+    static final String HDR_FAST_TONE_MAPPING = "pref_hdr_fast_tone_mapping";
+    static final String HDR_TONE_MAPPING_BUDGET = "pref_hdr_tone_mapping_budget";
+    static final String HDR_PROFILE = "pref_hdr_profile";
+    static final String HDR_TUNE = "pref_hdr_tune";
 
     /**
      * This listener keeps settings consistent across the all application.
@@ -54,6 +73,47 @@ public class SettingsFragment extends PreferenceFragment {
                     if (key.equals(PHOTO_ALIGNMENT)) {
                         CameraPreferences.setPhotoAlignment();
                     }
+                    if (key.equals(HDR_CALIBRATION_LEVEL)) {
+                        CameraPreferences.setCalibrationLevel();
+                        // The cached curves were computed at the old resolution
+                        new ResponseCache(CameraPreferences.getResponseCacheDir(getActivity())).clear();
+                    }
+                    if (key.equals(HDR_FUSION_LEVELS)) {
+                        CameraPreferences.setFusionLevels();
+                    }
+                    if (key.equals(MERGE_TILE_ROWS)) {
+                        CameraPreferences.setMergeTileRows();
+                    }
+                    if (key.equals(MERGE_THREADS)) {
+                        CameraPreferences.setMergeThreads();
+                    }
+                    if (key.equals(HDR_PROGRESSIVE)) {
+                        CameraPreferences.setProgressive();
+                    }
+                    if (key.equals(JPEG_DECODER) || key.equals(JPEG_DECODER_BENCHMARK)) {
+                        CameraPreferences.setDecoder();
+                    }
+                    if (key.equals(HDR_YUV_CAPTURE)) {
+                        CameraPreferences.setYuvCapture();
+                    }
+                    if (key.equals(HDR_RAW_CAPTURE)) {
+                        CameraPreferences.setRawCapture();
+                    }
+                    if (key.equals(HDR_JOBS)) {
+                        CameraPreferences.setHdrJobs();
+                    }
+                    if (key.equals(HDR_FAST_TONE_MAPPING)) {
+                        CameraPreferences.setFastToneMapping();
+                    }
+                    if (key.equals(HDR_TONE_MAPPING_BUDGET)) {
+                        CameraPreferences.setToneMappingBudget();
+                    }
+                    if (key.equals(HDR_PROFILE)) {
+                        applyProfile(Integer.valueOf(sharedPreferences.getString(key,
+                                Integer.toString(PipelineTuner.PROFILE_CUSTOM))));
+                    } else if (PipelineTuner.manages(key)) {
+                        followProfile(sharedPreferences, key);
+                    }
                 }
             };
 
@@ -69,6 +129,57 @@ public class SettingsFragment extends PreferenceFragment {
         listPreference.setDefaultValue(entries[0].toString());
     }
 
+    /**
+     * Apply the settings of a profile computed by {@link PipelineTuner}. If the device has
+     * not been tuned yet, the tuning starts and applies the profile once finished.
+     *
+     * @param profile the profile, one of the {@code PipelineTuner.PROFILE_*} constants
+     */
+    private void applyProfile(int profile) {
+        if (profile == PipelineTuner.PROFILE_CUSTOM) {
+            return;
+        }
+        Map<String, Object> settings = PipelineTuner.settings(getActivity(), profile);
+        if (settings == null) {
+            PipelineTuner.start(getActivity(), true);
+            return;
+        }
+
+        // Through the preferences, so that they show the new values
+        for (Map.Entry<String, Object> setting : settings.entrySet()) {
+            Preference preference = findPreference(setting.getKey());
+            if (preference instanceof ListPreference) {
+                ((ListPreference) preference).setValue((String) setting.getValue());
+            } else if (preference instanceof TwoStatePreference) {
+                ((TwoStatePreference) preference).setChecked((Boolean) setting.getValue());
+            }
+        }
+        Toast.makeText(getActivity(), getString(R.string.pref_hdr_profile_applied),
+                Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Switch to the custom profile if a setting chosen by the profile has been edited by
+     * the user, so that the next tuning does not overwrite it. The profile itself, when
+     * applied, sets the values it has computed, that are kept.
+     *
+     * @param sharedPreferences the settings
+     * @param key               the key of the edited setting
+     */
+    private void followProfile(SharedPreferences sharedPreferences, String key) {
+        int profile = Integer.valueOf(sharedPreferences.getString(HDR_PROFILE,
+                Integer.toString(PipelineTuner.PROFILE_CUSTOM)));
+        if (profile == PipelineTuner.PROFILE_CUSTOM) {
+            return;
+        }
+        Map<String, Object> settings = PipelineTuner.settings(getActivity(), profile);
+        Object value = settings != null ? settings.get(key) : null;
+        if (value == null || !value.equals(sharedPreferences.getAll().get(key))) {
+            ((ListPreference) findPreference(HDR_PROFILE))
+                    .setValue(Integer.toString(PipelineTuner.PROFILE_CUSTOM));
+        }
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -98,6 +209,7 @@ public class SettingsFragment extends PreferenceFragment {
             hdrCategory.removePreference(findPreference(HDR_NUM_PHOTOS));
             hdrCategory.removePreference(findPreference(EXPOSURE_STEP_SETTINGS));
             hdrCategory.removePreference(findPreference(HDR_DELETE_INTERMEDIATE_PHOTOS));
+            hdrCategory.removePreference(findPreference(HDR_RECALIBRATE));
         } else {
             // Populate the ListPreference with the resolutions supported by the
             // back camera of the device.
@@ -111,7 +223,30 @@ public class SettingsFragment extends PreferenceFragment {
                     sharedPreferences.getString(BACK_CAMERA_RESOLUTION_SETTINGS,
                             getString(R.string.pref_resolution_back_camera_summary))
             );
+
+            // Delete the cached response curves, so that the next HDR photo calibrates
+            // the camera again.
+            findPreference(HDR_RECALIBRATE).setOnPreferenceClickListener(
+                    new Preference.OnPreferenceClickListener() {
+                        @Override
+                        public boolean onPreferenceClick(Preference preference) {
+                            new ResponseCache(CameraPreferences.getResponseCacheDir(getActivity())).clear();
+                            Toast.makeText(getActivity(), getString(R.string.pref_hdr_recalibrate_done),
+                                    Toast.LENGTH_SHORT).show();
+                            return true;
+                        }
+                    });
         }
+
+        // Measure the stages of the pipeline again, e.g. after an update of the system
+        findPreference(HDR_TUNE).setOnPreferenceClickListener(
+                new Preference.OnPreferenceClickListener() {
+                    @Override
+                    public boolean onPreferenceClick(Preference preference) {
+                        PipelineTuner.start(getActivity(), true);
+                        return true;
+                    }
+                });
     }
 
     @Override
@@ -0,0 +1,272 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the photos and the HDR images on a thread of its own, so that the camera never
+ * waits for the storage, and the HDR only waits for the photos of its job to be stored.
+ * <p>
+ * The writes, and the other tasks on the storage submitted with {@link #execute}, run
+ * one at a time in the order they are submitted: a task runs only once all the writes
+ * submitted before it are completed. Every image is written straight from its buffer
+ * into a temporary file, that then replaces the destination, so that a viewer never
+ * reads a partially written image. The media scanner is notified
+ * of the new images in batches, when no write is left in the queue. The latency of the
+ * writes, from their submission to the rename, is logged.
+ */
+final class StorageWriter {
+
+    private static final String TAG = "StorageWriter";
+
+    /**
+     * Listener of the completion of a write. It is called on the thread of the writer.
+     */
+    interface Callback {
+        /**
+         * @param file    the image
+         * @param success {@code true} if the image has been written
+         */
+        void onWritten(File file, boolean success);
+    }
+
+    /**
+     * An output stream whose content can be written without copying it.
+     */
+    static final class Buffer extends ByteArrayOutputStream {
+
+        /**
+         * @param size the initial capacity
+         */
+        Buffer(int size) {
+            super(size);
+        }
+
+        /**
+         * @return the content, wrapped; the stream must not be written anymore
+         */
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "StorageWriter");
+                }
+            });
+
+    /**
+     * Writes submitted and not completed yet.
+     */
+    private static final AtomicInteger sPendingWrites = new AtomicInteger();
+
+    /**
+     * The images written and not scanned yet, and the statistics of the writes.
+     * They are only accessed by the thread of the writer.
+     */
+    private static final List<String> sScanPaths = new ArrayList<>();
+    private static Context sScanContext;
+    private static int sWrites;
+    private static long sWriteMillis;
+    private static long sMaxWriteMillis;
+
+    private StorageWriter() {
+    }
+
+    /**
+     * Write an image.
+     *
+     * @param context     the context, for the media scanner
+     * @param destination the file of the image
+     * @param buffer      the content of the image, from the position to the limit of the
+     *                    buffer; the position is not changed, and the buffer must not
+     *                    change until the image has been written
+     * @param recycle     {@code true} to give the buffer back to the {@link JpegBufferPool}
+     *                    once written
+     * @param callback    notified once the image has been written, {@code null} for none
+     */
+    static void write(Context context, final File destination, final ByteBuffer buffer,
+                      final boolean recycle, final Callback callback) {
+        final Context applicationContext = context.getApplicationContext();
+        final long submitted = System.currentTimeMillis();
+        sPendingWrites.incrementAndGet();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = false;
+                try {
+                    long size = writeFile(destination, buffer);
+                    success = true;
+                    logLatency(destination, size, submitted);
+                    sScanPaths.add(destination.getPath());
+                    sScanContext = applicationContext;
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to write " + destination, e);
+                } finally {
+                    if (recycle) {
+                        JpegBufferPool.release(buffer);
+                    }
+                    if (sPendingWrites.decrementAndGet() == 0) {
+                        scanWritten();
+                    }
+                }
+                if (callback != null) {
+                    callback.onWritten(destination, success);
+                }
+            }
+        });
+    }
+
+    /**
+     * Run a task on the storage after all the writes submitted so far.
+     *
+     * @param task the task
+     */
+    static void execute(Runnable task) {
+        sExecutor.execute(task);
+    }
+
+    /**
+     * Run a task on the storage after all the writes submitted so far, and get its result.
+     *
+     * @param task the task
+     * @return the result of the task
+     */
+    static <T> Future<T> submit(Callable<T> task) {
+        return sExecutor.submit(task);
+    }
+
+    /**
+     * Delete a job once all the writes submitted so far, that may be storing its photos,
+     * are completed.
+     *
+     * @param job the job
+     */
+    static void delete(final PersistentJob job) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                job.delete();
+            }
+        });
+    }
+
+    /**
+     * Give a buffer back to the {@link JpegBufferPool} once all the writes submitted so
+     * far, that may be reading it, are completed.
+     *
+     * @param buffer the buffer, {@code null} to do nothing
+     */
+    static void recycle(final ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                JpegBufferPool.release(buffer);
+            }
+        });
+    }
+
+    /**
+     * Wait until all the writes and the tasks submitted so far are completed.
+     */
+    static void await() {
+        try {
+            sExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write an image into a temporary file and rename it to its destination; if that fails
+     * the temporary file is deleted.
+     *
+     * @return the size of the image, in bytes
+     */
+    private static long writeFile(File destination, ByteBuffer buffer) throws IOException {
+        ByteBuffer source = buffer.duplicate();
+        long size = source.remaining();
+        File partial = new File(destination.getParentFile(), destination.getName() + ".part");
+        boolean renamed = false;
+        try {
+            FileOutputStream output = new FileOutputStream(partial);
+            try {
+                FileChannel channel = output.getChannel();
+                while (source.hasRemaining()) {
+                    channel.write(source);
+                }
+            } finally {
+                output.close();
+            }
+            if (!partial.renameTo(destination)) {
+                throw new IOException("Unable to rename " + partial);
+            }
+            renamed = true;
+        } finally {
+            if (!renamed && partial.exists() && !partial.delete()) {
+                Log.w(TAG, "Unable to delete " + partial);
+            }
+        }
+        return size;
+    }
+
+    private static void logLatency(File destination, long size, long submitted) {
+        long latency = System.currentTimeMillis() - submitted;
+        sWrites++;
+        sWriteMillis += latency;
+        sMaxWriteMillis = Math.max(sMaxWriteMillis, latency);
+        Log.d(TAG, String.format(Locale.US, "%s: %d KB in %d ms (mean %d ms, max %d ms)",
+                destination.getName(), size >> 10, latency, sWriteMillis / sWrites,
+                sMaxWriteMillis));
+    }
+
+    /**
+     * Notify the media scanner of the images written since the last time, so that the
+     * other apps see them.
+     */
+    private static void scanWritten() {
+        if (sScanPaths.isEmpty()) {
+            return;
+        }
+        MediaScannerConnection.scanFile(sScanContext,
+                sScanPaths.toArray(new String[sScanPaths.size()]), null, null);
+        sScanPaths.clear();
+    }
+}
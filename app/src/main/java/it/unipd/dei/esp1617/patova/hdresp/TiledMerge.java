@@ -0,0 +1,140 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Merge of the images into the radiance map, split in row bands that are
+ * merged in parallel.
+ * <p>
+ * Both Debevec and Robertson merge every pixel independently of the others,
+ * so each band is merged with the shared response curve directly into its
+ * rows of a single preallocated radiance {@link Mat}. OpenCV processes the
+ * element-wise operations in blocks of {@value #BLOCK_SIZE} elements, with
+ * SIMD code and a scalar tail: the bands are aligned to those blocks, so
+ * that every pixel goes through the same code path as in the monolithic
+ * merge and the result is bit-identical.
+ * <p>
+ * It does not depend on Android.
+ */
+final class TiledMerge {
+
+    /**
+     * Size of the blocks in which OpenCV processes the element-wise operations.
+     */
+    static final int BLOCK_SIZE = 1024;
+
+    private TiledMerge() {
+    }
+
+    /**
+     * Merge the images into a single HDR (radiance) image.
+     *
+     * @param hdrAlg   the HDR algorithm: 1 for Debevec, Robertson otherwise
+     * @param images   the images of the sequence
+     * @param times    the exposure times of the images
+     * @param response the camera response curve
+     * @param output   the {@link Mat} where to store the HDR image
+     * @param tileRows the height of a band, rounded up to a multiple of the OpenCV
+     *                 blocks; 0 to merge the whole images at once
+     * @param threads  the number of threads that merge the bands, 0 for one per core
+     */
+    static void merge(final int hdrAlg, List<Mat> images, final Mat times, final Mat response,
+                      Mat output, int tileRows, int threads) {
+        Mat first = images.get(0);
+        int rows = first.rows();
+        int bandRows = tileRows <= 0 ? rows : alignRows(tileRows, first.cols() * first.channels());
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        if (bandRows >= rows) {
+            HdrEngine.merge(hdrAlg, images, times, response, output);
+            return;
+        }
+
+        output.create(first.size(), CvType.CV_32FC3);
+        final Mat radiance = output;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> bands = new ArrayList<>();
+        try {
+            for (int start = 0; start < rows; start += bandRows) {
+                final int bandStart = start;
+                final int bandEnd = Math.min(rows, start + bandRows);
+                final List<Mat> band = new ArrayList<>(images.size());
+                for (Mat image : images) {
+                    band.add(image.rowRange(bandStart, bandEnd));
+                }
+
+                bands.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        Mat target = radiance.rowRange(bandStart, bandEnd);
+                        long address = target.dataAddr();
+                        try {
+                            HdrEngine.merge(hdrAlg, band, times, response, target);
+                            // The merge should write in place, but never lose a band if
+                            // OpenCV decides to allocate a new output
+                            if (target.dataAddr() != address) {
+                                Mat rowsOfRadiance = radiance.rowRange(bandStart, bandEnd);
+                                target.copyTo(rowsOfRadiance);
+                                rowsOfRadiance.release();
+                            }
+                        } finally {
+                            target.release();
+                            for (Mat image : band) {
+                                image.release();
+                            }
+                        }
+                    }
+                }));
+            }
+
+            for (Future<?> band : bands) {
+                band.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Merge interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Round the height of a band up, so that every band starts at the beginning
+     * of an OpenCV block.
+     *
+     * @param tileRows    the requested height of a band
+     * @param rowElements the number of elements (pixels times channels) of a row
+     * @return the height of a band
+     */
+    static int alignRows(int tileRows, int rowElements) {
+        int granularity = BLOCK_SIZE / gcd(rowElements, BLOCK_SIZE);
+        return (tileRows + granularity - 1) / granularity * granularity;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,391 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Keeps the tone mapping within a time budget.
+ * <p>
+ * The cost of every operator is estimated in nanoseconds per pixel: it starts from a
+ * conservative guess for a mid-range device and then follows the times measured on this
+ * device, which are stored in a file. When the chosen operator would take longer than the
+ * budget, the cheaper paths are tried in order: its fast version, if it has one; the
+ * operator itself on the radiance downscaled (only for the local operators, Durand and
+ * Mantiuk, see {@link HdrEngine}), with the resulting gain of the luminance upscaled to
+ * the full resolution; and finally the fast versions of the other operators. If none of
+ * them fits, the cheapest one is taken.
+ * <p>
+ * The costs are shared by all the budgets of the process through a {@link Costs}, so that
+ * the jobs that run at the same time add their measures to the same file.
+ * <p>
+ * It does not depend on Android.
+ */
+final class ToneMapBudget {
+
+    /**
+     * Name of the file of the measured costs, inside the private directory of the app.
+     */
+    static final String FILE_NAME = "tone_map_costs.properties";
+
+    /**
+     * The budget that never degrades the tone mapping; the costs are still measured.
+     */
+    static final long NO_BUDGET = 0;
+
+    /**
+     * Names of the operators, by tone mapping algorithm.
+     */
+    private static final String[] NAMES = {null, "Drago", "Durand", "Mantiuk", "Reinhard"};
+
+    /**
+     * Initial costs, in nanoseconds per pixel, by tone mapping algorithm: the OpenCV
+     * operators, then their fast versions.
+     */
+    private static final double[] EXACT_NANOS = {0, 90, 500, 2500, 90};
+    private static final double[] FAST_NANOS = {0, 15, 120, 2500, 15};
+
+    /**
+     * Initial cost of the downscale and of the upscale of a reduced path, in nanoseconds
+     * per pixel of the full resolution.
+     */
+    private static final double RESAMPLE_NANOS = 40;
+    private static final String RESAMPLE_KEY = "resample";
+
+    /**
+     * Scales of the reduced paths, tried in order.
+     */
+    private static final double[] SCALES = {0.5, 0.25};
+
+    /**
+     * The operators a too slow one falls back to, tried in order: the local one first.
+     */
+    private static final int[] FALLBACKS = {2, 4, 1};
+
+    /**
+     * Weight of a new measure in the cost of an operator.
+     */
+    private static final double WEIGHT = 0.25;
+
+    /**
+     * The way an image is tone mapped.
+     */
+    static final class Path {
+
+        private final int mRequested;
+        private final int mToneAlg;
+        private final boolean mFast;
+        private final double mScale;
+        private final long mEstimate;
+
+        private Path(int requested, int toneAlg, boolean fast, double scale, long estimate) {
+            mRequested = requested;
+            mToneAlg = toneAlg;
+            mFast = fast;
+            mScale = scale;
+            mEstimate = estimate;
+        }
+
+        /**
+         * @return the tone mapping algorithm that is applied
+         */
+        int getToneAlg() {
+            return mToneAlg;
+        }
+
+        /**
+         * @return {@code true} to apply the fast version of the algorithm
+         */
+        boolean isFast() {
+            return mFast;
+        }
+
+        /**
+         * @return the scale of the radiance the algorithm is applied to, 1 for the full
+         * resolution
+         */
+        double getScale() {
+            return mScale;
+        }
+
+        /**
+         * @return {@code true} if the image is tone mapped at a reduced resolution
+         */
+        boolean isReduced() {
+            return mScale < 1;
+        }
+
+        /**
+         * @return {@code true} if another algorithm replaces the requested one
+         */
+        boolean isFallback() {
+            return mToneAlg != mRequested;
+        }
+
+        /**
+         * @return the estimated time, in milliseconds
+         */
+        long getEstimate() {
+            return mEstimate;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder path = new StringBuilder(name(mToneAlg));
+            if (mFast) {
+                path.append(" (fast)");
+            }
+            if (isReduced()) {
+                path.append(String.format(Locale.US, " at %.0f%%", mScale * 100));
+            }
+            if (isFallback()) {
+                path.append(" instead of ").append(name(mRequested));
+            }
+            return path.append(", estimated ").append(mEstimate).append("ms").toString();
+        }
+    }
+
+    /**
+     * The costs of the operators, measured on this device and stored in a file. There
+     * must be a single instance per file, shared by all the budgets that use it.
+     */
+    static final class Costs {
+
+        private final File mFile;
+        private final Properties mCosts = new Properties();
+
+        /**
+         * @param file the file of the measured costs; if it cannot be read, the initial
+         *             costs are used
+         */
+        Costs(File file) {
+            mFile = file;
+            FileInputStream input = null;
+            try {
+                if (file.isFile()) {
+                    input = new FileInputStream(file);
+                    mCosts.load(input);
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                // The costs will be measured again
+                mCosts.clear();
+            } finally {
+                close(input);
+            }
+        }
+
+        /**
+         * The cost of a stage, in nanoseconds per pixel.
+         */
+        synchronized double nanos(String key) {
+            String measured = mCosts.getProperty(key);
+            if (measured != null) {
+                try {
+                    return Double.parseDouble(measured);
+                } catch (NumberFormatException e) {
+                    mCosts.remove(key);
+                }
+            }
+            if (key.equals(RESAMPLE_KEY)) {
+                return RESAMPLE_NANOS;
+            }
+            int toneAlg = key.charAt(3) - '0';
+            if (toneAlg <= 0 || toneAlg >= EXACT_NANOS.length) {
+                return 0;
+            }
+            return key.endsWith("_fast") ? FAST_NANOS[toneAlg] : EXACT_NANOS[toneAlg];
+        }
+
+        synchronized void update(String key, long pixels, long millis) {
+            if (pixels <= 0) {
+                return;
+            }
+            double measured = millis * 1e6 / pixels;
+            // The first measure replaces the initial guess
+            double cost = mCosts.containsKey(key)
+                    ? nanos(key) * (1 - WEIGHT) + measured * WEIGHT : measured;
+            mCosts.setProperty(key, Double.toString(cost));
+        }
+
+        /**
+         * Store the measured costs, to be used by the next images. The costs do not change
+         * while they are written, and only one thread at a time writes the file.
+         *
+         * @throws IOException if the file cannot be written
+         */
+        synchronized void save() throws IOException {
+            File directory = mFile.getParentFile();
+            if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create " + directory);
+            }
+
+            // Write to a temporary file first, so that a crash never leaves a truncated file
+            File temp = new File(mFile.getPath() + ".tmp");
+            FileOutputStream output = new FileOutputStream(temp);
+            try {
+                mCosts.store(output, null);
+            } finally {
+                close(output);
+            }
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Unable to save " + mFile);
+            }
+        }
+    }
+
+    private final Costs mCosts;
+    private final long mBudget;
+
+    /**
+     * @param costs  the costs of the operators, shared by the budgets of the process
+     * @param budget the time budget of the tone mapping in milliseconds, or
+     *               {@link #NO_BUDGET}
+     */
+    ToneMapBudget(Costs costs, long budget) {
+        mCosts = costs;
+        mBudget = budget;
+    }
+
+    /**
+     * A budget with costs of its own, for a process that tone maps one image at a time.
+     *
+     * @param file   the file of the measured costs; if it cannot be read, the initial
+     *               costs are used
+     * @param budget the time budget of the tone mapping in milliseconds, or
+     *               {@link #NO_BUDGET}
+     */
+    ToneMapBudget(File file, long budget) {
+        this(new Costs(file), budget);
+    }
+
+    /**
+     * Choose how to tone map an image.
+     *
+     * @param toneAlg the tone mapping algorithm chosen by the user, see {@link HdrEngine}
+     * @param fast    whether the user wants the fast versions of the algorithms
+     * @param pixels  the pixels of the image
+     * @return the path that fits in the budget or, if none does, the cheapest one
+     */
+    Path choose(int toneAlg, boolean fast, long pixels) {
+        Path path = full(toneAlg, fast && hasFast(toneAlg), toneAlg, pixels);
+        if (fits(path)) {
+            return path;
+        }
+        Path cheapest = path;
+
+        if (!path.isFast() && hasFast(toneAlg)) {
+            path = full(toneAlg, true, toneAlg, pixels);
+            if (fits(path)) {
+                return path;
+            }
+            cheapest = cheaper(cheapest, path);
+        }
+
+        if (toneAlg == 2 || toneAlg == 3) {
+            for (double scale : SCALES) {
+                long estimate = millis(key(toneAlg, hasFast(toneAlg)),
+                        (long) (pixels * scale * scale))
+                        + millis(RESAMPLE_KEY, pixels);
+                path = new Path(toneAlg, toneAlg, hasFast(toneAlg), scale, estimate);
+                if (fits(path)) {
+                    return path;
+                }
+                cheapest = cheaper(cheapest, path);
+            }
+        }
+
+        for (int fallback : FALLBACKS) {
+            if (fallback != toneAlg) {
+                path = full(fallback, hasFast(fallback), toneAlg, pixels);
+                if (fits(path)) {
+                    return path;
+                }
+                cheapest = cheaper(cheapest, path);
+            }
+        }
+        return cheapest;
+    }
+
+    /**
+     * Update the cost of an algorithm with the time it took.
+     *
+     * @param toneAlg the tone mapping algorithm
+     * @param fast    whether its fast version was applied
+     * @param pixels  the pixels of the image
+     * @param millis  the time it took
+     */
+    void record(int toneAlg, boolean fast, long pixels, long millis) {
+        mCosts.update(key(toneAlg, fast && hasFast(toneAlg)), pixels, millis);
+    }
+
+    /**
+     * Update the cost of the downscale and of the upscale of a reduced path with the time
+     * they took.
+     *
+     * @param pixels the pixels of the image at full resolution
+     * @param millis the time they took
+     */
+    void recordResample(long pixels, long millis) {
+        mCosts.update(RESAMPLE_KEY, pixels, millis);
+    }
+
+    /**
+     * Store the measured costs, to be used by the next images.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    void save() throws IOException {
+        mCosts.save();
+    }
+
+    /**
+     * @return the name of a tone mapping algorithm
+     */
+    static String name(int toneAlg) {
+        return toneAlg > 0 && toneAlg < NAMES.length ? NAMES[toneAlg] : "none";
+    }
+
+    private Path full(int toneAlg, boolean fast, int requested, long pixels) {
+        return new Path(requested, toneAlg, fast, 1, millis(key(toneAlg, fast), pixels));
+    }
+
+    private boolean fits(Path path) {
+        return mBudget <= NO_BUDGET || path.mEstimate <= mBudget;
+    }
+
+    private static Path cheaper(Path a, Path b) {
+        return b.mEstimate < a.mEstimate ? b : a;
+    }
+
+    /**
+     * Whether {@link HdrEngine#fastToneMap} has a fast version of the algorithm.
+     */
+    private static boolean hasFast(int toneAlg) {
+        return GlobalToneMap.supports(toneAlg) || toneAlg == 2;
+    }
+
+    private static String key(int toneAlg, boolean fast) {
+        return fast ? "alg" + toneAlg + "_fast" : "alg" + toneAlg;
+    }
+
+    /**
+     * The estimated time of a stage, in milliseconds.
+     */
+    private long millis(String key, long pixels) {
+        return (long) Math.ceil(mCosts.nanos(key) * pixels / 1e6);
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+}
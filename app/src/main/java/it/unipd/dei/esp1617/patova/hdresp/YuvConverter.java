@@ -0,0 +1,120 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Converts the {@link ImageFormat#YUV_420_888} frames of the camera into the
+ * 8 bit BGR {@link Mat}s used by the HDR, with no JPEG encoding and decoding.
+ * <p>
+ * The planes can have any row and pixel stride: they are packed into a single
+ * I420 buffer. The frames of the camera are full range (JFIF), while the I420
+ * conversions of OpenCV expect the limited range of video, which would turn the
+ * darkest and the brightest levels, the ones the HDR needs most, to black and
+ * white: the planes are converted with the full range YCrCb conversion of OpenCV
+ * instead, with the chroma upsampled as the I420 conversions do.
+ */
+final class YuvConverter {
+
+    /**
+     * The I420 buffer, reused from one frame to the next.
+     */
+    private static byte[] sI420;
+
+    private YuvConverter() {
+    }
+
+    /**
+     * Convert a frame. The {@link Image} is not closed.
+     *
+     * @param image a {@link ImageFormat#YUV_420_888} image with even width and height
+     * @return the frame, 8 bit BGR
+     */
+    static synchronized Mat toBgr(Image image) {
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("Expected a YUV_420_888 image, got " + image.getFormat());
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int size = width * height * 3 / 2;
+        if (sI420 == null || sI420.length != size) {
+            sI420 = new byte[size];
+        }
+
+        Image.Plane[] planes = image.getPlanes();
+        int offset = copyPlane(planes[0], width, height, sI420, 0);
+        offset = copyPlane(planes[1], width / 2, height / 2, sI420, offset);
+        copyPlane(planes[2], width / 2, height / 2, sI420, offset);
+
+        Mat i420 = MatPool.obtain(height * 3 / 2, width, CvType.CV_8UC1);
+        Mat cb = MatPool.obtain(height, width, CvType.CV_8UC1);
+        Mat cr = MatPool.obtain(height, width, CvType.CV_8UC1);
+        Mat ycrcb = MatPool.obtain(height, width, CvType.CV_8UC3);
+        Mat bgr = MatPool.obtain(height, width, CvType.CV_8UC3);
+        try {
+            i420.put(0, 0, sI420);
+            // Views of the planes: the chroma ones as rows of half the width
+            Mat y = i420.rowRange(0, height);
+            Mat chroma = i420.rowRange(height, height * 3 / 2);
+            Mat planar = chroma.reshape(1, height);
+            Mat u = planar.rowRange(0, height / 2);
+            Mat v = planar.rowRange(height / 2, height);
+            Imgproc.resize(u, cb, cb.size(), 0, 0, Imgproc.INTER_NEAREST);
+            Imgproc.resize(v, cr, cr.size(), 0, 0, Imgproc.INTER_NEAREST);
+            Core.merge(Arrays.asList(y, cr, cb), ycrcb);
+            Imgproc.cvtColor(ycrcb, bgr, Imgproc.COLOR_YCrCb2BGR);
+            for (Mat view : Arrays.asList(y, chroma, planar, u, v)) {
+                view.release();
+            }
+        } finally {
+            MatPool.release(i420);
+            MatPool.release(cb);
+            MatPool.release(cr);
+            MatPool.release(ycrcb);
+        }
+        return bgr;
+    }
+
+    /**
+     * Copy a plane into a packed buffer, one byte per pixel.
+     *
+     * @return the offset in the buffer after the plane
+     */
+    private static int copyPlane(Image.Plane plane, int width, int height, byte[] output,
+                                 int offset) {
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+
+        if (pixelStride == 1 && rowStride == width) {
+            buffer.position(0);
+            buffer.get(output, offset, width * height);
+            return offset + width * height;
+        }
+
+        // The last row can be shorter than the row stride
+        byte[] row = new byte[rowStride];
+        int rowLength = (width - 1) * pixelStride + 1;
+        for (int y = 0; y < height; y++) {
+            buffer.position(y * rowStride);
+            buffer.get(row, 0, rowLength);
+            if (pixelStride == 1) {
+                System.arraycopy(row, 0, output, offset, width);
+            } else {
+                for (int x = 0; x < width; x++) {
+                    output[offset + x] = row[x * pixelStride];
+                }
+            }
+            offset += width;
+        }
+        return offset;
+    }
+}
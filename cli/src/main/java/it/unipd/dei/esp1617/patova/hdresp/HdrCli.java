@@ -0,0 +1,258 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.opencv.core.Core;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Command line entry point that runs the {@link HdrEngine} on a desktop JVM.
+ * <p>
+ * A bracket set is a directory containing the photos of the sequence and a
+ * file named {@value #EXPOSURES_FILE} that lists, one per line, the name of
+ * each photo followed by its exposure time in seconds (e.g. {@code a.jpg 1/60});
+ * the exposure fusion does not need the exposure times, so they can be omitted.
+ * The input directory can be a bracket set or a directory of bracket sets;
+ * the result of each set is saved as {@code <set name>.jpg} in the output
+ * directory, and the time spent in each stage is printed on the standard output,
+ * with the path taken by the tone mapping (see {@link ToneMapBudget}). The measured
+ * costs of the tone mapping are kept in {@value ToneMapBudget#FILE_NAME}, in the
+ * temporary directory.
+ */
+final class HdrCli {
+
+    static final String EXPOSURES_FILE = "exposures.txt";
+
+    private static final String USAGE =
+            "Usage: hdr-cli [options] <input dir> [<output dir>]\n"
+                    + "  --no-align               do not align the photos\n"
+                    + "  --hdr <n>                HDR algorithm: 1 Debevec (default), 2 Robertson, 3 exposure fusion\n"
+                    + "  --tonemap <n>            tone mapping: 1 Drago (default), 2 Durand, 3 Mantiuk, 4 Reinhard\n"
+                    + "  --calibration-level <n>  calibrate on the n-th level of the image pyramid (default 0)\n"
+                    + "  --tile-rows <n>          merge in bands of n rows (default 0, the whole images)\n"
+                    + "  --threads <n>            threads that merge the bands, 0 for one per core (default 1)\n"
+                    + "  --fusion-levels <n>      levels of the exposure fusion pyramid, 0 for all (default)\n"
+                    + "  --exact-tonemap          tone map with OpenCV instead of the fast Drago, Durand and Reinhard\n"
+                    + "  --tonemap-budget <ms>    time budget of the tone mapping, 0 for none (default)\n"
+                    + "  --repeat <n>             process every set n times and report the mean times\n";
+
+    private HdrCli() {
+    }
+
+    public static void main(String[] args) {
+        boolean align = true;
+        int hdrAlg = 1;
+        int toneAlg = 1;
+        int calibrationLevel = 0;
+        int tileRows = 0;
+        int fusionLevels = 0;
+        boolean fastToneMap = true;
+        long toneMapBudget = ToneMapBudget.NO_BUDGET;
+        int threads = 1;
+        int repeat = 1;
+        List<String> paths = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--no-align":
+                        align = false;
+                        break;
+                    case "--hdr":
+                        hdrAlg = Integer.parseInt(args[++i]);
+                        break;
+                    case "--tonemap":
+                        toneAlg = Integer.parseInt(args[++i]);
+                        break;
+                    case "--calibration-level":
+                        calibrationLevel = Integer.parseInt(args[++i]);
+                        break;
+                    case "--tile-rows":
+                        tileRows = Integer.parseInt(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--fusion-levels":
+                        fusionLevels = Integer.parseInt(args[++i]);
+                        break;
+                    case "--exact-tonemap":
+                        fastToneMap = false;
+                        break;
+                    case "--tonemap-budget":
+                        toneMapBudget = Long.parseLong(args[++i]);
+                        break;
+                    case "--repeat":
+                        repeat = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        paths.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            paths.clear();
+        }
+        if (paths.isEmpty() || paths.size() > 2 || repeat < 1) {
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+
+        File input = new File(paths.get(0));
+        File outputDir = new File(paths.size() == 2 ? paths.get(1) : paths.get(0));
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            System.err.println("Unable to create " + outputDir);
+            System.exit(1);
+        }
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        final Map<String, Long> stageTimes = new LinkedHashMap<>();
+        HdrEngine engine = new HdrEngine(align, hdrAlg, toneAlg);
+        engine.setCalibrationLevel(calibrationLevel);
+        engine.setMergeTiling(tileRows, threads);
+        engine.setFusionLevels(fusionLevels);
+        engine.setFastToneMap(fastToneMap, threads);
+        ToneMapBudget budget = new ToneMapBudget(new File(System.getProperty("java.io.tmpdir"),
+                ToneMapBudget.FILE_NAME), toneMapBudget);
+        engine.setToneMapBudget(budget);
+        engine.setStageListener(new HdrEngine.StageListener() {
+            @Override
+            public void onStageCompleted(String stage, long millis) {
+                Long time = stageTimes.get(stage);
+                stageTimes.put(stage, time == null ? millis : time + millis);
+            }
+        });
+
+        int failures = 0;
+        for (File bracket : findBrackets(input)) {
+            try {
+                List<ByteBuffer> images = new ArrayList<>();
+                float[] times = readBracket(bracket, images);
+                if (HdrEngine.needsExposureTimes(hdrAlg) && Float.isNaN(times[0])) {
+                    throw new IOException("Missing exposure times in " + EXPOSURES_FILE);
+                }
+
+                byte[] result = null;
+                stageTimes.clear();
+                long start = System.currentTimeMillis();
+                for (int i = 0; i < repeat; i++) {
+                    result = engine.process(images, times);
+                }
+                long total = System.currentTimeMillis() - start;
+
+                File destination = new File(outputDir, bracket.getName() + ".jpg");
+                Files.write(destination.toPath(), result);
+
+                StringBuilder report = new StringBuilder(bracket.getName());
+                for (Map.Entry<String, Long> entry : stageTimes.entrySet()) {
+                    report.append(String.format(Locale.US, " %s=%.1fms",
+                            entry.getKey(), entry.getValue() / (double) repeat));
+                }
+                report.append(String.format(Locale.US, " total=%.1fms -> %s",
+                        total / (double) repeat, destination));
+                if (engine.getToneMapPath() != null) {
+                    report.append(" (tone mapping: ").append(engine.getToneMapPath()).append(')');
+                }
+                System.out.println(report);
+            } catch (IOException | RuntimeException e) {
+                System.err.println(bracket.getName() + ": " + e.getMessage());
+                failures++;
+            }
+        }
+        try {
+            budget.save();
+        } catch (IOException e) {
+            System.err.println("Unable to save the costs of the tone mapping: " + e.getMessage());
+        }
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Find the bracket sets in a directory.
+     *
+     * @param input the directory given on the command line
+     * @return the directory itself if it is a bracket set, otherwise its sub-directories
+     * that are bracket sets, sorted by name
+     */
+    private static List<File> findBrackets(File input) {
+        if (new File(input, EXPOSURES_FILE).isFile()) {
+            return Arrays.asList(input);
+        }
+
+        File[] brackets = input.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return new File(file, EXPOSURES_FILE).isFile();
+            }
+        });
+        if (brackets == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(brackets);
+        return Arrays.asList(brackets);
+    }
+
+    /**
+     * Read the photos of a bracket set.
+     *
+     * @param bracket the directory of the set
+     * @param images  the list where to add the encoded photos
+     * @return the exposure times of the photos, {@code NaN} if they are not given
+     * @throws IOException if a file of the set cannot be read
+     */
+    private static float[] readBracket(File bracket, List<ByteBuffer> images) throws IOException {
+        List<String> lines = Files.readAllLines(
+                new File(bracket, EXPOSURES_FILE).toPath(), StandardCharsets.UTF_8);
+        List<Float> times = new ArrayList<>();
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length > 2) {
+                throw new IOException("Malformed line in " + EXPOSURES_FILE + ": " + line);
+            }
+            byte[] image = Files.readAllBytes(new File(bracket, fields[0]).toPath());
+            images.add(ByteBuffer.wrap(image));
+            times.add(fields.length == 2 ? parseExposure(fields[1]) : Float.NaN);
+        }
+        if (images.size() < 2) {
+            throw new IOException("A bracket set needs at least two photos");
+        }
+
+        float[] result = new float[times.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = times.get(i);
+            if (Float.isNaN(result[i]) != Float.isNaN(result[0])) {
+                throw new IOException("Either all or none of the photos must have an exposure time");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parse an exposure time written either as a decimal number or as a fraction.
+     *
+     * @param exposure the exposure time in seconds, e.g. {@code 0.5} or {@code 1/60}
+     * @return the exposure time in seconds
+     */
+    private static float parseExposure(String exposure) {
+        int slash = exposure.indexOf('/');
+        if (slash < 0) {
+            return Float.parseFloat(exposure);
+        }
+        return Float.parseFloat(exposure.substring(0, slash))
+                / Float.parseFloat(exposure.substring(slash + 1));
+    }
+}
@@ -0,0 +1,80 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link GlobalToneMap} stays within {@link GlobalToneMap#TOLERANCE} of the
+ * operators of OpenCV.
+ */
+public class GlobalToneMapTest {
+
+    /**
+     * Large enough for the statistics to be computed on a subsample.
+     */
+    private static final int WIDTH = 2048;
+    private static final int HEIGHT = 1536;
+
+    /**
+     * Stops between the darkest and the brightest radiance.
+     */
+    private static final double STOPS = 12;
+
+    @BeforeClass
+    public static void loadOpenCv() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    /**
+     * A smooth radiance over {@link #STOPS} stops, with a black square, that OpenCV maps
+     * to NaN.
+     */
+    private static Mat radiance() {
+        Core.setRNGSeed(1);
+        Mat noise = new Mat(HEIGHT / 16, WIDTH / 16, CvType.CV_32FC3);
+        Core.randu(noise, 0, 1);
+        Mat radiance = new Mat();
+        Imgproc.resize(noise, radiance, new Size(WIDTH, HEIGHT), 0, 0, Imgproc.INTER_LINEAR);
+        noise.release();
+        Core.multiply(radiance, new Scalar(STOPS * Math.log(2), STOPS * Math.log(2),
+                STOPS * Math.log(2)), radiance);
+        Core.exp(radiance, radiance);
+        Imgproc.rectangle(radiance, new Point(100, 100), new Point(200, 200),
+                new Scalar(0, 0, 0), -1);
+        return radiance;
+    }
+
+    private static void assertWithinTolerance(int toneAlg) {
+        Mat fast = radiance();
+        Mat reference = fast.clone();
+        GlobalToneMap.apply(toneAlg, fast, 0);
+        HdrEngine.toneMap(toneAlg, reference);
+
+        double difference = GlobalToneMap.largestDifference(fast, reference);
+        assertTrue("Largest difference " + difference * 255 + "/255",
+                difference <= GlobalToneMap.TOLERANCE);
+        assertTrue("NaN in the fast tone mapping", Core.checkRange(fast));
+
+        fast.release();
+        reference.release();
+    }
+
+    @Test
+    public void drago() {
+        assertWithinTolerance(1);
+    }
+
+    @Test
+    public void reinhard() {
+        assertWithinTolerance(4);
+    }
+}
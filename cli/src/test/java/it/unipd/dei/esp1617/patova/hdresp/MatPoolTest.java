@@ -0,0 +1,75 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Checks that {@link MatPool} reuses the {@link Mat}s given back, also as submatrices.
+ */
+public class MatPoolTest {
+
+    private static final int ROWS = 1000;
+    private static final int COLS = 1000;
+
+    @BeforeClass
+    public static void loadOpenCv() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    @After
+    public void clearPool() {
+        MatPool.clear();
+    }
+
+    @Test
+    public void reusesAWholeMat() {
+        Mat mat = MatPool.obtain(ROWS, COLS, CvType.CV_8UC3);
+        long data = mat.dataAddr();
+        MatPool.release(mat);
+
+        Mat reused = MatPool.obtain(ROWS, COLS, CvType.CV_8UC3);
+        assertEquals(data, reused.dataAddr());
+        MatPool.release(reused);
+    }
+
+    @Test
+    public void reusesTheWholeMatOfASubmatrix() {
+        Mat mat = MatPool.obtain(ROWS, COLS, CvType.CV_8UC3);
+        long data = mat.dataAddr();
+        // As the crop of the alignment
+        Mat crop = mat.submat(3, ROWS - 10, 5, COLS - 5);
+        mat.release();
+        MatPool.release(crop);
+        assertEquals((long) ROWS * COLS * 3, MatPool.getPooledBytes());
+
+        Mat reused = MatPool.obtain(ROWS, COLS, CvType.CV_8UC3);
+        assertEquals(data, reused.dataAddr());
+        MatPool.release(reused);
+    }
+
+    @Test
+    public void freesTheMatsTooSmall() {
+        Mat mat = new Mat(10, 10, CvType.CV_8UC3);
+        MatPool.release(mat);
+        assertEquals(0, MatPool.getPooledBytes());
+    }
+
+    @Test
+    public void givesAnotherMatForAnotherType() {
+        Mat mat = MatPool.obtain(ROWS, COLS, CvType.CV_8UC3);
+        long data = mat.dataAddr();
+        MatPool.release(mat);
+
+        Mat other = MatPool.obtain(ROWS, COLS, CvType.CV_32FC3);
+        assertNotEquals(data, other.dataAddr());
+        assertEquals((long) ROWS * COLS * 3, MatPool.getPooledBytes());
+        MatPool.release(other);
+    }
+}
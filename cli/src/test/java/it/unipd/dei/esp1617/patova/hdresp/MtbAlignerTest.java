@@ -0,0 +1,104 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.photo.AlignMTB;
+import org.opencv.photo.Photo;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the shifts of {@link MtbAligner} against known shifts and {@link AlignMTB}.
+ */
+public class MtbAlignerTest {
+
+    @BeforeClass
+    public static void loadOpenCv() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    /**
+     * A textured photo, optionally with a flat square at its center.
+     */
+    private static Mat scene(int width, int height, boolean flatCenter) {
+        Core.setRNGSeed(1);
+        Mat noise = new Mat(height / 8, width / 8, CvType.CV_8UC3);
+        Core.randu(noise, 0, 255);
+        Mat scene = new Mat();
+        Imgproc.resize(noise, scene, new Size(width, height), 0, 0, Imgproc.INTER_CUBIC);
+        Imgproc.GaussianBlur(scene, scene, new Size(0, 0), 3);
+        noise.release();
+        if (flatCenter) {
+            int side = Math.min(width, height) / 3;
+            Imgproc.rectangle(scene, new Point(width / 2 - side, height / 2 - side),
+                    new Point(width / 2 + side, height / 2 + side),
+                    new Scalar(120, 120, 120), -1);
+        }
+        return scene;
+    }
+
+    private static Mat translate(Mat source, int dx, int dy) {
+        Mat matrix = new Mat(2, 3, CvType.CV_64F);
+        matrix.put(0, 0, 1, 0, dx, 0, 1, dy);
+        Mat translated = new Mat();
+        Imgproc.warpAffine(source, translated, matrix, source.size());
+        matrix.release();
+        return translated;
+    }
+
+    private static void assertShifts(int width, int height, boolean flatCenter,
+                                     int[][] shifts) {
+        Mat reference = scene(width, height, flatCenter);
+        Mat referenceGray = new Mat();
+        Imgproc.cvtColor(reference, referenceGray, Imgproc.COLOR_RGB2GRAY);
+        MtbAligner.Pyramid referencePyramid =
+                MtbAligner.build(reference, Imgproc.COLOR_RGB2GRAY);
+        AlignMTB alignMtb = Photo.createAlignMTB();
+        for (int[] shift : shifts) {
+            Mat image = translate(reference, shift[0], shift[1]);
+            Mat imageGray = new Mat();
+            Imgproc.cvtColor(image, imageGray, Imgproc.COLOR_RGB2GRAY);
+            MtbAligner.Pyramid pyramid = MtbAligner.build(image, Imgproc.COLOR_RGB2GRAY);
+
+            String message = width + "x" + height + " shifted by (" + shift[0] + ", "
+                    + shift[1] + ")";
+            Point expected = alignMtb.calculateShift(referenceGray, imageGray);
+            assertEquals(message + ": AlignMTB", new Point(-shift[0], -shift[1]), expected);
+            assertEquals(message, expected, MtbAligner.calculateShift(referencePyramid, pyramid));
+
+            pyramid.release();
+            image.release();
+            imageGray.release();
+        }
+        referencePyramid.release();
+        reference.release();
+        referenceGray.release();
+    }
+
+    @Test
+    public void belowTheBase() {
+        assertShifts(1000, 750, false, new int[][]{{0, 0}, {5, -3}, {-6, 4}});
+    }
+
+    @Test
+    public void oneLevelBelowTheBase() {
+        assertShifts(2000, 1500, false, new int[][]{{0, 0}, {5, -3}, {-6, 4}});
+    }
+
+    @Test
+    public void twelveMegapixels() {
+        assertShifts(4000, 3000, false, new int[][]{{0, 0}, {5, -3}, {-6, 4}, {40, -33}});
+    }
+
+    @Test
+    public void flatCenter() {
+        assertShifts(4000, 3000, true, new int[][]{{0, 0}, {5, -3}, {-6, 4}});
+    }
+}
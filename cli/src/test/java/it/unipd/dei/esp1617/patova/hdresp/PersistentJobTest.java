@@ -0,0 +1,120 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that {@link PersistentJob} reads back the {@link Mat}s and the parameters it
+ * stores, and resumes only the jobs that have been committed.
+ */
+public class PersistentJobTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void loadOpenCv() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    private static Mat random(int rows, int cols, int type) {
+        Core.setRNGSeed(1);
+        Mat mat = new Mat(rows, cols, type);
+        Core.randu(mat, 0, CvType.depth(type) == CvType.CV_32F ? 1000 : 255);
+        return mat;
+    }
+
+    private static void assertSameMat(Mat expected, Mat actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.type(), actual.type());
+        assertEquals(0, Core.norm(expected, actual, Core.NORM_INF), 0);
+    }
+
+    @Test
+    public void readsBackTheFrames() throws IOException {
+        PersistentJob job = PersistentJob.create(mFolder.getRoot());
+        // Larger than a chunk, so that the dump is written in bands
+        Mat bgr = random(1200, 1600, CvType.CV_8UC3);
+        Mat raw = random(600, 800, CvType.CV_16UC1);
+        job.putFrame(0, bgr);
+        job.putFrame(1, raw);
+
+        assertNull(job.getJpeg(0));
+        Mat readBgr = job.getFrame(0);
+        Mat readRaw = job.getFrame(1);
+        assertSameMat(bgr, readBgr);
+        assertSameMat(raw, readRaw);
+
+        bgr.release();
+        raw.release();
+        readBgr.release();
+        readRaw.release();
+    }
+
+    @Test
+    public void readsBackACroppedRadiance() throws IOException {
+        PersistentJob job = PersistentJob.create(mFolder.getRoot());
+        assertNull(job.getRadiance());
+
+        Mat radiance = random(500, 700, CvType.CV_32FC3);
+        // Not continuous, as the images cropped by the alignment
+        Mat cropped = radiance.submat(new Rect(3, 5, 650, 480));
+        assertFalse(cropped.isContinuous());
+        RadianceCache.Compact compact = RadianceCache.compact(cropped);
+        job.putRadiance(compact);
+        compact.release();
+
+        Mat read = job.getRadiance();
+        assertEquals(cropped.size(), read.size());
+        assertEquals(cropped.type(), read.type());
+        // Stored in half floats, with 10 bits of mantissa
+        assertEquals(0, Core.norm(cropped, read, Core.NORM_INF), 1000.0 / (1 << 10));
+
+        read.release();
+        cropped.release();
+        radiance.release();
+    }
+
+    @Test
+    public void resumesOnlyTheCommittedJobs() throws IOException {
+        File root = mFolder.getRoot();
+        PersistentJob committed = PersistentJob.create(root);
+        PersistentJob partial = PersistentJob.create(root);
+        Properties parameters = new Properties();
+        parameters.setProperty("exposureTimes", PersistentJob.join(new float[]{0.5f, 0.125f}));
+        committed.commit(parameters);
+        committed.putShifts(parameters, new Point[]{new Point(2, -4), new Point(0, 0)});
+        // A later checkpoint of the same parameters keeps the shifts
+        parameters.setProperty("iso", "100");
+        committed.commit(parameters);
+
+        List<PersistentJob> pending = PersistentJob.pending(root);
+        assertEquals(1, pending.size());
+        assertEquals(committed.toString(), pending.get(0).toString());
+        assertFalse(partial.getDirectory().exists());
+
+        PersistentJob resumed = pending.get(0);
+        assertArrayEquals(new float[]{0.5f, 0.125f},
+                PersistentJob.split(resumed.getParameters().getProperty("exposureTimes")), 0);
+        assertEquals("100", resumed.getParameters().getProperty("iso"));
+        assertArrayEquals(new Point[]{new Point(2, -4), new Point(0, 0)},
+                PersistentJob.getShifts(resumed.getParameters()));
+    }
+}
@@ -0,0 +1,104 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a radiance read back from {@link RadianceCache} is the one stored, with the
+ * precision of the half floats down to its shadows.
+ */
+public class RadianceCacheTest {
+
+    private static final int ROWS = 300;
+    private static final int COLS = 400;
+
+    /**
+     * Largest relative difference of a value read back: the half floats have 10 bits of
+     * mantissa.
+     */
+    private static final double PRECISION = 1.0 / (1 << 10);
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void loadOpenCv() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    /**
+     * A radiance over 20 stops: its darkest values are a millionth of its maximum.
+     */
+    private static Mat radiance() {
+        Core.setRNGSeed(1);
+        Mat radiance = new Mat(ROWS, COLS, CvType.CV_32FC3);
+        Core.randu(radiance, 0, 20 * Math.log(2));
+        Core.exp(radiance, radiance);
+        Core.multiply(radiance, new Scalar(1e-3, 1e-3, 1e-3), radiance);
+        return radiance;
+    }
+
+    private RadianceCache newCache() throws IOException {
+        return new RadianceCache(mFolder.newFolder(), RadianceCache.DEFAULT_CAPACITY);
+    }
+
+    private static String key(String settings) {
+        return RadianceCache.key(
+                Collections.singletonList(ByteBuffer.wrap(new byte[]{1, 2, 3})), settings);
+    }
+
+    @Test
+    public void readsBackTheRadiance() throws IOException {
+        RadianceCache cache = newCache();
+        Mat radiance = radiance();
+        String key = key("hdr=1");
+        RadianceCache.Compact compact = RadianceCache.compact(radiance);
+        cache.put(key, compact);
+        compact.release();
+
+        Mat cached = cache.get(key);
+        assertNotNull(cached);
+        assertEquals(radiance.size(), cached.size());
+        assertEquals(radiance.type(), cached.type());
+
+        // Relative to every value, so that the shadows count as much as the highlights
+        Mat difference = new Mat();
+        Core.absdiff(cached, radiance, difference);
+        Core.divide(difference, radiance, difference);
+        double largest = Core.minMaxLoc(difference.reshape(1)).maxVal;
+        assertTrue("Largest relative difference " + largest, largest <= PRECISION);
+
+        difference.release();
+        cached.release();
+        radiance.release();
+    }
+
+    @Test
+    public void missesAnotherKey() throws IOException {
+        RadianceCache cache = newCache();
+        Mat radiance = radiance();
+        RadianceCache.Compact compact = RadianceCache.compact(radiance);
+        cache.put(key("hdr=1"), compact);
+        compact.release();
+        radiance.release();
+
+        assertNotEquals(key("hdr=1"), key("hdr=2"));
+        assertNull(cache.get(key("hdr=2")));
+    }
+}
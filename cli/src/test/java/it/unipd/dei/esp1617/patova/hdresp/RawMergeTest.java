@@ -0,0 +1,109 @@
+package it.unipd.dei.esp1617.patova.hdresp;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that {@link RawMerge} gives back the radiance that a synthetic sequence of RAW
+ * frames has been exposed to.
+ */
+public class RawMergeTest {
+
+    private static final int ROWS = 64;
+    private static final int COLS = 96;
+    private static final float BLACK = 64;
+    private static final float WHITE = 4095;
+    private static final float[] EXPOSURE_TIMES = {0.25f, 1, 4};
+
+    @BeforeClass
+    public static void loadOpenCv() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    private static RawMerge.Sensor sensor(float[] gains) {
+        return new RawMerge.Sensor(RawMerge.CFA_RGGB, new float[]{BLACK, BLACK, BLACK, BLACK},
+                WHITE, gains, null);
+    }
+
+    /**
+     * The frames of a radiance, in [0, 1] of the range of the sensor per second, rounded
+     * to integers and clipped at the white level as a sensor does.
+     */
+    private static List<Mat> expose(Mat radiance) {
+        List<Mat> frames = new ArrayList<>();
+        for (float time : EXPOSURE_TIMES) {
+            Mat frame = new Mat();
+            radiance.convertTo(frame, CvType.CV_16U, time * (WHITE - BLACK), BLACK);
+            Core.min(frame, new Scalar(WHITE), frame);
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    @Test
+    public void mergesBackTheRadiance() {
+        Core.setRNGSeed(1);
+        // Clipped in the longer exposures, never in the shortest one
+        Mat radiance = new Mat(ROWS, COLS, CvType.CV_32FC1);
+        Core.randu(radiance, 0.05, 3);
+        List<Mat> frames = expose(radiance);
+
+        Mat merged = RawMerge.merge(frames, EXPOSURE_TIMES, sensor(new float[]{1, 1, 1}));
+        // Half a level of rounding per frame, over the shortest exposure
+        double tolerance = EXPOSURE_TIMES.length * 0.5 / (WHITE - BLACK) / EXPOSURE_TIMES[0];
+        assertEquals(0, Core.norm(merged, radiance, Core.NORM_INF), tolerance);
+
+        merged.release();
+        radiance.release();
+        for (Mat frame : frames) {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void demosaicsAUniformRadiance() {
+        Mat radiance = new Mat(ROWS, COLS, CvType.CV_32FC1, new Scalar(0.5));
+        // Red, green, blue
+        Mat bgr = RawMerge.demosaic(radiance, sensor(new float[]{2, 1, 0.5f}));
+
+        assertEquals(CvType.CV_32FC3, bgr.type());
+        Mat expected = new Mat(ROWS, COLS, CvType.CV_32FC3, new Scalar(0.25, 0.5, 1));
+        assertEquals(0, Core.norm(bgr, expected, Core.NORM_INF), 1e-6);
+
+        expected.release();
+        bgr.release();
+        radiance.release();
+    }
+
+    @Test
+    public void storesTheSensor() {
+        Properties properties = new Properties();
+        assertNull(RawMerge.Sensor.load(properties, "sensor."));
+
+        sensor(new float[]{2, 1, 0.5f}).store(properties, "sensor.");
+        RawMerge.Sensor loaded = RawMerge.Sensor.load(properties, "sensor.");
+        assertNotNull(loaded);
+
+        // The loaded sensor develops the frames as the stored one
+        Mat radiance = new Mat(ROWS, COLS, CvType.CV_32FC1, new Scalar(0.5));
+        Mat expected = RawMerge.demosaic(radiance, sensor(new float[]{2, 1, 0.5f}));
+        Mat actual = RawMerge.demosaic(radiance, loaded);
+        assertEquals(0, Core.norm(actual, expected, Core.NORM_INF), 0);
+
+        actual.release();
+        expected.release();
+        radiance.release();
+    }
+}